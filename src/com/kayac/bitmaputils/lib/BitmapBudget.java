@@ -0,0 +1,329 @@
+package com.kayac.bitmaputils.lib;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kayac.bitmaputils.BuildConfig;
+
+/**
+ * A process wide budget of bitmap memory, shared by every {@link ImageWorker}. It counts what
+ * the registered {@link ImageCache}s hold in their memory caches and bitmap pools, the bitmaps
+ * being decoded right now and the downloads kept in memory for decoding. Every decode reserves
+ * the size of its result, known from the bounds pass and inSampleSize, before it calls into
+ * BitmapFactory. A decode that goes to a cache hands its reservation over to the bitmap, which
+ * holds it until {@link #settle(Bitmap)} once the cache accounts for it. A decode into a pooled
+ * bitmap only moves bytes out of the pool, it is counted without waiting.
+ * <p>
+ * A decode that does not fit waits a moment for the other decodes in flight to finish, about
+ * as long as one decode takes. It blocks a worker thread, so it does not wait longer: if it
+ * still does not fit, its inSampleSize is raised until it does.
+ * The caches are measured before the budget is locked, so their locks are never taken under
+ * the budget's.
+ *
+ * @author long-nguyen
+ *
+ */
+public class BitmapBudget {
+	private static final String TAG = "BitmapBudget";
+	// Share of the heap bitmaps may take by default
+	private static final float DEFAULT_HEAP_FRACTION = 0.5f;
+	// Longest a decode waits for others to finish before it is sampled down instead. About one
+	// decode, the worker thread waiting could run another load meanwhile
+	private static final long MAX_WAIT_MILLIS = 50;
+	// A waiting decode measures the caches again at least this often, they shrink without notice
+	private static final long RESIDENT_POLL_MILLIS = 25;
+	private static final int MAX_SAMPLE_SIZE = 64;
+
+	private static final BitmapBudget sInstance = new BitmapBudget();
+
+	private long mMaxSize;
+	private long mReservedSize;
+	private int mReservations;
+	// Decoded bitmaps on their way into a cache, with their reservations. Weak, so a bitmap
+	// that never reaches a cache stops counting once it is collected.
+	private final WeakHashMap<Bitmap, Long> mHandedOver = new WeakHashMap<Bitmap, Long>();
+	private long mBufferedSize;
+	private final ArrayList<WeakReference<ImageCache>> mCaches = new ArrayList<WeakReference<ImageCache>>();
+
+	private int mThrottleCount;
+	private int mDownsampleCount;
+
+	private BitmapBudget() {
+		mMaxSize = (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION);
+	}
+
+	public static BitmapBudget getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * @param maxSize The bytes of bitmap memory all caches and decodes together may use
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		notifyAll();
+	}
+
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Count the memory cache and bitmap pool of the cache against the budget.
+	 */
+	synchronized void register(ImageCache cache) {
+		mCaches.add(new WeakReference<ImageCache>(cache));
+	}
+
+	synchronized void unregister(ImageCache cache) {
+		final Iterator<WeakReference<ImageCache>> it = mCaches.iterator();
+		while (it.hasNext()) {
+			final ImageCache registered = it.next().get();
+			if (registered == null || registered == cache) {
+				it.remove();
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Reserve the memory of the decode described by the options, waiting or raising
+	 * options.inSampleSize while it does not fit. Never fails, past every fallback the decode
+	 * goes ahead over budget.
+	 *
+	 * @param options Options with the out* values, inSampleSize and inPreferredConfig set
+	 * @return The bytes reserved, to hand back to {@link #release(long)} after the decode
+	 */
+	public long reserve(BitmapFactory.Options options) {
+		long size = getDecodedSize(options);
+		if (size <= 0) {
+			return 0;
+		}
+
+		final long deadline = SystemClock.uptimeMillis() + MAX_WAIT_MILLIS;
+		boolean throttled = false;
+		while (true) {
+			final long resident = getResidentSize();
+			synchronized (this) {
+				final long remaining = deadline - SystemClock.uptimeMillis();
+				if (!fits(resident, size) && mReservations > 0 && remaining > 0
+						&& !Thread.currentThread().isInterrupted()) {
+					if (!throttled) {
+						throttled = true;
+						mThrottleCount++;
+					}
+					try {
+						wait(Math.min(remaining, RESIDENT_POLL_MILLIS));
+					} catch (InterruptedException e) {
+						// The task was cancelled, let it decode and notice on its own
+						Thread.currentThread().interrupt();
+					}
+					continue;
+				}
+
+				if (!fits(resident, size)) {
+					final int requested = Math.max(1, options.inSampleSize);
+					while (!fits(resident, size) && options.inSampleSize < MAX_SAMPLE_SIZE) {
+						options.inSampleSize = Math.max(1, options.inSampleSize) * 2;
+						size = getDecodedSize(options);
+					}
+					if (options.inSampleSize != requested) {
+						mDownsampleCount++;
+						if (BuildConfig.DEBUG) {
+							Log.d(TAG, "Over budget, sampling " + options.outWidth + "x" + options.outHeight
+									+ " at " + options.inSampleSize + " instead of " + requested);
+						}
+					}
+				}
+
+				mReservedSize += size;
+				mReservations++;
+				return size;
+			}
+		}
+	}
+
+	/**
+	 * Reserve a decode into a pooled bitmap. The bytes already exist and have just left the
+	 * pool, so the decode neither waits nor is sampled down.
+	 *
+	 * @param bitmap The bitmap taken from the pool to decode into
+	 * @return The bytes reserved, to hand back to {@link #release(long)} after the decode
+	 */
+	public synchronized long reserveReused(Bitmap bitmap) {
+		final long size = BitmapPool.getSize(bitmap);
+		mReservedSize += size;
+		mReservations++;
+		return size;
+	}
+
+	/**
+	 * Hand back a reservation once its decode returned.
+	 */
+	public synchronized void release(long size) {
+		if (size <= 0) {
+			return;
+		}
+		mReservedSize -= size;
+		mReservations--;
+		notifyAll();
+	}
+
+	/**
+	 * Keep the reservation of a finished decode with its bitmap, until the cache it goes to
+	 * counts it. Ends the decode for the decodes waiting on it.
+	 *
+	 * @param bitmap The decoded bitmap
+	 * @param size The reservation of its decode
+	 */
+	public synchronized void handOver(Bitmap bitmap, long size) {
+		if (size <= 0) {
+			return;
+		}
+		mReservedSize -= size;
+		mReservations--;
+		final Long previous = mHandedOver.put(bitmap, size);
+		if (previous != null) {
+			// Decoded into the same bitmap twice without being cached in between
+			mHandedOver.put(bitmap, previous + size);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Drop the reservation handed over to a bitmap, now that a cache counts it.
+	 */
+	public synchronized void settle(Bitmap bitmap) {
+		if (bitmap != null && mHandedOver.remove(bitmap) != null) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Count bytes of a download kept in memory to be decoded. Downloads are not held back.
+	 */
+	synchronized void reserveBuffer(long size) {
+		mBufferedSize += size;
+	}
+
+	synchronized void releaseBuffer(long size) {
+		mBufferedSize -= size;
+		notifyAll();
+	}
+
+	private boolean fits(long resident, long size) {
+		return resident + getInFlightSize() + size <= mMaxSize;
+	}
+
+	/**
+	 * @return The bytes of the decodes, handed over bitmaps and download buffers, with the
+	 *      budget locked
+	 */
+	private long getInFlightSize() {
+		long size = mReservedSize + mBufferedSize;
+		for (Long handedOver : mHandedOver.values()) {
+			size += handedOver;
+		}
+		return size;
+	}
+
+	/**
+	 * Measure the registered caches and their pools. Must not be called with the budget
+	 * locked, the caches take their own locks.
+	 *
+	 * @return The bytes held by the registered caches and their pools
+	 */
+	private long getResidentSize() {
+		final ArrayList<ImageCache> caches = new ArrayList<ImageCache>();
+		synchronized (this) {
+			final Iterator<WeakReference<ImageCache>> it = mCaches.iterator();
+			while (it.hasNext()) {
+				final ImageCache cache = it.next().get();
+				if (cache == null) {
+					it.remove();
+				} else {
+					caches.add(cache);
+				}
+			}
+		}
+		long size = 0;
+		for (ImageCache cache : caches) {
+			size += cache.getMemorySize() * 1024L;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The bytes of bitmap memory all caches and decodes hold right now
+	 */
+	public long getUsedSize() {
+		final long resident = getResidentSize();
+		synchronized (this) {
+			return resident + getInFlightSize();
+		}
+	}
+
+	/**
+	 * @return The number of decodes that had to wait for others
+	 */
+	public synchronized int getThrottleCount() {
+		return mThrottleCount;
+	}
+
+	/**
+	 * @return The number of decodes sampled down further to fit
+	 */
+	public synchronized int getDownsampleCount() {
+		return mDownsampleCount;
+	}
+
+	/**
+	 * Size of the bitmap the decoder will allocate, scaled by density like a resource decode.
+	 */
+	static long getDecodedSize(BitmapFactory.Options options) {
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return 0;
+		}
+		final int sampleSize = Math.max(1, options.inSampleSize);
+		double width = (options.outWidth + sampleSize - 1) / sampleSize;
+		double height = (options.outHeight + sampleSize - 1) / sampleSize;
+		if (isScaled(options)) {
+			// Round up, the decoder never produces less than this
+			final double scale = (double) options.inTargetDensity / options.inDensity;
+			width = Math.ceil(width * scale);
+			height = Math.ceil(height * scale);
+		}
+		return (long) (width * height * getBytesPerPixel(options.inPreferredConfig));
+	}
+
+	/**
+	 * @return true if the decoder will scale the sampled image by density
+	 */
+	static boolean isScaled(BitmapFactory.Options options) {
+		return options.inScaled && options.inDensity != 0 && options.inTargetDensity != 0
+				&& options.inDensity != options.inTargetDensity
+				&& options.inDensity != options.inScreenDensity;
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == null) {
+			return 4;
+		}
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.kayac.bitmaputils.BuildConfig;
+import com.kayac.bitmaputils.test.Utils;
+
+/**
+ * Bitmaps that left the memory cache, kept for decoding into through
+ * {@link BitmapFactory.Options#inBitmap}. Bitmaps are indexed by config and by allocation size
+ * in KiB, and the pool is held to its own byte budget by dropping the oldest bitmap first.
+ * <p>
+ * From KitKat on, any pooled bitmap whose allocation is large enough for the decoded image is
+ * reused, within {@link #MAX_SIZE_MULTIPLE} of the size needed so small images do not pin
+ * large allocations. Before KitKat the decoder only reuses a bitmap of exactly the decoded
+ * dimensions with an inSampleSize of 1 and no density scaling, so only those are handed out.
+ *
+ * @author long-nguyen
+ *
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+	private static final int MAX_SIZE_MULTIPLE = 4;
+
+	private final int mMaxSize;
+	private int mSize;
+	// Config -> allocation size in KiB -> bitmaps
+	private final HashMap<Bitmap.Config, TreeMap<Integer, ArrayList<Bitmap>>> mBuckets =
+			new HashMap<Bitmap.Config, TreeMap<Integer, ArrayList<Bitmap>>>();
+	// All pooled bitmaps, oldest first
+	private final LinkedHashSet<Bitmap> mLru = new LinkedHashSet<Bitmap>();
+
+	private int mRequestCount;
+	private int mHitCount;
+	private long mBytesSaved;
+
+	/**
+	 * @param maxSize The byte budget of the pool
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Offer a bitmap that nothing draws anymore for reuse.
+	 *
+	 * @return true if the bitmap was pooled
+	 */
+	public synchronized boolean put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+				|| bitmap.getConfig() == null || mLru.contains(bitmap)) {
+			return false;
+		}
+		final int size = getSize(bitmap);
+		if (size > mMaxSize) {
+			return false;
+		}
+		TreeMap<Integer, ArrayList<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+		if (sizes == null) {
+			sizes = new TreeMap<Integer, ArrayList<Bitmap>>();
+			mBuckets.put(bitmap.getConfig(), sizes);
+		}
+		final Integer key = toKiB(size);
+		ArrayList<Bitmap> bucket = sizes.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>(2);
+			sizes.put(key, bucket);
+		}
+		bucket.add(bitmap);
+		mLru.add(bitmap);
+		mSize += size;
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Take a bitmap the decode described by the options can decode into.
+	 *
+	 * @param options Options with the out* values and inSampleSize populated
+	 * @return A bitmap removed from the pool, or null
+	 */
+	public synchronized Bitmap get(BitmapFactory.Options options) {
+		mRequestCount++;
+		final Bitmap.Config config = options.inPreferredConfig != null
+				? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		final TreeMap<Integer, ArrayList<Bitmap>> sizes = mBuckets.get(config);
+		if (sizes == null || options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		final Bitmap bitmap;
+		final int required;
+		if (Utils.hasKitKat()) {
+			required = (int) BitmapBudget.getDecodedSize(options);
+			bitmap = findLargeEnough(sizes, required);
+		} else {
+			if (options.inSampleSize > 1 || BitmapBudget.isScaled(options)) {
+				return null;
+			}
+			required = options.outWidth * options.outHeight * getBytesPerPixel(config);
+			bitmap = findSameSize(sizes.get(toKiB(required)), options.outWidth, options.outHeight);
+		}
+		if (bitmap == null) {
+			return null;
+		}
+		remove(sizes, bitmap);
+		mHitCount++;
+		mBytesSaved += required;
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Reusing " + bitmap.getWidth() + "x" + bitmap.getHeight() + " for "
+					+ options.outWidth + "x" + options.outHeight);
+		}
+		return bitmap;
+	}
+
+	private Bitmap findLargeEnough(TreeMap<Integer, ArrayList<Bitmap>> sizes, int required) {
+		final int maxKiB = toKiB(required) * MAX_SIZE_MULTIPLE;
+		final SortedMap<Integer, ArrayList<Bitmap>> candidates = sizes.tailMap(toKiB(required));
+		for (Map.Entry<Integer, ArrayList<Bitmap>> entry : candidates.entrySet()) {
+			if (entry.getKey() > maxKiB) {
+				break;
+			}
+			for (Bitmap candidate : entry.getValue()) {
+				// The smallest bucket may hold bitmaps a few bytes short of the requirement
+				if (getSize(candidate) >= required) {
+					return candidate;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Bitmap findSameSize(ArrayList<Bitmap> bucket, int width, int height) {
+		if (bucket != null) {
+			for (Bitmap candidate : bucket) {
+				if (candidate.getWidth() == width && candidate.getHeight() == height) {
+					return candidate;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void remove(TreeMap<Integer, ArrayList<Bitmap>> sizes, Bitmap bitmap) {
+		final int size = getSize(bitmap);
+		final Integer key = toKiB(size);
+		final ArrayList<Bitmap> bucket = sizes.get(key);
+		if (bucket != null) {
+			bucket.remove(bitmap);
+			if (bucket.isEmpty()) {
+				sizes.remove(key);
+			}
+		}
+		mLru.remove(bitmap);
+		mSize -= size;
+	}
+
+	/**
+	 * Drop the oldest bitmaps until the pool holds at most maxSize bytes.
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		while (mSize > maxSize && !mLru.isEmpty()) {
+			final Bitmap eldest = mLru.iterator().next();
+			remove(mBuckets.get(eldest.getConfig()), eldest);
+		}
+	}
+
+	/**
+	 * Drop every pooled bitmap.
+	 */
+	public synchronized void clear() {
+		mBuckets.clear();
+		mLru.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return The bytes held by the pool
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return The share of decodes that found a bitmap to reuse, 0 before the first decode
+	 */
+	public synchronized float getHitRate() {
+		return mRequestCount == 0 ? 0 : (float) mHitCount / mRequestCount;
+	}
+
+	/**
+	 * @return The bytes of bitmap memory that decodes did not have to allocate
+	 */
+	public synchronized long getBytesSaved() {
+		return mBytesSaved;
+	}
+
+	/**
+	 * Size of the bitmap's pixels in its current config. On KitKat a reused bitmap may sit
+	 * in a larger allocation, counting the smaller size keeps the reuse checks on the safe side.
+	 */
+	static int getSize(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int toKiB(int bytes) {
+		return (bytes + 1023) / 1024;
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+}
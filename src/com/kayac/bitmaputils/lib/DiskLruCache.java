@@ -17,18 +17,21 @@
 package com.kayac.bitmaputils.lib;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
@@ -38,14 +41,17 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.HashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
  ******************************************************************************
@@ -91,6 +97,19 @@ import java.util.concurrent.TimeUnit;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  *
+ * <p>Entries are spread over independent segments by the hash of their key.
+ * Each segment has its own lock, LRU order and journal, so operations on keys
+ * of different segments never wait for each other, and files are opened
+ * outside of any lock. The size limit is enforced over the whole cache by
+ * evicting the least recently used entries among the segments. Eviction and
+ * checkpoints run on a background thread, in small batches that lock one
+ * segment at a time, and evicted files are deleted after the lock is released.
+ *
+ * <p>Each segment keeps its index in a binary checkpoint plus a binary journal
+ * of the changes made since, so opening the cache reads one compact image of
+ * the index and replays only a short tail. Caches written by the text journal
+ * of earlier versions are migrated when they are opened.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -102,73 +121,147 @@ public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE_TMP = "journal.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final String VERSION_2 = "2";
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    static final String CHECKPOINT_FILE = "checkpoint";
+    /** Evicted value files wait here to be deleted outside of the segment locks. */
+    static final String TRASH_DIRECTORY = "trash";
+    /** Appended to the name of a deleted cache directory while its files are deleted. */
+    static final String DELETED_DIRECTORY_SUFFIX = ".deleted.";
+    static final String BINARY_SUFFIX = ".bin";
+    /** "DLRC" */
+    static final int BINARY_MAGIC = 0x444c5243;
+    static final int VERSION_3 = 3;
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+    /** Set on the op of a record whose key is 32 lowercase hex digits, stored as 16 bytes. */
+    private static final int FLAG_HEX_KEY = 0x80;
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /** Must be a power of two. */
+    static final int SEGMENT_COUNT = 16;
+    /** The fewest journal records after which a segment writes a new checkpoint. */
+    private static final int CHECKPOINT_MIN_RECORDS = 2000 / SEGMENT_COUNT;
+
+    /**
+     * Edits return once their DIRTY record reached the file system, so no
+     * value file can outlive a crash unrecorded. Commits and removals are
+     * written in the next batch. The default.
+     */
+    public static final int DURABILITY_FLUSH = 0;
+    /**
+     * Edits, commits and removals return once their records were written and
+     * synced to the storage device.
+     */
+    public static final int DURABILITY_SYNC = 1;
+    /**
+     * Nothing waits for the journal, records are written in batches only. A
+     * crash loses the latest records, the files they left behind are swept
+     * when the cache is opened again.
+     */
+    public static final int DURABILITY_LAZY = 2;
+
+    /**
+     * Eviction starts once the size goes over maxSize and goes on until it is
+     * back under this share of it, so it runs in bursts rather than on every
+     * commit.
+     */
+    private static final int LOW_WATERMARK_PERCENT = 90;
+    /** The most entries evicted from a segment while its lock is held. */
+    private static final int EVICTION_BATCH_SIZE = 16;
+
+    /** Records buffered in a segment before a commit is started. */
+    private static final int COMMIT_BATCH_BYTES = 16 * 1024;
+    /** Longest a record waits in memory before it is committed. */
+    private static final long COMMIT_INTERVAL_MILLIS = 1000;
+    /**
+     * One read in this many is recorded in the journal. The checkpoints keep
+     * the exact LRU order, the sampled reads keep the order of the entries
+     * read most between two checkpoints.
+     */
+    private static final int READ_SAMPLE_INTERVAL = 16;
+
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
-     *     libcore.io.DiskLruCache
-     *     1
-     *     100
-     *     2
+     * Each segment keeps its index in two binary files, "checkpoint.N.bin" and
+     * "journal.N.bin". All numbers are big endian as written by DataOutputStream.
+     *
+     * Both files start with the same header: the magic number "DLRC", the
+     * format version 3, the application's version, the value count, the
+     * segment count and the checkpoint generation as a long.
      *
-     *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
-     *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
-     *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
-     *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
-     *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-     *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
-     *     READ 335c4c6028171cfddfbaae1a9c313c52
-     *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+     * The checkpoint is an image of the segment's index at one point. After
+     * the header comes the number of entries and then one entry record per
+     * entry, least recently used first, and at last the CRC32 of everything
+     * before it. It is written to "checkpoint.N.bin.tmp" and renamed in place,
+     * so it is either complete or the previous one.
      *
-     * The first five lines of the journal form its header. They are the
-     * constant string "libcore.io.DiskLruCache", the disk cache's version,
-     * the application's version, the value count, and a blank line.
+     * The journal holds the records appended since the checkpoint of its
+     * generation, each followed by the CRC32 of the record. A record is:
+     *   o the op, CLEAN, DIRTY, REMOVE or READ, with FLAG_HEX_KEY set when the
+     *     key is 32 lowercase hex digits, which the 128-bit MD5 keys of
+     *     ImageCache are.
+     *   o the key, as its 16 bytes with FLAG_HEX_KEY, as modified UTF-8
+     *     otherwise.
+     *   o for CLEAN only, the length of each value and the sequence number of
+     *     the edit that published it.
+     * The ops mean what the text journal lines of the same name did: DIRTY
+     * marks an edit in progress, CLEAN publishes an entry, REMOVE deletes it
+     * and READ moves it to the head of the LRU order.
      *
-     * Each of the subsequent lines in the file is a record of the state of a
-     * cache entry. Each line contains space-separated values: a state, a key,
-     * and optional state-specific values.
-     *   o DIRTY lines track that an entry is actively being created or updated.
-     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
-     *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
-     *     temporary files may need to be deleted.
-     *   o CLEAN lines track a cache entry that has been successfully published
-     *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
-     *   o REMOVE lines track entries that have been deleted.
+     * Opening a segment loads its checkpoint and replays the journal on top of
+     * it. A journal of an older generation is left over from a crash between
+     * writing a checkpoint and starting its journal, the checkpoint already
+     * holds its records and it is skipped. A torn or corrupt record ends the
+     * replay, the records up to it stand and a new checkpoint is written
+     * right away. Once the journal holds as many records as the segment has
+     * entries, a new checkpoint replaces both files.
      *
-     * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * Records are not written as they are made. Each segment appends them to
+     * a buffer in memory, and the journal appender thread writes the buffers
+     * to the journals in batches. How long an operation waits for its record
+     * to be written depends on the durability mode. Reads are recorded only
+     * one in READ_SAMPLE_INTERVAL times.
+     *
+     * Caches found with the text journals of version 1 ("journal") or version
+     * 2 ("journal.N", one per segment) are read once and rewritten as
+     * checkpoints.
      */
 
     private final File directory;
+    private final File trashDirectory;
     private final File journalFile;
     private final File journalFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private final int durability;
+    private final AtomicLong size = new AtomicLong();
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private volatile boolean closed = true;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    /**
+     * Ticks on every access, so eviction can pick the least recently used
+     * entry across segments from the eldest entry of each.
+     */
+    private final AtomicLong accessClock = new AtomicLong();
+
+    private final JournalAppender appender = new JournalAppender();
 
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -266,32 +359,86 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /** This cache uses a single background thread to evict entries. */
+    /**
+     * This cache uses a single background thread for its maintenance: evicting
+     * entries, writing checkpoints and deleting files.
+     */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /** A cleanup is queued and has not started yet. */
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
-            synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
-                    return null; // closed
+            // Whatever asks for a cleanup from now on queues another one
+            cleanupScheduled.set(false);
+            if (closed) {
+                return null;
+            }
+            trimToSize();
+            for (Segment segment : segments) {
+                final boolean required;
+                synchronized (segment) {
+                    required = segment.journalOut != null && segment.checkpointRequired();
+                }
+                if (required) {
+                    segment.writeCheckpoint();
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Deletes the value files no entry accounts for, left behind by a crash
+     * before their records were written.
+     */
+    private final Callable<Void> sweepCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            // Evicted files a crash kept from being deleted
+            deleteQuietly(trashDirectory, false);
+            final String[] names = directory.list();
+            if (names == null) {
+                return null;
+            }
+            for (String name : names) {
+                if (closed) {
+                    return null;
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                if (name.startsWith(JOURNAL_FILE) || name.startsWith(CHECKPOINT_FILE)) {
+                    continue;
+                }
+                final boolean dirty = name.endsWith(".tmp");
+                final String value = dirty ? name.substring(0, name.length() - 4) : name;
+                final int dot = value.lastIndexOf('.');
+                if (dot <= 0) {
+                    continue;
+                }
+                final String key = value.substring(0, dot);
+                final Segment segment = segmentFor(key);
+                synchronized (segment) {
+                    final int id = segment.index.find(key);
+                    if (id == DiskLruIndex.NONE || dirty && !segment.index.isEditing(id)) {
+                        new File(directory, name).delete();
+                    }
                 }
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            int durability) {
         this.directory = directory;
+        this.trashDirectory = new File(directory, TRASH_DIRECTORY);
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.durability = durability;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(i);
+        }
     }
 
     /**
@@ -306,6 +453,24 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, DURABILITY_FLUSH);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param durability how long operations wait for their journal records,
+     *     {@link #DURABILITY_FLUSH}, {@link #DURABILITY_SYNC} or
+     *     {@link #DURABILITY_LAZY}
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int durability) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -314,13 +479,50 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, durability);
+        final boolean binary = cache.segments[0].checkpointFile.exists();
+        final boolean text = !binary && cache.segments[0].textJournalFile.exists();
+        final boolean legacy = !binary && !text && cache.journalFile.exists();
+        if (binary || text || legacy) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (legacy) {
+                    // A journal from before segments, spread its entries over the segments
+                    cache.readLegacyJournal();
+                }
+                boolean torn = false;
+                for (Segment segment : cache.segments) {
+                    if (binary) {
+                        segment.readCheckpoint();
+                        segment.readJournal();
+                    } else if (text) {
+                        segment.readTextJournal();
+                    }
+                    segment.processJournal();
+                    torn |= segment.tornJournal;
+                    if (!binary || segment.tornJournal) {
+                        segment.writeCheckpoint();
+                    } else {
+                        segment.openJournal();
+                    }
+                }
+                if (legacy) {
+                    deleteIfExists(cache.journalFile);
+                } else if (text) {
+                    for (Segment segment : cache.segments) {
+                        deleteIfExists(segment.textJournalFile);
+                    }
+                }
+                cache.closed = false;
+                cache.appender.start();
+                cache.trashDirectory.mkdirs();
+                final String[] trash = cache.trashDirectory.list();
+                if (torn || durability == DURABILITY_LAZY || trash != null && trash.length > 0) {
+                    cache.executorService.submit(cache.sweepCallable);
+                }
+                if (cache.size.get() > maxSize) {
+                    cache.scheduleCleanup();
+                }
+                cache.purgeDeletedDirectories();
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,12 +533,70 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, durability);
+        for (Segment segment : cache.segments) {
+            segment.writeCheckpoint();
+        }
+        cache.closed = false;
+        cache.appender.start();
+        cache.trashDirectory.mkdirs();
+        cache.purgeDeletedDirectories();
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * Deletes what is left of earlier deletes of this cache, in the background.
+     */
+    private void purgeDeletedDirectories() {
+        final File parent = directory.getAbsoluteFile().getParentFile();
+        final File[] files = parent != null ? parent.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        final String prefix = directory.getName() + DELETED_DIRECTORY_SUFFIX;
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                deleteInBackground(file);
+            }
+        }
+    }
+
+    private void deleteInBackground(final File dir) {
+        executorService.submit(new Callable<Void>() {
+            @Override public Void call() {
+                deleteQuietly(dir, true);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Deletes what is in {@code dir}, and {@code dir} itself if asked to,
+     * skipping what fails to delete.
+     */
+    private static void deleteQuietly(File dir, boolean andDirectory) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteQuietly(file, true);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        if (andDirectory) {
+            dir.delete();
+        }
+    }
+
+    private void scheduleCleanup() {
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    private void readLegacyJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
@@ -354,102 +614,21 @@ public final class DiskLruCache implements Closeable {
             }
 
             while (true) {
+                final String line;
                 try {
-                    readJournalLine(readAsciiLine(in));
+                    line = readAsciiLine(in);
                 } catch (EOFException endOfJournal) {
                     break;
                 }
+                final int keyStart = line.indexOf(' ') + 1;
+                final int keyEnd = line.indexOf(' ', keyStart);
+                final String key = keyEnd < 0 ? line.substring(keyStart) : line.substring(keyStart, keyEnd);
+                segmentFor(key).readTextJournalLine(line);
             }
         } finally {
             closeQuietly(in);
         }
-    }
-
-    private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length < 2) {
-            throw new IOException("unexpected journal line: " + line);
-        }
-
-        String key = parts[1];
-        if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
-            return;
-        }
-
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        }
-
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
-            entry.readable = true;
-            entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
-            entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
-        } else {
-            throw new IOException("unexpected journal line: " + line);
-        }
-    }
-
-    /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
-     */
-    private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
-            if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
-                }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
-                }
-                i.remove();
-            }
-        }
-    }
-
-    /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
-     */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
-
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            }
-        }
-
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -465,45 +644,91 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private static void renameTo(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("failed to rename " + from + " to " + to);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        // Spread the bits, journal keys are hex digests that mostly differ in their low bits
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
+        final Segment segment = segmentFor(key);
+        final long sequenceNumber;
+        final boolean recordRead;
+        final File[] files = new File[valueCount];
+        synchronized (segment) {
+            final int id = segment.index.find(key);
+            if (id == DiskLruIndex.NONE) {
+                return null;
+            }
 
-        if (!entry.readable) {
-            return null;
+            if (!segment.index.isReadable(id)) {
+                return null;
+            }
+
+            segment.touch(id);
+            recordRead = segment.sampleRead();
+            sequenceNumber = segment.index.getSequenceNumber(id);
+            for (int i = 0; i < valueCount; i++) {
+                files[i] = getCleanFile(key, i);
+            }
         }
 
         /*
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
+         * from different edits. The files are opened outside the segment's
+         * lock, so a slow open does not hold up other keys of the segment.
          */
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                ins[i] = new FileInputStream(files[i]);
             }
         } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
+            // a file must have been deleted manually, or the entry was just removed
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
             return null;
         }
+        if (!recordRead) {
+            return new Snapshot(key, sequenceNumber, ins);
+        }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        final boolean rebuild;
+        synchronized (segment) {
+            if (segment.journalOut == null) {
+                // closed while the files were opened, they are still readable
+                return new Snapshot(key, sequenceNumber, ins);
+            }
+            final int id = segment.index.find(key);
+            if (id == DiskLruIndex.NONE) {
+                // removed meantime, the open files stay readable
+                return new Snapshot(key, sequenceNumber, ins);
+            }
+            segment.appendRecord(OP_READ, id);
+            rebuild = segment.checkpointRequired();
+        }
+        if (rebuild) {
+            scheduleCleanup();
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
     }
 
     /**
@@ -514,27 +739,41 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        final Segment segment = segmentFor(key);
+        final Editor editor;
+        final long ticket;
+        synchronized (segment) {
+            segment.checkNotClosed();
+            int id = segment.index.find(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (id == DiskLruIndex.NONE
+                            || segment.index.getSequenceNumber(id) != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (id == DiskLruIndex.NONE) {
+                id = segment.index.insert(key);
+            } else if (segment.index.isEditing(id)) {
+                return null; // another edit is in progress
+            }
+            segment.touch(id);
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            editor = new Editor(key, segment);
+            segment.setEditor(id, key, editor);
+            ticket = segment.appendRecord(OP_DIRTY, id);
+        }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        if (durability != DURABILITY_LAZY) {
+            // commit the journal before creating files to prevent file leaks
+            try {
+                appender.awaitCommit(segment, ticket);
+            } catch (IOException e) {
+                editor.abortUnlessCommitted();
+                throw e;
+            }
+        }
         return editor;
     }
 
@@ -558,113 +797,109 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        return size.get();
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        final String key = editor.key;
+        final Segment segment = editor.segment;
+        final boolean cleanup;
+        final long ticket;
+        synchronized (segment) {
+            if (segment.editors.get(key) != editor) {
+                throw new IllegalStateException();
+            }
+            segment.checkNotClosed();
+            final int id = segment.index.find(key);
+            final DiskLruIndex index = segment.index;
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !index.isReadable(id)) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!getDirtyFile(key, i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
+                }
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+                File dirty = getDirtyFile(key, i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = getCleanFile(key, i);
+                        dirty.renameTo(clean);
+                        long oldLength = index.getLength(id, i);
+                        long newLength = clean.length();
+                        index.setLength(id, i, newLength);
+                        size.addAndGet(newLength - oldLength);
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            segment.setEditor(id, key, null);
+            if (index.isReadable(id) | success) {
+                index.setReadable(id);
+                if (success) {
+                    index.setSequenceNumber(id, nextSequenceNumber.getAndIncrement());
                 }
+                ticket = segment.appendRecord(OP_CLEAN, id);
             } else {
-                deleteIfExists(dirty);
+                ticket = segment.appendRecord(OP_REMOVE, id);
+                index.remove(id);
             }
+            cleanup = segment.checkpointRequired();
         }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        if (durability == DURABILITY_SYNC) {
+            appender.awaitCommit(segment, ticket);
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (size.get() > maxSize || cleanup) {
+            scheduleCleanup();
         }
     }
 
-    /**
-     * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
-     */
-    private boolean journalRebuildRequired() {
-        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
-    }
-
     /**
      * Drops the entry for {@code key} if it exists and can be removed. Entries
      * actively being edited cannot be removed.
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
+        final Segment segment = segmentFor(key);
+        final boolean removed;
+        final boolean rebuild;
+        final long ticket;
+        synchronized (segment) {
+            segment.checkNotClosed();
+            removed = segment.removeEntry(key);
+            rebuild = removed && segment.checkpointRequired();
+            ticket = segment.appendedTicket;
         }
-
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
-            }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
+        if (rebuild) {
+            scheduleCleanup();
         }
-
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
-
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (removed && durability == DURABILITY_SYNC) {
+            appender.awaitCommit(segment, ticket);
         }
-
-        return true;
+        return removed;
     }
 
     /**
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return closed;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (closed) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -672,45 +907,111 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+        if (size.get() > maxSize) {
+            // Evicting is left to the background, flush is called on the UI's lifecycle events
+            scheduleCleanup();
+        }
+        for (Segment segment : segments) {
+            segment.commit();
+            if (segment.commitFailure != null) {
+                throw segment.commitFailure;
+            }
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
+    public void close() throws IOException {
+        synchronized (segments) {
+            if (closed) {
+                return; // already closed
+            }
+            // Turn new operations away, the ones already running finish first
+            // as each segment is locked in turn below
+            closed = true;
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        for (Segment segment : segments) {
+            final ArrayList<Editor> editing;
+            synchronized (segment) {
+                editing = new ArrayList<Editor>(segment.editors.values());
+            }
+            for (Editor editor : editing) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException ignored) {
+                    // committed in the meantime
+                }
+            }
+        }
+        try {
+            for (Segment segment : segments) {
+                synchronized (segment.fileLock) {
+                    synchronized (segment) {
+                        segment.closeJournal();
+                    }
+                }
             }
+        } finally {
+            appender.stop();
         }
-        trimToSize();
-        journalWriter.close();
-        journalWriter = null;
     }
 
+    /**
+     * Evicts the least recently used entries once the cache is over its max
+     * size, until it is back under the low watermark. Each round locks the
+     * segments one at a time to find the one with the oldest entry, then
+     * evicts a batch of its entries older than the eldest of every other
+     * segment. The files of the batch are deleted once the lock is released.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        if (size.get() <= maxSize) {
+            return;
+        }
+        final long lowWatermark = maxSize / 100 * LOW_WATERMARK_PERCENT;
+        final ArrayList<File> trash = new ArrayList<File>();
+        while (size.get() > lowWatermark && !closed) {
+            Segment oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            long nextAccess = Long.MAX_VALUE;
+            for (Segment segment : segments) {
+                final long access = segment.eldestAccessOrder();
+                if (access < oldestAccess) {
+                    oldest = segment;
+                    nextAccess = oldestAccess;
+                    oldestAccess = access;
+                } else if (access < nextAccess) {
+                    nextAccess = access;
+                }
+            }
+            if (oldest == null || oldest.evictBatch(nextAccess, lowWatermark, trash) == 0) {
+                return; // everything left is being edited
+            }
+            for (File file : trash) {
+                file.delete();
+            }
+            trash.clear();
         }
     }
 
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
-     * the cache.
+     * the cache. The directory is renamed away right away and its files are
+     * deleted in the background, so a new cache can be opened in the same
+     * directory as soon as this returns.
      */
     public void delete() throws IOException {
         close();
-        deleteContents(directory);
+        final File deleted = new File(directory.getAbsoluteFile().getParentFile(),
+                directory.getName() + DELETED_DIRECTORY_SUFFIX + System.currentTimeMillis());
+        if (directory.renameTo(deleted)) {
+            deleteInBackground(deleted);
+        } else {
+            deleteContents(directory);
+        }
     }
 
     private void validateKey(String key) {
@@ -720,10 +1021,780 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private File getCleanFile(String key, int i) {
+        return new File(directory, key + "." + i);
+    }
+
+    private File getDirtyFile(String key, int i) {
+        return new File(directory, key + "." + i + ".tmp");
+    }
+
     private static String inputStreamToString(InputStream in) throws IOException {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    /**
+     * A share of the entries, those whose keys hash to it, with its own lock,
+     * LRU order, checkpoint and journal. Operations on keys of different
+     * segments never wait for each other; the size of the whole cache is kept
+     * in one atomic counter.
+     */
+    private final class Segment {
+        private final File checkpointFile;
+        private final File checkpointFileTmp;
+        private final File journalFile;
+        private final File journalFileTmp;
+        /** The version 2 text journal, only read to migrate it. */
+        private final File textJournalFile;
+        /**
+         * Guards the journal file. Commits and checkpoints hold it while they
+         * write, and take it before the segment's own lock.
+         */
+        private final Object fileLock = new Object();
+        private FileOutputStream journalOut;
+        /** The records not committed to the journal yet. */
+        private RecordBuffer pending = new RecordBuffer();
+        /** The batch being committed, swapped with pending. */
+        private RecordBuffer committing = new RecordBuffer();
+        /** Counts the records appended, each record's ticket is the count after it. */
+        private long appendedTicket;
+        /** The ticket of the last record committed, guarded by the appender. */
+        private long committedTicket;
+        /** Why the last commit failed, until a checkpoint makes up for it. */
+        private volatile IOException commitFailure;
+        private int readCount;
+        /** The journal was closed with the cache, no checkpoint may open it again. */
+        private boolean shutdown;
+        /** The entries in LRU order. */
+        private final DiskLruIndex index = new DiskLruIndex(valueCount);
+        /** The edits in progress, few at a time, their entries are flagged in the index. */
+        private final HashMap<String, Editor> editors = new HashMap<String, Editor>();
+        /** The generation of the checkpoint, the journal only holds records of the same one. */
+        private long generation;
+        /** Records appended to the journal since the checkpoint. */
+        private int journalRecordCount;
+        /** Replaying the journal stopped at a torn or corrupt record. */
+        private boolean tornJournal;
+
+        // Reused to serialize a journal record and to read one back before its CRC is checked
+        private final RecordBuffer record = new RecordBuffer();
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private final CRC32 crc = new CRC32();
+        private String recordKey;
+        private long recordKeyHigh;
+        private long recordKeyLow;
+        private final long[] recordLengths = new long[valueCount];
+        private long recordSequenceNumber;
+
+        private Segment(int index) {
+            this.checkpointFile = new File(directory, CHECKPOINT_FILE + "." + index + BINARY_SUFFIX);
+            this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE + "." + index + BINARY_SUFFIX + ".tmp");
+            this.journalFile = new File(directory, JOURNAL_FILE + "." + index + BINARY_SUFFIX);
+            this.journalFileTmp = new File(directory, JOURNAL_FILE + "." + index + BINARY_SUFFIX + ".tmp");
+            this.textJournalFile = new File(directory, JOURNAL_FILE + "." + index);
+        }
+
+        private void readCheckpoint() throws IOException {
+            crc.reset();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                    new FileInputStream(checkpointFile), IO_BUFFER_SIZE), crc));
+            try {
+                generation = readHeader(in);
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    applyRecord(readRecord(in, in.readUnsignedByte()));
+                }
+                final int expected = (int) crc.getValue();
+                if (in.readInt() != expected) {
+                    throw new IOException("corrupt checkpoint: " + checkpointFile);
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private void readJournal() throws IOException {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                    new FileInputStream(journalFile), IO_BUFFER_SIZE), crc));
+            try {
+                final long journalGeneration = readHeader(in);
+                if (journalGeneration < generation) {
+                    // Left over from a crash after the checkpoint was written, which has its records
+                    tornJournal = true;
+                    return;
+                }
+                if (journalGeneration != generation) {
+                    throw new IOException("journal ahead of checkpoint: " + journalFile);
+                }
+
+                while (true) {
+                    crc.reset();
+                    final int op = in.read();
+                    if (op == -1) {
+                        break;
+                    }
+                    try {
+                        readRecord(in, op);
+                        final int expected = (int) crc.getValue();
+                        if (in.readInt() != expected) {
+                            tornJournal = true;
+                            break;
+                        }
+                    } catch (EOFException partialRecord) {
+                        tornJournal = true;
+                        break;
+                    } catch (IOException corruptRecord) {
+                        tornJournal = true;
+                        break;
+                    }
+                    applyRecord(op);
+                    journalRecordCount++;
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private long readHeader(DataInputStream in) throws IOException {
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            final int appVersionValue = in.readInt();
+            final int valueCountValue = in.readInt();
+            final int segmentCountValue = in.readInt();
+            final long headerGeneration = in.readLong();
+            if (magic != BINARY_MAGIC
+                    || version != VERSION_3
+                    || appVersionValue != appVersion
+                    || valueCountValue != valueCount
+                    || segmentCountValue != SEGMENT_COUNT) {
+                throw new IOException("unexpected journal header: ["
+                        + Integer.toHexString(magic) + ", " + version + ", " + appVersionValue + ", "
+                        + valueCountValue + ", " + segmentCountValue + "]");
+            }
+            return headerGeneration;
+        }
+
+        private void writeHeader(DataOutputStream out, long headerGeneration) throws IOException {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(VERSION_3);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeInt(SEGMENT_COUNT);
+            out.writeLong(headerGeneration);
+        }
+
+        /**
+         * Reads the rest of a record into recordKey, or recordKeyHigh and
+         * recordKeyLow for a hex key, recordLengths and recordSequenceNumber.
+         *
+         * @return The op without its flags
+         */
+        private int readRecord(DataInputStream in, int op) throws IOException {
+            if ((op & FLAG_HEX_KEY) != 0) {
+                recordKey = null;
+                recordKeyHigh = in.readLong();
+                recordKeyLow = in.readLong();
+            } else {
+                recordKey = in.readUTF();
+            }
+            op &= ~FLAG_HEX_KEY;
+            if (op == OP_CLEAN) {
+                for (int i = 0; i < valueCount; i++) {
+                    recordLengths[i] = in.readLong();
+                }
+                recordSequenceNumber = in.readLong();
+            } else if (op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+                throw new IOException("unexpected journal op: " + op);
+            }
+            return op;
+        }
+
+        private void applyRecord(int op) {
+            op &= ~FLAG_HEX_KEY;
+            int id = recordKey != null
+                    ? index.find(recordKey) : index.find(recordKeyHigh, recordKeyLow);
+            if (op == OP_REMOVE) {
+                if (id != DiskLruIndex.NONE) {
+                    index.remove(id);
+                }
+                return;
+            }
+
+            if (id == DiskLruIndex.NONE) {
+                id = recordKey != null
+                        ? index.insert(recordKey) : index.insert(recordKeyHigh, recordKeyLow);
+            }
+            touch(id);
+
+            if (op == OP_CLEAN) {
+                index.setReadable(id);
+                index.setEditing(id, false);
+                for (int i = 0; i < valueCount; i++) {
+                    index.setLength(id, i, recordLengths[i]);
+                }
+                index.setSequenceNumber(id, recordSequenceNumber);
+                if (recordSequenceNumber >= nextSequenceNumber.get()) {
+                    nextSequenceNumber.set(recordSequenceNumber + 1);
+                }
+            } else if (op == OP_DIRTY) {
+                // only flagged, processJournal drops entries left in edit
+                index.setEditing(id, true);
+            }
+            // OP_READ, this work was already done by touch()
+        }
+
+        /**
+         * Serializes a record of the entry into the reusable buffer.
+         */
+        private void serializeRecord(int op, int id) throws IOException {
+            record.reset();
+            if (index.isHexKey(id)) {
+                recordOut.writeByte(op | FLAG_HEX_KEY);
+                recordOut.writeLong(index.getKeyHigh(id));
+                recordOut.writeLong(index.getKeyLow(id));
+            } else {
+                recordOut.writeByte(op);
+                recordOut.writeUTF(index.getKey(id));
+            }
+            if (op == OP_CLEAN) {
+                for (int i = 0; i < valueCount; i++) {
+                    recordOut.writeLong(index.getLength(id, i));
+                }
+                recordOut.writeLong(index.getSequenceNumber(id));
+            }
+        }
+
+        /**
+         * Appends a record of the entry and its CRC to the records waiting for
+         * the journal. Must be called with the segment locked.
+         *
+         * @return The ticket of the record, to wait for its commit with
+         */
+        private long appendRecord(int op, int id) throws IOException {
+            serializeRecord(op, id);
+            crc.reset();
+            final boolean first = pending.size() == 0;
+            record.writeTo(pending, crc);
+            pending.writeInt((int) crc.getValue());
+            journalRecordCount++;
+            if (first) {
+                appender.recordsPending();
+            } else if (pending.size() >= COMMIT_BATCH_BYTES) {
+                appender.requestCommit();
+            }
+            return ++appendedTicket;
+        }
+
+        /**
+         * @return true if this read should be recorded in the journal
+         */
+        private boolean sampleRead() {
+            return ++readCount % READ_SAMPLE_INTERVAL == 0;
+        }
+
+        /**
+         * Writes the records appended so far to the journal. Appending goes on
+         * in the meantime, only other commits and checkpoints of the segment
+         * wait.
+         */
+        private void commit() {
+            synchronized (fileLock) {
+                final RecordBuffer batch;
+                final long ticket;
+                final FileOutputStream out;
+                synchronized (this) {
+                    out = journalOut;
+                    if (out == null) {
+                        return; // closed, the records went out with closeJournal()
+                    }
+                    batch = pending;
+                    ticket = appendedTicket;
+                    pending = committing;
+                    committing = batch;
+                }
+                try {
+                    if (batch.size() > 0) {
+                        batch.writeTo(out, null);
+                        if (durability == DURABILITY_SYNC) {
+                            out.getFD().sync();
+                        }
+                    }
+                } catch (IOException e) {
+                    // The journal misses records now, the next checkpoint replaces it
+                    commitFailure = e;
+                    scheduleCleanup();
+                }
+                batch.reset();
+                appender.committed(this, ticket);
+            }
+        }
+
+        /**
+         * Writes the records left and closes the journal. Must be called with
+         * fileLock and the segment locked.
+         */
+        private void closeJournal() throws IOException {
+            if (journalOut == null) {
+                return;
+            }
+            try {
+                pending.writeTo(journalOut, null);
+                if (durability == DURABILITY_SYNC) {
+                    journalOut.getFD().sync();
+                }
+            } finally {
+                pending.reset();
+                journalOut.close();
+                journalOut = null;
+                shutdown = true;
+                appender.committed(this, appendedTicket);
+            }
+        }
+
+        private void readTextJournal() throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(textJournalFile), IO_BUFFER_SIZE);
+            try {
+                String magic = readAsciiLine(in);
+                String version = readAsciiLine(in);
+                String appVersionString = readAsciiLine(in);
+                String valueCountString = readAsciiLine(in);
+                String segmentCountString = readAsciiLine(in);
+                String blank = readAsciiLine(in);
+                if (!MAGIC.equals(magic)
+                        || !VERSION_2.equals(version)
+                        || !Integer.toString(appVersion).equals(appVersionString)
+                        || !Integer.toString(valueCount).equals(valueCountString)
+                        || !Integer.toString(SEGMENT_COUNT).equals(segmentCountString)
+                        || !"".equals(blank)) {
+                    throw new IOException("unexpected journal header: ["
+                            + magic + ", " + version + ", " + valueCountString + ", "
+                            + segmentCountString + ", " + blank + "]");
+                }
+
+                while (true) {
+                    try {
+                        readTextJournalLine(readAsciiLine(in));
+                    } catch (EOFException endOfJournal) {
+                        break;
+                    }
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        private void readTextJournalLine(String line) throws IOException {
+            String[] parts = line.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+
+            String key = parts[1];
+            int id = index.find(key);
+            if (parts[0].equals(REMOVE) && parts.length == 2) {
+                if (id != DiskLruIndex.NONE) {
+                    index.remove(id);
+                }
+                return;
+            }
+
+            if (id == DiskLruIndex.NONE) {
+                id = index.insert(key);
+            }
+            touch(id);
+
+            if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+                index.setReadable(id);
+                index.setEditing(id, false);
+                setLengths(id, copyOfRange(parts, 2, parts.length));
+            } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+                index.setEditing(id, true);
+            } else if (parts[0].equals(READ) && parts.length == 2) {
+                // this work was already done by touch()
+            } else {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        }
+
+        /**
+         * Set lengths using decimal numbers like "10123".
+         */
+        private void setLengths(int id, String[] strings) throws IOException {
+            if (strings.length != valueCount) {
+                throw invalidLengths(strings);
+            }
+
+            try {
+                for (int i = 0; i < strings.length; i++) {
+                    index.setLength(id, i, Long.parseLong(strings[i]));
+                }
+            } catch (NumberFormatException e) {
+                throw invalidLengths(strings);
+            }
+        }
+
+        private IOException invalidLengths(String[] strings) throws IOException {
+            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+        }
+
+        /**
+         * Computes the initial size and collects garbage as a part of opening the
+         * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+         */
+        private void processJournal() throws IOException {
+            deleteIfExists(checkpointFileTmp);
+            deleteIfExists(journalFileTmp);
+            int id = index.eldest();
+            while (id != DiskLruIndex.NONE) {
+                final int next = index.next(id);
+                if (!index.isEditing(id)) {
+                    for (int t = 0; t < valueCount; t++) {
+                        size.addAndGet(index.getLength(id, t));
+                    }
+                } else {
+                    final String key = index.getKey(id);
+                    for (int t = 0; t < valueCount; t++) {
+                        deleteIfExists(getCleanFile(key, t));
+                        deleteIfExists(getDirtyFile(key, t));
+                    }
+                    index.remove(id);
+                }
+                id = next;
+            }
+        }
+
+        private void openJournal() throws IOException {
+            journalOut = new FileOutputStream(journalFile, true);
+        }
+
+        /**
+         * Writes the index as a new checkpoint and starts an empty journal of
+         * its generation. This replaces the current checkpoint and journal if
+         * they exist. The segment is only locked to copy the index into
+         * memory, reads and edits go on while the files are written; their
+         * records wait for the new journal. Must not be called with the
+         * segment locked.
+         */
+        private void writeCheckpoint() throws IOException {
+            synchronized (fileLock) {
+                final RecordBuffer image = new RecordBuffer();
+                final int count;
+                final long ticket;
+                final long nextGeneration;
+                synchronized (this) {
+                    if (shutdown) {
+                        return;
+                    }
+                    count = index.size();
+                    for (int id = index.eldest(); id != DiskLruIndex.NONE; id = index.next(id)) {
+                        serializeRecord(index.isEditing(id) ? OP_DIRTY : OP_CLEAN, id);
+                        record.writeTo(image, null);
+                    }
+                    // The image holds what the records waiting so far recorded
+                    pending.reset();
+                    journalRecordCount = 0;
+                    ticket = appendedTicket;
+                    nextGeneration = generation + 1;
+                }
+
+                final FileOutputStream newJournal;
+                try {
+                    final CRC32 checksum = new CRC32();
+                    final FileOutputStream file = new FileOutputStream(checkpointFileTmp);
+                    DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                            new BufferedOutputStream(file, IO_BUFFER_SIZE), checksum));
+                    try {
+                        writeHeader(out, nextGeneration);
+                        out.writeInt(count);
+                        image.writeTo(out, null);
+                        out.writeInt((int) checksum.getValue());
+                        if (durability == DURABILITY_SYNC) {
+                            out.flush();
+                            file.getFD().sync();
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    renameTo(checkpointFileTmp, checkpointFile);
+
+                    out = new DataOutputStream(new FileOutputStream(journalFileTmp));
+                    try {
+                        writeHeader(out, nextGeneration);
+                    } finally {
+                        out.close();
+                    }
+                    renameTo(journalFileTmp, journalFile);
+                    newJournal = new FileOutputStream(journalFile, true);
+                } catch (IOException e) {
+                    // The dropped records are missing from the journal, try again at the next cleanup
+                    commitFailure = e;
+                    throw e;
+                }
+
+                final FileOutputStream oldJournal;
+                synchronized (this) {
+                    oldJournal = journalOut;
+                    journalOut = newJournal;
+                    generation = nextGeneration;
+                    tornJournal = false;
+                    commitFailure = null;
+                }
+                closeQuietly(oldJournal);
+                appender.committed(this, ticket);
+            }
+        }
+
+        /**
+         * We only write a checkpoint once the journal has as many records as
+         * the segment has entries, and at least this segment's share of 2000,
+         * so replaying it never takes longer than loading the checkpoint.
+         */
+        private boolean checkpointRequired() {
+            return commitFailure != null
+                    || journalRecordCount >= CHECKPOINT_MIN_RECORDS
+                    && journalRecordCount >= index.size();
+        }
+
+        /**
+         * Catches the cache being closed between the check at the start of an
+         * operation and taking the segment's lock.
+         */
+        private void checkNotClosed() {
+            if (journalOut == null) {
+                throw new IllegalStateException("cache is closed");
+            }
+        }
+
+        /**
+         * Must be called with the segment locked.
+         */
+        private boolean removeEntry(String key) throws IOException {
+            final int id = index.find(key);
+            if (id == DiskLruIndex.NONE || index.isEditing(id)) {
+                return false;
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                File file = getCleanFile(key, i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size.addAndGet(-index.getLength(id, i));
+                index.setLength(id, i, 0);
+            }
+
+            appendRecord(OP_REMOVE, id);
+            index.remove(id);
+            return true;
+        }
+
+        /**
+         * @return The access order of the least recently used entry that can be
+         *     evicted, or Long.MAX_VALUE if there is none
+         */
+        private synchronized long eldestAccessOrder() {
+            final int eldest = findEldest();
+            return eldest != DiskLruIndex.NONE ? index.getAccessOrder(eldest) : Long.MAX_VALUE;
+        }
+
+        /**
+         * Evicts up to EVICTION_BATCH_SIZE of the least recently used entries,
+         * while the cache is over {@code targetSize} and the entries were used
+         * no later than {@code accessLimit}, the first one in any case. Their
+         * value files are only moved to the trash directory under the lock and
+         * added to {@code trash}, for the caller to delete.
+         *
+         * @return The number of entries evicted
+         */
+        private synchronized int evictBatch(long accessLimit, long targetSize, ArrayList<File> trash)
+                throws IOException {
+            if (journalOut == null) {
+                return 0;
+            }
+            int evicted = 0;
+            while (evicted < EVICTION_BATCH_SIZE && size.get() > targetSize) {
+                final int id = findEldest();
+                if (id == DiskLruIndex.NONE || evicted > 0 && index.getAccessOrder(id) > accessLimit) {
+                    break;
+                }
+                final String key = index.getKey(id);
+                for (int i = 0; i < valueCount; i++) {
+                    final File file = getCleanFile(key, i);
+                    final File doomed = new File(trashDirectory, file.getName());
+                    if (file.renameTo(doomed)) {
+                        trash.add(doomed);
+                    } else {
+                        file.delete();
+                    }
+                    size.addAndGet(-index.getLength(id, i));
+                }
+                appendRecord(OP_REMOVE, id);
+                index.remove(id);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private int findEldest() {
+            for (int id = index.eldest(); id != DiskLruIndex.NONE; id = index.next(id)) {
+                if (!index.isEditing(id)) {
+                    return id;
+                }
+            }
+            return DiskLruIndex.NONE;
+        }
+
+        /**
+         * Moves the entry to the head of the LRU order.
+         */
+        private void touch(int id) {
+            index.touch(id);
+            index.setAccessOrder(id, accessClock.incrementAndGet());
+        }
+
+        private void setEditor(int id, String key, Editor editor) {
+            if (editor != null) {
+                editors.put(key, editor);
+            } else {
+                editors.remove(key);
+            }
+            index.setEditing(id, editor != null);
+        }
+    }
+
+    /**
+     * A byte buffer that copies itself out without handing out a copy of its
+     * array, updating a CRC on the way.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private RecordBuffer() {
+            super(64);
+        }
+
+        private void writeTo(OutputStream out, CRC32 checksum) throws IOException {
+            if (checksum != null) {
+                checksum.update(buf, 0, count);
+            }
+            out.write(buf, 0, count);
+        }
+
+        private void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+    }
+
+    /**
+     * Commits the records the segments buffer to their journals, from its own
+     * thread. A commit starts once a segment buffered COMMIT_BATCH_BYTES, once
+     * the oldest record waited COMMIT_INTERVAL_MILLIS, or as soon as somebody
+     * waits for a record. Everybody waiting at that time shares the one write,
+     * and the one sync with {@link #DURABILITY_SYNC}.
+     */
+    private final class JournalAppender implements Runnable {
+        private boolean started;
+        private boolean stopped;
+        private boolean commitRequested;
+        /** When the oldest record waiting was appended, 0 if none is. */
+        private long pendingSince;
+
+        private synchronized void start() {
+            if (!started) {
+                started = true;
+                final Thread thread = new Thread(this, "DiskLruCache journal");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        /**
+         * A segment's buffer got its first record since the last commit.
+         */
+        private synchronized void recordsPending() {
+            if (pendingSince == 0) {
+                pendingSince = Math.max(1, System.nanoTime() / 1000000);
+                notifyAll();
+            }
+        }
+
+        private synchronized void requestCommit() {
+            commitRequested = true;
+            notifyAll();
+        }
+
+        private synchronized void committed(Segment segment, long ticket) {
+            if (ticket > segment.committedTicket) {
+                segment.committedTicket = ticket;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the record of the ticket is committed to the segment's
+         * journal, or the cache is closed.
+         */
+        private void awaitCommit(Segment segment, long ticket) throws IOException {
+            synchronized (this) {
+                if (segment.committedTicket < ticket && !stopped) {
+                    commitRequested = true;
+                    notifyAll();
+                    while (segment.committedTicket < ticket && !stopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+            }
+            final IOException failure = segment.commitFailure;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override public void run() {
+            while (true) {
+                synchronized (this) {
+                    while (!stopped && !commitDue()) {
+                        try {
+                            if (pendingSince == 0) {
+                                wait();
+                            } else {
+                                wait(Math.max(1, pendingSince + COMMIT_INTERVAL_MILLIS
+                                        - System.nanoTime() / 1000000));
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    // Records appended from now on schedule the next commit
+                    commitRequested = false;
+                    pendingSince = 0;
+                }
+                for (Segment segment : segments) {
+                    segment.commit();
+                }
+            }
+        }
+
+        private boolean commitDue() {
+            return commitRequested || pendingSince != 0
+                    && System.nanoTime() / 1000000 - pendingSince >= COMMIT_INTERVAL_MILLIS;
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -772,11 +1843,14 @@ public final class DiskLruCache implements Closeable {
      * Edits the values for an entry.
      */
     public final class Editor {
-        private final Entry entry;
+        private final String key;
+        /** The segment the key hashes to, whose lock guards the edit. */
+        private final Segment segment;
         private boolean hasErrors;
 
-        private Editor(Entry entry) {
-            this.entry = entry;
+        private Editor(String key, Segment segment) {
+            this.key = key;
+            this.segment = segment;
         }
 
         /**
@@ -784,14 +1858,14 @@ public final class DiskLruCache implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
+            synchronized (segment) {
+                if (segment.editors.get(key) != this) {
                     throw new IllegalStateException();
                 }
-                if (!entry.readable) {
+                if (!segment.index.isReadable(segment.index.find(key))) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return new FileInputStream(getCleanFile(key, index));
             }
         }
 
@@ -812,11 +1886,11 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
+            synchronized (segment) {
+                if (segment.editors.get(key) != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                return new FaultHidingOutputStream(new FileOutputStream(getDirtyFile(key, index)));
             }
         }
 
@@ -840,7 +1914,7 @@ public final class DiskLruCache implements Closeable {
         public void commit() throws IOException {
             if (hasErrors) {
                 completeEdit(this, false);
-                remove(entry.key); // the previous entry is stale
+                remove(key); // the previous entry is stale
             } else {
                 completeEdit(this, true);
             }
@@ -854,6 +1928,18 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Aborts this edit unless it was committed or aborted already, or its cache was closed
+         * meanwhile.
+         */
+        public void abortUnlessCommitted() {
+            try {
+                abort();
+            } catch (IOException ignored) {
+            } catch (IllegalStateException ignored) {
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -892,62 +1978,4 @@ public final class DiskLruCache implements Closeable {
             }
         }
     }
-
-    private final class Entry {
-        private final String key;
-
-        /** Lengths of this entry's files. */
-        private final long[] lengths;
-
-        /** True if this entry has ever been published */
-        private boolean readable;
-
-        /** The ongoing edit or null if this entry is not being edited. */
-        private Editor currentEditor;
-
-        /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
-
-        private Entry(String key) {
-            this.key = key;
-            this.lengths = new long[valueCount];
-        }
-
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
-        /**
-         * Set lengths using decimal numbers like "10123".
-         */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
-                throw invalidLengths(strings);
-            }
-
-            try {
-                for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
-                }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
-            }
-        }
-
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
-        }
-
-        public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
-        }
-
-        public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
-        }
-    }
 }
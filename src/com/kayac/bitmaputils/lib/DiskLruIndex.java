@@ -0,0 +1,412 @@
+package com.kayac.bitmaputils.lib;
+
+/**
+ * The entries of one {@link DiskLruCache} segment, kept in parallel primitive arrays instead of
+ * a map of entry objects. An entry is an int id into the arrays. Keys of 32 lowercase hex digits,
+ * the MD5 keys of {@link ImageCache#hashKeyForDisk}, are stored as two longs; any other key is
+ * kept as its String next to a 64-bit hash of it. Ids are found through an open-addressing table
+ * with linear probing, and the LRU order is an intrusive doubly linked list of ids, eldest at the
+ * head.
+ * <p>
+ * Ids stay the same while an entry exists and are reused once it is removed.
+ * Not thread safe, callers are expected to hold the segment's lock.
+ *
+ * @author long-nguyen
+ *
+ */
+class DiskLruIndex {
+	static final int NONE = -1;
+	static final int HEX_KEY_LENGTH = 32;
+
+	private static final int FLAG_READABLE = 1;
+	private static final int FLAG_EDITING = 2;
+	private static final int MIN_CAPACITY = 16;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// Value of each lowercase hex digit, -1 for any other char below 'g'
+	private static final byte[] HEX_VALUES = new byte['f' + 1];
+
+	static {
+		for (int c = 0; c < HEX_VALUES.length; c++) {
+			HEX_VALUES[c] = (byte) (c >= '0' && c <= '9' ? c - '0' : c >= 'a' ? c - 'a' + 10 : -1);
+		}
+	}
+
+	private final int mValueCount;
+
+	// Hash table of id + 1, 0 for an empty slot. Kept at most half full.
+	private int[] mTable;
+	private int mTableMask;
+
+	// Entry arrays, indexed by id
+	private long[] mKeyHigh;
+	private long[] mKeyLow;
+	private String[] mNames;
+	private long[] mLengths;
+	private long[] mSequenceNumbers;
+	private long[] mAccessOrders;
+	private byte[] mFlags;
+	private int[] mPrevious;
+	private int[] mNext;
+
+	private int mHead = NONE;
+	private int mTail = NONE;
+	// Removed ids, linked through mNext
+	private int mFree = NONE;
+	private int mUsed;
+	private int mSize;
+
+	// Key of the last call to parseKey
+	private long mParsedHigh;
+	private long mParsedLow;
+	private String mParsedName;
+
+	public DiskLruIndex(int valueCount) {
+		mValueCount = valueCount;
+		mTable = new int[MIN_CAPACITY * 2];
+		mTableMask = mTable.length - 1;
+		allocate(MIN_CAPACITY);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return The id of the entry of the key, or {@link #NONE}
+	 */
+	public int find(String key) {
+		parseKey(key);
+		return find(mParsedHigh, mParsedLow, mParsedName);
+	}
+
+	/**
+	 * Find the entry of a hex key given as its two halves.
+	 */
+	public int find(long high, long low) {
+		return find(high, low, null);
+	}
+
+	/**
+	 * Add an entry for a key that is not in the index, as the most recently used one.
+	 *
+	 * @return The id of the new entry
+	 */
+	public int insert(String key) {
+		parseKey(key);
+		return insert(mParsedHigh, mParsedLow, mParsedName);
+	}
+
+	public int insert(long high, long low) {
+		return insert(high, low, null);
+	}
+
+	public void remove(int id) {
+		int slot = slotOf(id);
+		mTable[slot] = 0;
+		// Shift the rest of the probe run back so lookups don't stop at the hole
+		int next = (slot + 1) & mTableMask;
+		while (mTable[next] != 0) {
+			final int moving = mTable[next] - 1;
+			final int home = hash(mKeyHigh[moving], mKeyLow[moving]) & mTableMask;
+			if (((next - home) & mTableMask) >= ((next - slot) & mTableMask)) {
+				mTable[slot] = mTable[next];
+				mTable[next] = 0;
+				slot = next;
+			}
+			next = (next + 1) & mTableMask;
+		}
+
+		unlink(id);
+		mNames[id] = null;
+		mFlags[id] = 0;
+		mNext[id] = mFree;
+		mFree = id;
+		mSize--;
+	}
+
+	/**
+	 * Move the entry to the most recently used end.
+	 */
+	public void touch(int id) {
+		if (id != mTail) {
+			unlink(id);
+			link(id);
+		}
+	}
+
+	/**
+	 * @return The least recently used entry, or {@link #NONE} if there is none
+	 */
+	public int eldest() {
+		return mHead;
+	}
+
+	/**
+	 * @return The entry used after this one, or {@link #NONE}
+	 */
+	public int next(int id) {
+		return mNext[id];
+	}
+
+	/**
+	 * @return The key the entry was inserted with
+	 */
+	public String getKey(int id) {
+		if (mNames[id] != null) {
+			return mNames[id];
+		}
+		final char[] key = new char[HEX_KEY_LENGTH];
+		writeHex(key, 0, mKeyHigh[id]);
+		writeHex(key, HEX_KEY_LENGTH / 2, mKeyLow[id]);
+		return new String(key);
+	}
+
+	/**
+	 * @return true if the entry has a hex key, available from {@link #getKeyHigh} and
+	 *     {@link #getKeyLow}
+	 */
+	public boolean isHexKey(int id) {
+		return mNames[id] == null;
+	}
+
+	public long getKeyHigh(int id) {
+		return mKeyHigh[id];
+	}
+
+	public long getKeyLow(int id) {
+		return mKeyLow[id];
+	}
+
+	public long getLength(int id, int index) {
+		return mLengths[id * mValueCount + index];
+	}
+
+	public void setLength(int id, int index, long length) {
+		mLengths[id * mValueCount + index] = length;
+	}
+
+	public long getSequenceNumber(int id) {
+		return mSequenceNumbers[id];
+	}
+
+	public void setSequenceNumber(int id, long sequenceNumber) {
+		mSequenceNumbers[id] = sequenceNumber;
+	}
+
+	public long getAccessOrder(int id) {
+		return mAccessOrders[id];
+	}
+
+	public void setAccessOrder(int id, long accessOrder) {
+		mAccessOrders[id] = accessOrder;
+	}
+
+	/**
+	 * @return true if the entry has ever been published
+	 */
+	public boolean isReadable(int id) {
+		return (mFlags[id] & FLAG_READABLE) != 0;
+	}
+
+	public void setReadable(int id) {
+		mFlags[id] |= FLAG_READABLE;
+	}
+
+	/**
+	 * @return true if an edit of the entry is in progress
+	 */
+	public boolean isEditing(int id) {
+		return (mFlags[id] & FLAG_EDITING) != 0;
+	}
+
+	public void setEditing(int id, boolean editing) {
+		if (editing) {
+			mFlags[id] |= FLAG_EDITING;
+		} else {
+			mFlags[id] &= ~FLAG_EDITING;
+		}
+	}
+
+	private static void writeHex(char[] key, int offset, long value) {
+		for (int i = offset + HEX_KEY_LENGTH / 2 - 1; i >= offset; i--) {
+			key[i] = HEX_DIGITS[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+	}
+
+	private void parseKey(String key) {
+		// One pass that parses the key as hex and gives up at the first other char, every
+		// lookup of DiskLruCache comes through here
+		if (key.length() == HEX_KEY_LENGTH) {
+			long high = 0;
+			long low = 0;
+			int i = 0;
+			for (; i < HEX_KEY_LENGTH; i++) {
+				final char c = key.charAt(i);
+				final int digit = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+				if (digit < 0) {
+					break;
+				}
+				if (i < HEX_KEY_LENGTH / 2) {
+					high = high << 4 | digit;
+				} else {
+					low = low << 4 | digit;
+				}
+			}
+			if (i == HEX_KEY_LENGTH) {
+				mParsedHigh = high;
+				mParsedLow = low;
+				mParsedName = null;
+				return;
+			}
+		}
+		// FNV-1a, only to spread the other keys over the table, they are compared as strings
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		mParsedHigh = key.length();
+		mParsedLow = hash;
+		mParsedName = key;
+	}
+
+	private int find(long high, long low, String name) {
+		int slot = hash(high, low) & mTableMask;
+		while (mTable[slot] != 0) {
+			final int id = mTable[slot] - 1;
+			if (mKeyHigh[id] == high && mKeyLow[id] == low
+					&& (name == null ? mNames[id] == null : name.equals(mNames[id]))) {
+				return id;
+			}
+			slot = (slot + 1) & mTableMask;
+		}
+		return NONE;
+	}
+
+	private int insert(long high, long low, String name) {
+		if ((mSize + 1) * 2 > mTable.length) {
+			rehash(mTable.length * 2);
+		}
+		final int id;
+		if (mFree != NONE) {
+			id = mFree;
+			mFree = mNext[id];
+		} else {
+			if (mUsed == mKeyHigh.length) {
+				allocate(mKeyHigh.length * 2);
+			}
+			id = mUsed++;
+		}
+		mKeyHigh[id] = high;
+		mKeyLow[id] = low;
+		mNames[id] = name;
+		for (int i = 0; i < mValueCount; i++) {
+			mLengths[id * mValueCount + i] = 0;
+		}
+		mSequenceNumbers[id] = 0;
+		mAccessOrders[id] = 0;
+		mFlags[id] = 0;
+		link(id);
+
+		int slot = hash(high, low) & mTableMask;
+		while (mTable[slot] != 0) {
+			slot = (slot + 1) & mTableMask;
+		}
+		mTable[slot] = id + 1;
+		mSize++;
+		return id;
+	}
+
+	private int slotOf(int id) {
+		int slot = hash(mKeyHigh[id], mKeyLow[id]) & mTableMask;
+		while (mTable[slot] != id + 1) {
+			slot = (slot + 1) & mTableMask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		final int[] old = mTable;
+		mTable = new int[capacity];
+		mTableMask = capacity - 1;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] != 0) {
+				final int id = old[i] - 1;
+				int slot = hash(mKeyHigh[id], mKeyLow[id]) & mTableMask;
+				while (mTable[slot] != 0) {
+					slot = (slot + 1) & mTableMask;
+				}
+				mTable[slot] = old[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		mKeyHigh = grow(mKeyHigh, capacity);
+		mKeyLow = grow(mKeyLow, capacity);
+		final String[] names = new String[capacity];
+		if (mNames != null) {
+			System.arraycopy(mNames, 0, names, 0, mNames.length);
+		}
+		mNames = names;
+		mLengths = grow(mLengths, capacity * mValueCount);
+		mSequenceNumbers = grow(mSequenceNumbers, capacity);
+		mAccessOrders = grow(mAccessOrders, capacity);
+		final byte[] flags = new byte[capacity];
+		if (mFlags != null) {
+			System.arraycopy(mFlags, 0, flags, 0, mFlags.length);
+		}
+		mFlags = flags;
+		mPrevious = grow(mPrevious, capacity);
+		mNext = grow(mNext, capacity);
+	}
+
+	private static long[] grow(long[] array, int capacity) {
+		final long[] grown = new long[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		final int[] grown = new int[capacity];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	private void link(int id) {
+		mPrevious[id] = mTail;
+		mNext[id] = NONE;
+		if (mTail != NONE) {
+			mNext[mTail] = id;
+		} else {
+			mHead = id;
+		}
+		mTail = id;
+	}
+
+	private void unlink(int id) {
+		final int previous = mPrevious[id];
+		final int next = mNext[id];
+		if (previous != NONE) {
+			mNext[previous] = next;
+		} else {
+			mHead = next;
+		}
+		if (next != NONE) {
+			mPrevious[next] = previous;
+		} else {
+			mTail = previous;
+		}
+	}
+
+	private static int hash(long high, long low) {
+		// The keys are MD5 digests, already well spread, only fold and mix the halves
+		long h = high ^ low * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 32;
+		return (int) (h ^ h >>> 16);
+	}
+}
@@ -0,0 +1,166 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Tees a download into the http cache editor and into memory, so the network stage can hand
+ * the bytes straight to the decoder instead of reading the cache file back. The image bounds
+ * are probed from the first few KB while the rest of the body is still arriving. Bodies larger
+ * than the limit are only written to the target, the decoder then falls back to the cache file.
+ *
+ * @author long-nguyen
+ *
+ */
+class DownloadBuffer extends OutputStream {
+	private static final int INITIAL_CAPACITY = 32 * 1024;
+	// Headers of most JPEGs and PNGs fit in the first probe, EXIF thumbnails may push them further
+	private static final int FIRST_BOUNDS_PROBE = 4 * 1024;
+	private static final int LAST_BOUNDS_PROBE = 64 * 1024;
+
+	private final int mLimit;
+	private OutputStream mTarget;
+	private byte[] mBuffer;
+	private int mCount;
+	private boolean mOverflowed;
+	private boolean mComplete;
+	// Bytes of mBuffer counted against the BitmapBudget
+	private int mReserved;
+
+	private int mNextProbe = FIRST_BOUNDS_PROBE;
+	private int mWidth = -1;
+	private int mHeight = -1;
+	private String mMimeType;
+
+	/**
+	 * @param limit The largest body kept in memory
+	 */
+	public DownloadBuffer(int limit) {
+		mLimit = limit;
+		mBuffer = new byte[Math.min(limit, INITIAL_CAPACITY)];
+		setReserved(mBuffer.length);
+	}
+
+	/**
+	 * Set the stream every byte is forwarded to, before the download starts.
+	 */
+	public DownloadBuffer setTarget(OutputStream target) {
+		mTarget = target;
+		return this;
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		write(new byte[] { (byte) oneByte }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		mTarget.write(buffer, offset, length);
+		if (mOverflowed) {
+			return;
+		}
+		if (mCount + length > mLimit) {
+			// Too large to keep around, decode from the cache file instead
+			mOverflowed = true;
+			mBuffer = null;
+			setReserved(0);
+			return;
+		}
+		if (mCount + length > mBuffer.length) {
+			final byte[] grown = new byte[Math.min(mLimit, Math.max(mCount + length, mBuffer.length * 2))];
+			System.arraycopy(mBuffer, 0, grown, 0, mCount);
+			mBuffer = grown;
+			setReserved(grown.length);
+		}
+		System.arraycopy(buffer, offset, mBuffer, mCount, length);
+		mCount += length;
+		probeBounds();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		mTarget.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mTarget.close();
+	}
+
+	private void probeBounds() {
+		if (mWidth > 0 || mNextProbe > LAST_BOUNDS_PROBE || mCount < mNextProbe) {
+			return;
+		}
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(mBuffer, 0, mCount, options);
+		if (options.outWidth > 0 && options.outHeight > 0) {
+			mWidth = options.outWidth;
+			mHeight = options.outHeight;
+			mMimeType = options.outMimeType;
+			if (ImageWorker.DEBUG) Log.d(ImageWorker.TAG, "Bounds " + mWidth + "x" + mHeight + " after " + mCount + " bytes");
+		} else {
+			mNextProbe *= 2;
+		}
+	}
+
+	/**
+	 * Let go of the body once it has been decoded or is no longer wanted, ends its count
+	 * against the {@link BitmapBudget}.
+	 */
+	public void release() {
+		mBuffer = null;
+		mOverflowed = true;
+		setReserved(0);
+	}
+
+	private void setReserved(int size) {
+		if (size > mReserved) {
+			BitmapBudget.getInstance().reserveBuffer(size - mReserved);
+		} else if (size < mReserved) {
+			BitmapBudget.getInstance().releaseBuffer(mReserved - size);
+		}
+		mReserved = size;
+	}
+
+	/**
+	 * Mark the body as fully received.
+	 */
+	public void setComplete() {
+		mComplete = true;
+	}
+
+	/**
+	 * @return true if the whole body was received and kept in memory
+	 */
+	public boolean isUsable() {
+		return mComplete && !mOverflowed;
+	}
+
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * Copy the probed bounds into decode options, so the decoder can skip its bounds pass.
+	 *
+	 * @return true if the bounds were known
+	 */
+	public boolean fillBounds(BitmapFactory.Options options) {
+		if (mWidth <= 0) {
+			return false;
+		}
+		options.outWidth = mWidth;
+		options.outHeight = mHeight;
+		options.outMimeType = mMimeType;
+		return true;
+	}
+}
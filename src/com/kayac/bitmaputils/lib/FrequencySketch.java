@@ -0,0 +1,111 @@
+package com.kayac.bitmaputils.lib;
+
+/**
+ * A count-min sketch of how often keys were used recently, for the admission policy of
+ * {@link TinyLfuCache}. Each key gets four 4-bit counters spread over a table of longs, and its
+ * frequency is the smallest of them. Once enough increments have been recorded every counter
+ * is halved, so the sketch follows the working set as it moves.
+ * Not thread safe, callers are expected to hold the cache's lock.
+ *
+ * @author long-nguyen
+ *
+ */
+class FrequencySketch {
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_COUNT = 15;
+
+	private long[] mTable;
+	private int mTableMask;
+	private int mSampleSize;
+	private int mSize;
+
+	public FrequencySketch() {
+		ensureCapacity(MIN_CAPACITY);
+	}
+
+	/**
+	 * Grow the table for the given number of keys, forgetting what was counted so far.
+	 */
+	public void ensureCapacity(int maximumSize) {
+		final int capacity = Math.max(MIN_CAPACITY, Math.min(maximumSize, 1 << 28));
+		if (mTable != null && mTable.length >= capacity) {
+			return;
+		}
+		mTable = new long[ceilingPowerOfTwo(capacity)];
+		mTableMask = mTable.length - 1;
+		mSampleSize = 10 * capacity;
+		mSize = 0;
+	}
+
+	/**
+	 * @return The estimated number of recent uses of the key, at most 15
+	 */
+	public int frequency(Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			final int index = indexOf(hash, i);
+			final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Record a use of the key, aging all counters once the sample is full.
+	 */
+	public void increment(Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++mSize == mSampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int i, int j) {
+		final int offset = j << 2;
+		final long mask = 0xfL << offset;
+		if ((mTable[i] & mask) != mask) {
+			mTable[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Halve every counter.
+	 */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < mTable.length; i++) {
+			odd += Long.bitCount(mTable[i] & ONE_MASK);
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+		mSize = (mSize >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(int item, int i) {
+		long hash = (item + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return ((int) hash) & mTableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x) {
+		return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+	}
+}
@@ -16,30 +16,37 @@
 
 package com.kayac.bitmaputils.lib;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.kayac.bitmaputils.BuildConfig;
@@ -65,19 +72,43 @@ public class ImageCache {
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
     private static final int DISK_CACHE_INDEX = 0;
+    // Editor streams are unbuffered, Bitmap.compress writes them in small chunks
+    private static final int DISK_WRITE_BUFFER_SIZE = 16 * 1024;
 
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    private static final boolean DEFAULT_TRIM_ON_MEMORY_PRESSURE = true;
 
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    // The memory cache, split into partitions with their own budgets, null when disabled
+    private MemoryPartition[] mPartitions;
+    // Separates the partition index appended to memory cache keys
+    private static final char PARTITION_SEPARATOR = '|';
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private HashSet<SoftReference<Bitmap>> mReusableBitmaps;
+    // Default bitmap pool size in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
+
+    private BitmapPool mBitmapPool;
+
+    // Registered with the application context from Ice Cream Sandwich on
+    private Context mCallbacksContext;
+    private ComponentCallbacks mMemoryCallbacks;
+    private OnTrimMemoryListener mOnTrimMemoryListener;
+    private final AtomicInteger mTrimCount = new AtomicInteger();
+    private final AtomicLong mTrimmedSize = new AtomicLong();
+
+    // Every resolution cached for a source key. The arrays are replaced, never changed, so
+    // lookups read them without a lock. Writers hold mResolutionsLock.
+    private final ConcurrentHashMap<String, Resolution[]> mResolutions =
+            new ConcurrentHashMap<String, Resolution[]>();
+    private final Object mResolutionsLock = new Object();
+    // How far apart the aspect ratios of SCALE_FILL crops may be to stand in for each other
+    private static final int ASPECT_TOLERANCE_PERCENT = 1;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -87,7 +118,7 @@ public class ImageCache {
      *
      * @param cacheParams The cache parameters to use to initialize the cache
      */
-    private ImageCache(ImageCacheParams cacheParams) {
+    ImageCache(ImageCacheParams cacheParams) {
         init(cacheParams);
     }
 
@@ -131,47 +162,36 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, then
+            // If we're running on Honeycomb or newer, then evicted bitmaps are pooled
+            // for decoding into with inBitmap
             if (Utils.hasHoneycomb()) {
-                mReusableBitmaps = new HashSet<SoftReference<Bitmap>>();
-            }
-
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
-                @Override
-                protected void entryRemoved(boolean evicted, String key,
-                        BitmapDrawable oldValue, BitmapDrawable newValue) {
-                	if(BuildConfig.DEBUG){
-                		Log.d(TAG, "Memory cache Removed entry:"+key);
-                	}
-                    if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-                        // The removed entry is a recycling drawable, so notify it 
-                        // that it has been removed from the memory cache
-                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        // The removed entry is a standard BitmapDrawable
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024);
+            }
 
-                        if (Utils.hasHoneycomb()) {
-                            // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftRefrence set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
-                        }
-                    }
+            if (mCacheParams.partitions.isEmpty()) {
+                mPartitions = new MemoryPartition[] { new MemoryPartition(null,
+                        mCacheParams.memCacheSize, 0, false, createMemoryCache(mCacheParams.memCacheSize)) };
+            } else {
+                mPartitions = new MemoryPartition[mCacheParams.partitions.size()];
+                for (int i = 0; i < mPartitions.length; i++) {
+                    final PartitionParams params = mCacheParams.partitions.get(i);
+                    final int size = Math.max(1, Math.round(mCacheParams.memCacheSize * params.share));
+                    // A borrowing partition may grow to the whole budget, the others are
+                    // trimmed back when it takes their share
+                    mPartitions[i] = new MemoryPartition(params.name, size, params.maxBitmapSize,
+                            params.borrow, createMemoryCache(params.borrow ? mCacheParams.memCacheSize : size));
                 }
+            }
+        }
 
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
-                }
-            };
+        if (mPartitions != null) {
+            // Decodes of every worker are admitted against what this cache holds
+            BitmapBudget.getInstance().register(this);
+        }
+
+        if (mPartitions != null && cacheParams.trimOnMemoryPressure
+                && cacheParams.appContext != null && Utils.hasIceCreamSandwich()) {
+            registerMemoryCallbacks(cacheParams.appContext);
         }
 
         // By default the disk cache is not initialized here as it should be initialized
@@ -182,6 +202,48 @@ public class ImageCache {
         }
     }
 
+    /**
+     * @param maxSize The size of the cache in kilobytes
+     */
+    private TinyLfuCache<String, BitmapDrawable> createMemoryCache(int maxSize) {
+        // Admission by frequency keeps images used on every screen cached through a
+        // fling over new ones
+        return new TinyLfuCache<String, BitmapDrawable>(maxSize) {
+
+            /**
+             * Notify the removed entry that is no longer being cached
+             */
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                    BitmapDrawable oldValue, BitmapDrawable newValue) {
+            	if(BuildConfig.DEBUG){
+            		Log.d(TAG, "Memory cache Removed entry:"+key);
+            	}
+                if (newValue == null) {
+                    removeResolution(key);
+                }
+                if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+                    // The removed entry is a recycling drawable, so notify it
+                    // that it has been removed from the memory cache. It goes to
+                    // the pool by itself once it is not displayed or in flight either.
+                    ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
+                }
+                // A standard BitmapDrawable may still be drawn somewhere, so its
+                // bitmap is left to the GC rather than reused
+            }
+
+            /**
+             * Measure item size in kilobytes rather than units which is more practical
+             * for a bitmap cache
+             */
+            @Override
+            protected int sizeOf(String key, BitmapDrawable value) {
+                final int bitmapSize = getBitmapSize(value) / 1024;
+                return bitmapSize == 0 ? 1 : bitmapSize;
+            }
+        };
+    }
+
     /**
      * Initializes the disk cache.  Note that this includes disk access so this should not be
      * executed on the main/UI thread. By default an ImageCache does not initialize the disk
@@ -199,8 +261,8 @@ public class ImageCache {
                     }
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1,
+                                    mCacheParams.diskCacheSize, mCacheParams.diskCacheDurability);
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -222,65 +284,141 @@ public class ImageCache {
      * @param value The bitmap drawable to store
      */
     public void addBitmapToCache(LoadRequest data, BitmapDrawable value) {
+        addBitmapToMemCache(data, value);
+        addBitmapToDiskCache(data, value);
+    }
+
+    /**
+     * Adds a bitmap to the memory cache only.
+     * @param data Unique identifier for the bitmap to store
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToMemCache(LoadRequest data, BitmapDrawable value) {
         if (data == null || value == null) {
             return;
         }
 
         // Add to memory cache
-        if (mMemoryCache != null) {
+        if (mPartitions != null) {
             if (RecyclingBitmapDrawable.class.isInstance(value)) {
                 // The removed entry is a recycling drawable, so notify it 
                 // that it has been added into the memory cache
                 ((RecyclingBitmapDrawable) value).setIsCached(true);
             }
-            mMemoryCache.put(data.key, value);
+            // Indexed first, the put may turn the entry away at once and unindex it again
+            final int partition = getPartitionIndex(data);
+            final String key = getMemCacheKey(data) + PARTITION_SEPARATOR + partition;
+            addResolution(data, key);
+            mPartitions[partition].cache.put(key, value);
+            if (mPartitions.length > 1) {
+                rebalancePartitions();
+            }
         }
-        if(data.type!=LoadRequest.TYPE_REMOTE_PATH) return;
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data.key);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+        // The cache counts the bitmap from now on, or turned it away
+        BitmapBudget.getInstance().settle(value.getBitmap());
+    }
+
+    /**
+     * Adds a bitmap to the disk cache only. Only remote requests are written to disk, under
+     * {@link #getDiskCacheKey(LoadRequest)}. Note that this includes disk access so this should
+     * not be executed on the main/UI thread.
+     * @param data Unique identifier for the bitmap to store
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToDiskCache(LoadRequest data, BitmapDrawable value) {
+        if (data == null || value == null || data.type != LoadRequest.TYPE_REMOTE_PATH) {
+            return;
+        }
+        final Bitmap bitmap = value.getBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        // Add to disk cache, the disk cache locks per key so encoding runs outside mDiskCacheLock
+        final DiskLruCache diskCache = awaitDiskCache();
+        if (diskCache != null) {
+            final String key = getDiskCacheKey(data);
+            OutputStream out = null;
+            try {
+                DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                if (snapshot == null) {
+                    final DiskLruCache.Editor editor = diskCache.edit(key);
+                    if (editor != null) {
+                        out = new BufferedOutputStream(
+                                editor.newOutputStream(DISK_CACHE_INDEX), DISK_WRITE_BUFFER_SIZE);
+                        bitmap.compress(
+                                mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                        // Flush the buffer into the entry before committing it
+                        out.close();
+                        editor.commit();
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
                 }
+            } catch (final IOException e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } catch (Exception e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {}
             }
         }
     }
 
     /**
-     * Get from memory cache.
+     * Get from memory cache. Several resolutions of a source may be cached, this returns the
+     * exact size asked for if it is cached, otherwise the smallest compatible resolution with
+     * at least as many pixels, for the ImageView to draw scaled down. A resolution is
+     * compatible if it was decoded in the same scale mode, in a config the request can use,
+     * and for SCALE_FILL cropped to the same aspect ratio. A request without a size asks for
+     * the original image and only matches exactly.
+     * <p>
+     * The drawable is returned with an in-flight reference, so it cannot be evicted into the
+     * bitmap pool before it is displayed. Hand it back with {@link #releaseLookup} once it is
+     * set on its view or not used after all.
+     *
+     * @param data The request to find a bitmap for
+     * @return The bitmap drawable if found in cache, null otherwise
+     */
+    public BitmapDrawable getBitmapFromMemCache(LoadRequest data) {
+        if (mPartitions == null || data == null) {
+            return null;
+        }
+
+        final int partition = getPartitionIndex(data);
+        BitmapDrawable memValue = mPartitions[partition].cache.get(
+                getMemCacheKey(data) + PARTITION_SEPARATOR + partition);
+        if (memValue != null && !tryAcquire(memValue)) {
+            memValue = null;
+        }
+        if (memValue == null && data.imgW > 0 && data.imgH > 0) {
+            memValue = getResolution(findResolution(data.key, data));
+            if (BuildConfig.DEBUG && memValue != null) {
+                Log.d(TAG, "Memory cache hit at a larger resolution");
+            }
+        } else if (BuildConfig.DEBUG && memValue != null) {
+            Log.d(TAG, "Memory cache hit");
+        }
+
+        return memValue;
+    }
+
+    /**
+     * Get the largest resolution of a source from memory cache, whatever size it was loaded
+     * at. Useful as a preview while the size a view needs is not known yet. Like
+     * {@link #getBitmapFromMemCache(LoadRequest)} the drawable is returned with an in-flight
+     * reference for {@link #releaseLookup} to hand back.
      *
      * @param data Unique identifier for which item to get
      * @return The bitmap drawable if found in cache, null otherwise
      */
     public BitmapDrawable getBitmapFromMemCache(String data) {
         BitmapDrawable memValue = null;
-
-        if (mMemoryCache != null) {
-            memValue = mMemoryCache.get(data);
+        if (mPartitions != null && data != null) {
+            memValue = getResolution(findResolution(data, null));
         }
 
         if (BuildConfig.DEBUG && memValue != null) {
@@ -290,56 +428,445 @@ public class ImageCache {
         return memValue;
     }
 
+    /**
+     * @return The memory cache key of a request, one per source, requested size, config and
+     *      scale mode
+     */
+    public static String getMemCacheKey(LoadRequest data) {
+        return data.key + "#" + data.imgW + "x" + data.imgH + "@" + data.config + "/" + data.scaleMode;
+    }
+
+    /**
+     * @return The disk cache key of the processed bitmap of a request. Like in memory, every
+     *      resolution of a source is stored apart, so a thumbnail written once is never decoded
+     *      for a larger request or another scale mode or config.
+     */
+    public static String getDiskCacheKey(LoadRequest data) {
+        return hashKeyForDisk(getMemCacheKey(data));
+    }
+
+    /**
+     * Pick a cached resolution of the source. The candidates are only peeked at, so they count
+     * neither as hits or misses nor as accesses to the admission policy.
+     *
+     * @param source The source key
+     * @param data The request to serve, the smallest compatible resolution at least its size is
+     *      picked, or null to pick the largest resolution
+     * @return The memory cache key of the resolution, or null
+     */
+    private String findResolution(String source, LoadRequest data) {
+        final Resolution[] resolutions = mResolutions.get(source);
+        if (resolutions == null) {
+            return null;
+        }
+        final long requestedPixels = data != null ? (long) data.imgW * data.imgH : 0;
+        String bestKey = null;
+        long bestPixels = data != null ? Long.MAX_VALUE : 0;
+        for (Resolution resolution : resolutions) {
+            if (data != null && !resolution.isCompatible(data)) {
+                continue;
+            }
+            // May have been evicted since it was indexed
+            final BitmapDrawable candidate = getPartition(resolution.key).cache.peek(resolution.key);
+            if (candidate == null || isReleased(candidate)) {
+                continue;
+            }
+            final long pixels = getPixels(candidate);
+            final boolean better = data != null
+                    ? pixels >= requestedPixels && pixels < bestPixels && hasConfigFor(candidate, data)
+                    : pixels > bestPixels;
+            if (better) {
+                bestKey = resolution.key;
+                bestPixels = pixels;
+            }
+        }
+        return bestKey;
+    }
+
+    /**
+     * Read the resolution picked by {@link #findResolution}, the one read that counts.
+     *
+     * @return The drawable with an in-flight reference, or null if it is gone by now
+     */
+    private BitmapDrawable getResolution(String key) {
+        if (key == null) {
+            return null;
+        }
+        final BitmapDrawable value = getPartition(key).cache.get(key);
+        return value != null && tryAcquire(value) ? value : null;
+    }
+
+    private void addResolution(LoadRequest data, String key) {
+        synchronized (mResolutionsLock) {
+            final Resolution[] resolutions = mResolutions.get(data.key);
+            if (resolutions == null) {
+                mResolutions.put(data.key, new Resolution[] { new Resolution(key, data) });
+                return;
+            }
+            for (Resolution resolution : resolutions) {
+                if (resolution.key.equals(key)) {
+                    return;
+                }
+            }
+            final Resolution[] added = new Resolution[resolutions.length + 1];
+            System.arraycopy(resolutions, 0, added, 0, resolutions.length);
+            added[resolutions.length] = new Resolution(key, data);
+            mResolutions.put(data.key, added);
+        }
+    }
+
+    private void removeResolution(String key) {
+        // The size suffix is appended last, so the source itself may contain '#'
+        final int suffix = key.lastIndexOf('#');
+        if (suffix < 0) {
+            // Put directly through getMemoryCache(), not indexed
+            return;
+        }
+        final String source = key.substring(0, suffix);
+        synchronized (mResolutionsLock) {
+            final Resolution[] resolutions = mResolutions.get(source);
+            if (resolutions == null) {
+                return;
+            }
+            for (int i = 0; i < resolutions.length; i++) {
+                if (resolutions[i].key.equals(key)) {
+                    if (resolutions.length == 1) {
+                        mResolutions.remove(source);
+                    } else {
+                        final Resolution[] removed = new Resolution[resolutions.length - 1];
+                        System.arraycopy(resolutions, 0, removed, 0, i);
+                        System.arraycopy(resolutions, i + 1, removed, i, removed.length - i);
+                        mResolutions.put(source, removed);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A resolution cached for a source, with the request it was decoded for.
+     */
+    private static final class Resolution {
+        final String key;
+        final int width;
+        final int height;
+        final int scaleMode;
+
+        Resolution(String key, LoadRequest data) {
+            this.key = key;
+            this.width = data.imgW;
+            this.height = data.imgH;
+            this.scaleMode = data.scaleMode;
+        }
+
+        /**
+         * A resolution decoded in another scale mode differs in more than its size, and a
+         * SCALE_FILL crop only stands in for a request of the same aspect ratio.
+         */
+        boolean isCompatible(LoadRequest data) {
+            if (scaleMode != data.scaleMode) {
+                return false;
+            }
+            if (scaleMode != LoadRequest.SCALE_FILL) {
+                return true;
+            }
+            final long cached = (long) width * data.imgH;
+            final long requested = (long) data.imgW * height;
+            return Math.abs(cached - requested) * 100
+                    <= Math.max(cached, requested) * ASPECT_TOLERANCE_PERCENT;
+        }
+    }
+
+    /**
+     * Hand back the in-flight reference a memory cache lookup took on its result, once the
+     * drawable is displayed, since views hold their own references, or once it is dropped.
+     *
+     * @param value A drawable returned by getBitmapFromMemCache, may be null
+     */
+    public static void releaseLookup(BitmapDrawable value) {
+        if (value instanceof RecyclingBitmapDrawable) {
+            ((RecyclingBitmapDrawable) value).setIsInFlight(false);
+        }
+    }
+
+    /**
+     * An entry evicted while it was being looked up may already have handed its bitmap on,
+     * a standard BitmapDrawable is never released.
+     */
+    private static boolean tryAcquire(BitmapDrawable value) {
+        return !(value instanceof RecyclingBitmapDrawable)
+                || ((RecyclingBitmapDrawable) value).tryAcquire();
+    }
+
+    /**
+     * An entry evicted while it was being looked up may already have handed its bitmap on.
+     */
+    private static boolean isReleased(BitmapDrawable value) {
+        return value instanceof RecyclingBitmapDrawable
+                && ((RecyclingBitmapDrawable) value).isReleased();
+    }
+
+    /**
+     * A request for ARGB_8888 may need the alpha channel an RGB_565 bitmap lacks, any other
+     * request can be served in either config.
+     */
+    private static boolean hasConfigFor(BitmapDrawable value, LoadRequest data) {
+        final Bitmap bitmap = value.getBitmap();
+        return data.config != LoadRequest.CONFIG_ARGB_8888 || bitmap == null
+                || bitmap.getConfig() != Bitmap.Config.RGB_565;
+    }
+
+    private static long getPixels(BitmapDrawable value) {
+        final Bitmap bitmap = value.getBitmap();
+        return bitmap == null ? 0 : (long) bitmap.getWidth() * bitmap.getHeight();
+    }
+
+    /**
+     * Get the processed bitmap of a request from disk cache, at the size it was stored for
+     * that request.
+     *
+     * @param data The request the bitmap was stored for
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(LoadRequest data) {
+        return data != null ? getBitmapFromDiskCacheForKey(getDiskCacheKey(data)) : null;
+    }
+
     /**
      * Get from disk cache.
      *
      * @param data Unique identifier for which item to get
      * @return The bitmap if found in cache, null otherwise
+     * @deprecated Processed bitmaps are stored per requested size, use
+     *      {@link #getBitmapFromDiskCache(LoadRequest)}. This only finds entries stored under
+     *      the plain source key by older versions.
      */
+    @Deprecated
     public Bitmap getBitmapFromDiskCache(String data) {
-        final String key = hashKeyForDisk(data);
+        return getBitmapFromDiskCacheForKey(hashKeyForDisk(data));
+    }
+
+    private Bitmap getBitmapFromDiskCacheForKey(String key) {
         Bitmap bitmap = null;
 
+        final DiskLruCache diskCache = awaitDiskCache();
+        if (diskCache != null) {
+            InputStream inputStream = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                        // Decode bitmap, but we don't want to sample so give
+                        // MAX_VALUE as the target dimensions
+                        bitmap = ImageUtils.decodeSampledBitmapFromDescriptor(
+                                fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                    }
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                // Closed by clearCache or close meanwhile
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {}
+            }
+        }
+        return bitmap;
+    }
+    
+    /**
+     * Open a stream on the processed bitmap of a request without decoding it. Only the entry
+     * stored for the same size, config and scale mode is found. The caller owns the returned
+     * stream and must close it.
+     *
+     * @param data The request the bitmap was stored for
+     * @return A stream on the cached file if found in cache, null otherwise
+     */
+    public FileInputStream getStreamFromDiskCache(LoadRequest data) {
+        return data != null ? getStreamFromDiskCacheForKey(getDiskCacheKey(data)) : null;
+    }
+
+    /**
+     * Open a stream on the disk cache entry for the given data without decoding it. The caller
+     * owns the returned stream and must close it.
+     *
+     * @param data Unique identifier for which item to get
+     * @return A stream on the cached file if found in cache, null otherwise
+     * @deprecated Processed bitmaps are stored per requested size, use
+     *      {@link #getStreamFromDiskCache(LoadRequest)}. This only finds entries stored under
+     *      the plain source key by older versions.
+     */
+    @Deprecated
+    public FileInputStream getStreamFromDiskCache(String data) {
+        return getStreamFromDiskCacheForKey(hashKeyForDisk(data));
+    }
+
+    private FileInputStream getStreamFromDiskCacheForKey(String key) {
+        final DiskLruCache diskCache = awaitDiskCache();
+        if (diskCache != null) {
+            try {
+                final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    return (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "getStreamFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "getStreamFromDiskCache - " + e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for the disk cache to be opened. Only the reference is read under mDiskCacheLock,
+     * the disk cache locks its own segments so lookups and writes of different keys run in
+     * parallel.
+     *
+     * @return The disk cache, or null if it is disabled or closed
+     */
+    private DiskLruCache awaitDiskCache() {
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
                     mDiskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageUtils.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                return null;
+            }
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * Before the {@link TinyLfuCache}, this returned a {@link android.support.v4.util.LruCache},
+     * see {@link ImageWorker#getSharedLruCache()}.
+     *
+     * @return The memory cache, or its first partition if it is partitioned
+     */
+    public TinyLfuCache<String, BitmapDrawable> getMemoryCache(){
+    	return mPartitions != null ? mPartitions[0].cache : null;
+    }
+
+    /**
+     * @param partition The name of a partition given to {@link ImageCacheParams#addPartition}
+     * @return The partition, or null if there is none of that name
+     */
+    public TinyLfuCache<String, BitmapDrawable> getMemoryCache(String partition) {
+        final int index = findPartition(partition);
+        return index >= 0 ? mPartitions[index].cache : null;
+    }
+
+    /**
+     * @param partition The name of a partition given to {@link ImageCacheParams#addPartition}
+     * @return The share of lookups the partition served, 0 before the first lookup
+     */
+    public float getHitRate(String partition) {
+        final TinyLfuCache<String, BitmapDrawable> cache = getMemoryCache(partition);
+        if (cache == null) {
+            return 0;
+        }
+        final int lookups = cache.hitCount() + cache.missCount();
+        return lookups == 0 ? 0 : (float) cache.hitCount() / lookups;
+    }
+
+    /**
+     * Pick the partition of a request: the one it names, otherwise the size class with the
+     * smallest limit the requested size fits in, otherwise the last partition.
+     */
+    private int getPartitionIndex(LoadRequest data) {
+        if (mPartitions.length == 1) {
+            return 0;
+        }
+        if (data.partition != null) {
+            final int named = findPartition(data.partition);
+            if (named >= 0) {
+                return named;
+            }
+        }
+        // Requests without a size load the original image, which only the last partition takes.
+        // Lookups pick the partition before there is a bitmap, so the size comes from the
+        // request: CONFIG_AUTO only decodes JPEGs as RGB_565, it counts as ARGB_8888.
+        final long requested = data.imgW > 0 && data.imgH > 0
+                ? (long) data.imgW * data.imgH
+                        * (data.config == LoadRequest.CONFIG_RGB_565 ? 2 : 4) / 1024
+                : Long.MAX_VALUE;
+        int best = mPartitions.length - 1;
+        int bestLimit = Integer.MAX_VALUE;
+        for (int i = 0; i < mPartitions.length; i++) {
+            final int limit = mPartitions[i].maxBitmapSize;
+            if (limit > 0 && requested <= limit && limit < bestLimit) {
+                best = i;
+                bestLimit = limit;
+            }
+        }
+        return best;
+    }
+
+    private int findPartition(String name) {
+        if (mPartitions != null && name != null) {
+            for (int i = 0; i < mPartitions.length; i++) {
+                if (name.equals(mPartitions[i].name)) {
+                    return i;
                 }
             }
-            return bitmap;
         }
+        return -1;
     }
-    
-    public LruCache<String, BitmapDrawable> getMemoryCache(){
-    	return mMemoryCache;
+
+    /**
+     * @return The partition holding a memory cache key, the first one for keys put directly
+     */
+    private MemoryPartition getPartition(String key) {
+        final int separator = key.lastIndexOf(PARTITION_SEPARATOR);
+        if (separator >= 0 && mPartitions.length > 1) {
+            try {
+                final int index = Integer.parseInt(key.substring(separator + 1));
+                if (index >= 0 && index < mPartitions.length) {
+                    return mPartitions[index];
+                }
+            } catch (NumberFormatException e) {
+                // Not a partition index, part of the source
+            }
+        }
+        return mPartitions[0];
+    }
+
+    /**
+     * Once the partitions together hold more than the memory cache size, trim the partitions
+     * that borrowed capacity back towards their own share. The others never grow past theirs.
+     */
+    private void rebalancePartitions() {
+        int excess = -mCacheParams.memCacheSize;
+        for (MemoryPartition partition : mPartitions) {
+            excess += partition.cache.size();
+        }
+        for (MemoryPartition partition : mPartitions) {
+            if (excess <= 0) {
+                break;
+            }
+            final int borrowed = partition.cache.size() - partition.size;
+            if (partition.borrow && borrowed > 0) {
+                final int trimmed = Math.min(borrowed, excess);
+                partition.cache.trimToSize(partition.cache.size() - trimmed);
+                excess -= trimmed;
+            }
+        }
     }
 
 
@@ -348,32 +875,219 @@ public class ImageCache {
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
+        return mBitmapPool != null ? mBitmapPool.get(options) : null;
+    }
+
+    /**
+     * @return The pool of bitmaps evicted from the memory cache, with its hit rate and
+     *      bytes saved, or null before Honeycomb or without a memory cache
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Receives every memory trim, to correlate trims with dropped frames or reloads.
+     */
+    public interface OnTrimMemoryListener {
+        /**
+         * @param level The trim level, one of the ComponentCallbacks2 TRIM_MEMORY_* constants
+         * @param freedSize Kilobytes dropped from the memory cache and the bitmap pool
+         * @param durationMillis Time spent trimming, on the thread that delivered the trim
+         */
+        void onTrimMemory(int level, int freedSize, long durationMillis);
+    }
 
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-            Bitmap item;
+    public void setOnTrimMemoryListener(OnTrimMemoryListener listener) {
+        mOnTrimMemoryListener = listener;
+    }
 
-            while (iterator.hasNext()) {
-                item = iterator.next().get();
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerMemoryCallbacks(Context context) {
+        mCallbacksContext = context;
+        mMemoryCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
 
-                if (null != item && item.isMutable()) {
-                    // Check to see it the item can be used for inBitmap
-                    if (canUseForInBitmap(item, options)) {
-                        bitmap = item;
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
 
-                        // Remove from reusable set so it can't be used again
-                        iterator.remove();
-                        break;
-                    }
-                } else {
-                    // Remove from the set if the reference has been cleared.
-                    iterator.remove();
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        };
+        context.registerComponentCallbacks(mMemoryCallbacks);
+    }
+
+    /**
+     * Stop receiving trim callbacks and leave the bitmap budget, once the cache is not
+     * retained anymore.
+     */
+    void detach() {
+        BitmapBudget.getInstance().unregister(this);
+        if (Utils.hasIceCreamSandwich()) {
+            unregisterMemoryCallbacks();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void unregisterMemoryCallbacks() {
+        if (mMemoryCallbacks != null) {
+            mCallbacksContext.unregisterComponentCallbacks(mMemoryCallbacks);
+            mMemoryCallbacks = null;
+            mCallbacksContext = null;
+        }
+    }
+
+    /**
+     * Shrink the memory held by this cache for the given trim level. Called by the system
+     * from Ice Cream Sandwich on, earlier versions can forward
+     * {@link android.app.Activity#onLowMemory()} with
+     * {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
+     * <p>
+     * Trimming goes in stages, cheapest loss first: the bitmap pool only saves allocations, so
+     * it is halved and then dropped. Next go the cached entries no view displays, which frees
+     * their bitmaps right away. Last the cache is trimmed to a share of its size that depends
+     * on how likely the process is to be killed:
+     * <ul>
+     * <li>RUNNING_MODERATE: half the bitmap pool
+     * <li>RUNNING_LOW: the bitmap pool and the undisplayed entries
+     * <li>RUNNING_CRITICAL: as RUNNING_LOW, then half the cache
+     * <li>UI_HIDDEN: the bitmap pool only. Nothing is displayed anymore but memory is not low,
+     *     the cache is kept for when the user comes back
+     * <li>BACKGROUND: the bitmap pool, the undisplayed entries, then half the cache
+     * <li>MODERATE: as BACKGROUND, down to a quarter of the cache
+     * <li>COMPLETE: everything
+     * </ul>
+     * Entries removed from the cache hand their bitmaps to the pool, so the pool is trimmed
+     * after the cache.
+     *
+     * @param level One of the ComponentCallbacks2 TRIM_MEMORY_* constants
+     */
+    public void trimMemory(int level) {
+        final long start = SystemClock.uptimeMillis();
+        final int sizeBefore = getMemorySize();
+
+        if (mPartitions != null) {
+            if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                    || level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                removeUndisplayed();
+            }
+            final float retained = getRetainedFraction(level);
+            if (retained < 1) {
+                for (MemoryPartition partition : mPartitions) {
+                    partition.cache.trimToSize((int) (partition.size * retained));
                 }
             }
         }
 
-        return bitmap;
+        // Trimmed last, the entries removed above hand their bitmaps to the pool
+        if (mBitmapPool != null) {
+            if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mBitmapPool.trimToSize(mBitmapPool.size() / 2);
+            } else {
+                mBitmapPool.clear();
+            }
+        }
+
+        final int freedSize = Math.max(0, sizeBefore - getMemorySize());
+        final long duration = SystemClock.uptimeMillis() - start;
+        mTrimCount.incrementAndGet();
+        mTrimmedSize.addAndGet(freedSize);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Trimmed memory at level " + level + ", freed " + freedSize + "KB in "
+                    + duration + "ms");
+        }
+        final OnTrimMemoryListener listener = mOnTrimMemoryListener;
+        if (listener != null) {
+            listener.onTrimMemory(level, freedSize, duration);
+        }
+    }
+
+    /**
+     * Make room for a decode that ran out of memory: drop the bitmap pool and evict half of
+     * the memory cache, least valuable entries first.
+     */
+    void trimForOutOfMemory() {
+        if (mPartitions != null) {
+            for (MemoryPartition partition : mPartitions) {
+                partition.cache.trimToSize(partition.cache.size() / 2);
+            }
+        }
+        // After the cache, the evicted entries hand their bitmaps to the pool
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Trimmed after OutOfMemoryError, " + getMemorySize() + "KB left");
+        }
+    }
+
+    /**
+     * Remove the entries no view displays. Entries of a standard BitmapDrawable may be drawn
+     * anywhere, so they are left for the trim by size.
+     */
+    private void removeUndisplayed() {
+        for (MemoryPartition partition : mPartitions) {
+            for (Map.Entry<String, BitmapDrawable> entry : partition.cache.snapshot().entrySet()) {
+                final BitmapDrawable value = entry.getValue();
+                if (RecyclingBitmapDrawable.class.isInstance(value)
+                        && !((RecyclingBitmapDrawable) value).isDisplayed()) {
+                    partition.cache.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The share of the memory cache kept at the trim level
+     */
+    private static float getRetainedFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.5f;
+        }
+        // RUNNING_MODERATE, RUNNING_LOW and UI_HIDDEN, the earlier stages are enough
+        return 1;
+    }
+
+    /**
+     * @return Kilobytes held by the memory cache and the bitmap pool
+     */
+    int getMemorySize() {
+        int size = 0;
+        if (mPartitions != null) {
+            for (MemoryPartition partition : mPartitions) {
+                size += partition.cache.size();
+            }
+        }
+        if (mBitmapPool != null) {
+            size += mBitmapPool.size() / 1024;
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of memory trims handled so far
+     */
+    public int getTrimCount() {
+        return mTrimCount.get();
+    }
+
+    /**
+     * @return The kilobytes freed by all memory trims so far
+     */
+    public long getTrimmedSize() {
+        return mTrimmedSize.get();
     }
 
     /**
@@ -381,8 +1095,13 @@ public class ImageCache {
      * this includes disk access so this should not be executed on the main/UI thread.
      */
     public void clearCache() {
-        if (mMemoryCache != null) {
-            mMemoryCache.evictAll();
+        if (mPartitions != null) {
+            for (MemoryPartition partition : mPartitions) {
+                partition.cache.evictAll();
+            }
+            if (mBitmapPool != null) {
+                mBitmapPool.clear();
+            }
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "Memory cache cleared");
             }
@@ -451,13 +1170,22 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        // In kilobytes, like memCacheSize
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        // How long disk cache writes wait for its journal, one of the DiskLruCache.DURABILITY_ modes
+        public int diskCacheDurability = DiskLruCache.DURABILITY_FLUSH;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        // Shrink the memory cache and the bitmap pool on onTrimMemory, from Ice Cream Sandwich on
+        public boolean trimOnMemoryPressure = DEFAULT_TRIM_ON_MEMORY_PRESSURE;
+        // Partitions of the memory cache, a single cache of memCacheSize when empty
+        public final ArrayList<PartitionParams> partitions = new ArrayList<PartitionParams>();
+        private final Context appContext;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -470,6 +1198,7 @@ public class ImageCache {
          */
         public ImageCacheParams(Context context, String diskCacheDirectoryName) {
             diskCacheDir = getDiskCacheDir(context, diskCacheDirectoryName);
+            appContext = context.getApplicationContext();
         }
 
         /**
@@ -477,7 +1206,7 @@ public class ImageCache {
          * Eg. setting percent to 0.2 would set the memory cache to one fifth of the available
          * memory. Throws {@link IllegalArgumentException} if percent is < 0.05 or > .8.
          * memCacheSize is stored in kilobytes instead of bytes as this will eventually be passed
-         * to construct a LruCache which takes an int in its constructor.
+         * to construct a TinyLfuCache which takes an int in its constructor.
          *
          * This value should be chosen carefully based on a number of factors
          * Refer to the corresponding Android Training class for more discussion:
@@ -492,20 +1221,65 @@ public class ImageCache {
             }
             memCacheSize = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
         }
+
+        /**
+         * Split the memory cache, so large images can't evict every small one. Requests go to
+         * the partition they name with {@link LoadRequest#setPartition(LoadRequest, String)},
+         * otherwise to the size class with the smallest maxBitmapSize their requested size fits
+         * in, otherwise to the last partition added.
+         *
+         * @param name Unique name of the partition
+         * @param share Share of memCacheSize the partition gets, the shares should add up to 1
+         * @param maxBitmapSize Largest requested bitmap in kilobytes the partition takes by size,
+         *                      at 4 bytes per pixel unless the request asks for RGB_565,
+         *                      0 to only take requests naming it
+         * @param borrow Whether the partition may grow into capacity the others don't use
+         */
+        public PartitionParams addPartition(String name, float share, int maxBitmapSize,
+                boolean borrow) {
+            final PartitionParams params = new PartitionParams(name, share, maxBitmapSize, borrow);
+            partitions.add(params);
+            return params;
+        }
     }
 
     /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
+     * A holder class that contains the parameters of one memory cache partition.
      */
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
+    public static class PartitionParams {
+        public String name;
+        public float share;
+        // In kilobytes, 0 to only take requests naming the partition
+        public int maxBitmapSize;
+        public boolean borrow;
+
+        public PartitionParams(String name, float share, int maxBitmapSize, boolean borrow) {
+            this.name = name;
+            this.share = share;
+            this.maxBitmapSize = maxBitmapSize;
+            this.borrow = borrow;
+        }
+    }
 
-        return candidate.getWidth() == width && candidate.getHeight() == height;
+    /**
+     * A partition of the memory cache as created from its {@link PartitionParams}.
+     */
+    private static class MemoryPartition {
+        final String name;
+        // In kilobytes, the cache itself may be larger if the partition borrows
+        final int size;
+        final int maxBitmapSize;
+        final boolean borrow;
+        final TinyLfuCache<String, BitmapDrawable> cache;
+
+        MemoryPartition(String name, int size, int maxBitmapSize, boolean borrow,
+                TinyLfuCache<String, BitmapDrawable> cache) {
+            this.name = name;
+            this.size = size;
+            this.maxBitmapSize = maxBitmapSize;
+            this.borrow = borrow;
+            this.cache = cache;
+        }
     }
 
     /**
@@ -675,6 +1449,16 @@ public class ImageCache {
         public Object getObject() {
             return mObject;
         }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+
+            // Only called once the activity is finishing, the cache is retained otherwise
+            if (mObject instanceof ImageCache) {
+                ((ImageCache) mObject).detach();
+            }
+        }
     }
 
 }
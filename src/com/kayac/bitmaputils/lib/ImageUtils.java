@@ -1,13 +1,13 @@
 package com.kayac.bitmaputils.lib;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
@@ -23,6 +23,7 @@ import android.media.ExifInterface;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images.ImageColumns;
@@ -51,23 +52,36 @@ public class ImageUtils {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
             int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromResource(res, resId, reqWidth, reqHeight, cache,
+                new BitmapFactory.Options());
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromResource(Resources, int, int, int, ImageCache)},
+     * decoding with the given options so another thread can stop the decode through
+     * {@link BitmapFactory.Options#requestCancelDecode()}.
+     *
+     * @param options Fresh options to decode with
+     * @return The bitmap, or null if the decode was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromResource(final Resources res, final int resId,
+            int reqWidth, int reqHeight, ImageCache cache, BitmapFactory.Options options) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeResource(res, resId, options);
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
-        // If we're running on Honeycomb or newer, try to use inBitmap
-        if (Utils.hasHoneycomb()&&cache!=null) {
-            addInBitmapOptions(options, cache);
-        }
-
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        // Decode bitmap with inSampleSize set. The bounds pass filled in the resource density,
+        // the pool only hands out bitmaps a density scaled decode can use.
+        return decode(new Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeResource(res, resId, options);
+            }
+        }, options, cache, cache != null);
     }
 
     /**
@@ -82,23 +96,37 @@ public class ImageUtils {
      */
     public static Bitmap decodeSampledBitmapFromFile(String filename,
             int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight,
+                LoadRequest.SCALE_NONE, cache, new BitmapFactory.Options());
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromFile(String, int, int, ImageCache)}, decoding with
+     * the given options so another thread can stop the decode through
+     * {@link BitmapFactory.Options#requestCancelDecode()}.
+     *
+     * @param scaleMode One of the LoadRequest SCALE_* modes
+     * @param options Fresh options to decode with
+     * @return The bitmap, or null if the decode was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromFile(final String filename,
+            int reqWidth, int reqHeight, int scaleMode, ImageCache cache,
+            BitmapFactory.Options options) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(filename, options);
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        // If we're running on Honeycomb or newer, try to use inBitmap
-        if (Utils.hasHoneycomb()) {
-            addInBitmapOptions(options, cache);
-        }
+        // Calculate inSampleSize, and the scaling to the exact size if asked for
+        setSampling(options, reqWidth, reqHeight, scaleMode);
 
         // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename, options);
+        return decode(new Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return resetDensity(BitmapFactory.decodeFile(filename, options), options);
+            }
+        }, options, cache, true);
     }
 
     /**
@@ -113,24 +141,296 @@ public class ImageUtils {
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(
             FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight,
+                LoadRequest.SCALE_NONE, cache, new BitmapFactory.Options());
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromDescriptor(FileDescriptor, int, int, ImageCache)},
+     * decoding with the given options so another thread can stop the decode through
+     * {@link BitmapFactory.Options#requestCancelDecode()}.
+     *
+     * @param scaleMode One of the LoadRequest SCALE_* modes
+     * @param options Fresh options to decode with
+     * @return The bitmap, or null if the decode was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(final FileDescriptor fileDescriptor,
+            int reqWidth, int reqHeight, int scaleMode, ImageCache cache,
+            BitmapFactory.Options options) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        // Calculate inSampleSize, and the scaling to the exact size if asked for
+        setSampling(options, reqWidth, reqHeight, scaleMode);
+
+        // Decode bitmap with inSampleSize set, the decoder restores the descriptor's offset
+        // after each pass so a retry reads the image from the start again
+        return decode(new Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return resetDensity(BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options), options);
+            }
+        }, options, cache, true);
+    }
+
+    /**
+     * Decode and sample down a bitmap held in memory to the requested width and height. If the
+     * options already carry outWidth and outHeight, for example probed while the bytes were being
+     * downloaded, the bounds pass is skipped.
+     *
+     * @param data The encoded image
+     * @param length The number of valid bytes in data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param scaleMode One of the LoadRequest SCALE_* modes
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @param options Fresh options to decode with, possibly with the bounds filled in
+     * @return The bitmap, or null if the decode failed or was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(final byte[] data, final int length,
+            int reqWidth, int reqHeight, int scaleMode, ImageCache cache,
+            BitmapFactory.Options options) {
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            // First decode with inJustDecodeBounds=true to check dimensions
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+
+        // Calculate inSampleSize, and the scaling to the exact size if asked for
+        setSampling(options, reqWidth, reqHeight, scaleMode);
 
         // Decode bitmap with inSampleSize set
+        return decode(new Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return resetDensity(BitmapFactory.decodeByteArray(data, 0, length, options), options);
+            }
+        }, options, cache, true);
+    }
+
+    /**
+     * Sample with {@link #calculateInSampleSize(BitmapFactory.Options, int, int)} for
+     * {@link LoadRequest#SCALE_NONE}, to the exact size with
+     * {@link #calculateExactScaling(BitmapFactory.Options, int, int, int)} otherwise.
+     */
+    private static void setSampling(BitmapFactory.Options options, int reqWidth, int reqHeight,
+            int scaleMode) {
+        if (scaleMode == LoadRequest.SCALE_NONE) {
+            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        } else {
+            calculateExactScaling(options, reqWidth, reqHeight, scaleMode);
+        }
+    }
+
+    /**
+     * Set up options to decode straight to the requested size. JPEG decoders only honor power
+     * of two sample sizes, so this samples by the largest power of two that keeps the image at
+     * least as large as the target, and lets the decoder scale the rest of the way through
+     * inDensity and inTargetDensity. The image is never scaled up.
+     *
+     * @param options An options object with out* params already populated
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param scaleMode {@link LoadRequest#SCALE_FIT} to fit the image inside the requested size,
+     *            {@link LoadRequest#SCALE_FILL} to cover it
+     */
+    public static void calculateExactScaling(BitmapFactory.Options options,
+            int reqWidth, int reqHeight, int scaleMode) {
+        options.inSampleSize = 1;
+        options.inDensity = 0;
+        options.inTargetDensity = 0;
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return;
+        }
+
+        // The dimension that limits the scale when fitting, the other one when filling
+        final boolean widthLimits = (long) reqWidth * height <= (long) reqHeight * width;
+        final boolean byWidth = scaleMode == LoadRequest.SCALE_FILL ? !widthLimits : widthLimits;
+        final int source = byWidth ? width : height;
+        final int target = byWidth ? reqWidth : reqHeight;
+        if (source <= target) {
+            return;
+        }
+
+        int inSampleSize = 1;
+        while (source / (inSampleSize * 2) >= target) {
+            inSampleSize *= 2;
+        }
+        options.inSampleSize = inSampleSize;
+        if (source / inSampleSize > target) {
+            // The decoder scales the sampled image by inTargetDensity / inDensity
+            options.inScaled = true;
+            options.inDensity = source;
+            options.inTargetDensity = target * inSampleSize;
+        }
+    }
+
+    /**
+     * Density scaling leaves the target density on the bitmap, which would change the size it
+     * is drawn at. Give it the density of a plain decode again.
+     */
+    private static Bitmap resetDensity(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && options.inDensity != 0) {
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+        return bitmap;
+    }
+
+    /**
+     * One pass of a decode, run again with degraded options after an OutOfMemoryError.
+     */
+    private interface Decoder {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    // Retries after an OutOfMemoryError before a decode gives up
+    private static final int MAX_OOM_RETRIES = 2;
+    private static int sOomRecoveryCount;
+    private static int sOomFailureCount;
+
+    /**
+     * Run the final pass of a decode whose bounds and inSampleSize are set. The decode reserves
+     * its size against the {@link BitmapBudget} and reuses a pooled bitmap if possible.
+     * <p>
+     * A null inPreferredConfig picks RGB_565 for JPEGs, which have no alpha, and ARGB_8888 for
+     * anything else, from the mime type found by the bounds pass.
+     * <p>
+     * If the decode runs out of memory, the pool and half of the memory cache are evicted and
+     * it is retried at twice the inSampleSize, from the second retry on as RGB_565 if the image
+     * is a JPEG, which has no alpha to lose. Once the retries are used up the decode gives up.
+     *
+     * @param reuse Whether a pooled bitmap may be decoded into
+     * @return The bitmap, or null if the decode failed or was cancelled
+     */
+    private static Bitmap decode(Decoder decoder, BitmapFactory.Options options,
+            ImageCache cache, boolean reuse) {
         options.inJustDecodeBounds = false;
+        if (options.inPreferredConfig == null) {
+            options.inPreferredConfig = "image/jpeg".equals(options.outMimeType)
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        }
+        final BitmapBudget budget = BitmapBudget.getInstance();
+        for (int attempt = 0; ; attempt++) {
+            // If we're running on Honeycomb or newer, try to use inBitmap
+            if (Utils.hasHoneycomb() && reuse) {
+                addInBitmapOptions(options, cache);
+            }
+            // A pooled bitmap is memory the budget already counts, anything else reserves the
+            // decoded size, possibly raising inSampleSize to fit the budget
+            final Bitmap reused = getInBitmap(options);
+            long reserved = reused != null
+                    ? budget.reserveReused(reused) : budget.reserve(options);
+            boolean handedOver = false;
+            try {
+                Bitmap bitmap;
+                try {
+                    bitmap = decoder.decode(options);
+                } catch (IllegalArgumentException e) {
+                    // Scaling rounded the size past the pooled bitmap, decode into a new one.
+                    // The pooled bitmap is dropped, the new one reserves its own size.
+                    if (!clearInBitmap(options)) {
+                        throw e;
+                    }
+                    budget.release(reserved);
+                    reserved = budget.reserve(options);
+                    bitmap = decoder.decode(options);
+                }
+                if (attempt > 0 && bitmap != null) {
+                    synchronized (sStatsLock) {
+                        sOomRecoveryCount++;
+                    }
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "decode - recovered from OutOfMemoryError after " + attempt
+                                + " retries at inSampleSize " + options.inSampleSize);
+                    }
+                }
+                if (bitmap != null && cache != null) {
+                    // Counted until the cache holds it, see ImageCache#addBitmapToMemCache
+                    budget.handOver(bitmap, reserved);
+                    handedOver = true;
+                }
+                return bitmap;
+            } catch (OutOfMemoryError e) {
+                if (attempt == MAX_OOM_RETRIES) {
+                    synchronized (sStatsLock) {
+                        sOomFailureCount++;
+                    }
+                    Log.e(TAG, "decode - " + e);
+                    return null;
+                }
+                if (cache != null) {
+                    cache.trimForOutOfMemory();
+                }
+                clearInBitmap(options);
+                options.inSampleSize = Math.max(1, options.inSampleSize) * 2;
+                if (attempt > 0 && "image/jpeg".equals(options.outMimeType)) {
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                }
+            } finally {
+                if (!handedOver) {
+                    budget.release(reserved);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The pooled bitmap the decode is going to reuse, or null
+     */
+    private static Bitmap getInBitmap(BitmapFactory.Options options) {
+        if (!Utils.hasHoneycomb()) {
+            return null;
+        }
+        return getInBitmapHoneycomb(options);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bitmap getInBitmapHoneycomb(BitmapFactory.Options options) {
+        return options.inBitmap;
+    }
+
+    /**
+     * Stop a decode from reusing the pooled bitmap it was given.
+     *
+     * @return true if the options held a bitmap to reuse
+     */
+    private static boolean clearInBitmap(BitmapFactory.Options options) {
+        if (!Utils.hasHoneycomb()) {
+            return false;
+        }
+        return clearInBitmapHoneycomb(options);
+    }
 
-        // If we're running on Honeycomb or newer, try to use inBitmap
-        if (Utils.hasHoneycomb()) {
-            addInBitmapOptions(options, cache);
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean clearInBitmapHoneycomb(BitmapFactory.Options options) {
+        if (options.inBitmap == null) {
+            return false;
+        }
+        options.inBitmap = null;
+        return true;
+    }
+
+    /**
+     * @return The number of decodes that succeeded after an OutOfMemoryError
+     */
+    public static int getOutOfMemoryRecoveryCount() {
+        synchronized (sStatsLock) {
+            return sOomRecoveryCount;
         }
+    }
 
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+    /**
+     * @return The number of decodes that ran out of memory on every retry
+     */
+    public static int getOutOfMemoryFailureCount() {
+        synchronized (sStatsLock) {
+            return sOomFailureCount;
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -286,6 +586,29 @@ public class ImageUtils {
  		return 0;
  	}
 
+    /**
+     * Lets the caller of
+     * {@link ImageUtils#downloadUrlToStream(String, OutputStream, int, DownloadCancellation)}
+     * stop a transfer part way.
+     */
+    public interface DownloadCancellation {
+        /**
+         * Checked regularly while the body is being read.
+         *
+         * @param bytesRead Bytes transferred so far
+         * @param contentLength Length announced by the server, or -1 if unknown
+         * @return true to abort the transfer
+         */
+        boolean shouldAbort(long bytesRead, long contentLength);
+    }
+
+    // Transfer buffers are recycled between downloads, one per concurrent download is enough
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final List<byte[]> sBufferPool = new ArrayList<byte[]>(MAX_POOLED_BUFFERS);
+    private static final Object sStatsLock = new Object();
+    private static long sDownloadedBytes;
+    private static long sDownloadTimeMs;
+
     /**
      * Download a bitmap from a URL and write the content to an output stream.
      *
@@ -293,20 +616,43 @@ public class ImageUtils {
      * @return true if successful, false otherwise
      */
     public static boolean downloadUrlToStream(String urlString, OutputStream outputStream,int ioBufferSize) {
+        return downloadUrlToStream(urlString, outputStream, ioBufferSize, null);
+    }
+
+    /**
+     * Download a bitmap from a URL and write the content to an output stream, giving up as
+     * soon as the cancellation asks for it.
+     *
+     * @param urlString The URL to fetch
+     * @param cancellation Checked every ioBufferSize bytes, may be null
+     * @return true if successful, false otherwise or if the transfer was aborted
+     */
+    public static boolean downloadUrlToStream(String urlString, OutputStream outputStream,
+            int ioBufferSize, DownloadCancellation cancellation) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
+        final byte[] buffer = obtainBuffer(ioBufferSize);
+        final long startTime = SystemClock.uptimeMillis();
+        long bytesRead = 0;
 
         try {
             final URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), ioBufferSize);
-            out = new BufferedOutputStream(outputStream, ioBufferSize);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final long contentLength = urlConnection.getContentLength();
+            in = urlConnection.getInputStream();
+
+            // Move whole chunks, the cache file gets one write per read from the socket
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+                bytesRead += count;
+                if (cancellation != null && cancellation.shouldAbort(bytesRead, contentLength)) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "downloadUrlToStream - aborted after " + bytesRead + " bytes");
+                    }
+                    return false;
+                }
             }
             return true;
         } catch (final IOException e) {
@@ -316,17 +662,65 @@ public class ImageUtils {
                 urlConnection.disconnect();
             }
             try {
-                if (out != null) {
-                    out.close();
-                }
+                outputStream.close();
                 if (in != null) {
                     in.close();
                 }
             } catch (final IOException e) {}
+            recycleBuffer(buffer);
+            recordDownload(urlString, bytesRead, SystemClock.uptimeMillis() - startTime);
         }
         return false;
     }
 
+    /**
+     * @return Bytes received by all downloads so far, complete or not
+     */
+    public static long getDownloadedBytes() {
+        synchronized (sStatsLock) {
+            return sDownloadedBytes;
+        }
+    }
+
+    /**
+     * @return Average download throughput in bytes per second, 0 before the first download
+     */
+    public static long getDownloadBytesPerSecond() {
+        synchronized (sStatsLock) {
+            return sDownloadTimeMs > 0 ? sDownloadedBytes * 1000 / sDownloadTimeMs : 0;
+        }
+    }
+
+    private static void recordDownload(String urlString, long bytes, long elapsedMs) {
+        synchronized (sStatsLock) {
+            sDownloadedBytes += bytes;
+            sDownloadTimeMs += elapsedMs;
+        }
+        if (BuildConfig.DEBUG && elapsedMs > 0) {
+            Log.d(TAG, "downloadUrlToStream - " + bytes + " bytes in " + elapsedMs + "ms ("
+                    + (bytes * 1000 / elapsedMs) + " B/s) " + urlString);
+        }
+    }
+
+    private static byte[] obtainBuffer(int size) {
+        synchronized (sBufferPool) {
+            for (int i = sBufferPool.size() - 1; i >= 0; i--) {
+                if (sBufferPool.get(i).length == size) {
+                    return sBufferPool.remove(i);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.add(buffer);
+            }
+        }
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
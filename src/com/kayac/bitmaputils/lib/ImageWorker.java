@@ -17,10 +17,20 @@
 package com.kayac.bitmaputils.lib;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -29,14 +39,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.kayac.bitmaputils.BuildConfig;
-import com.kayac.bitmaputils.test.Utils;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading
@@ -52,11 +61,18 @@ public  class ImageWorker {
 	private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
 	private static final String HTTP_CACHE_DIR = "http";
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	// Downloads up to this size are also kept in memory and decoded without reading the cache file
+	private static final int MAX_STREAMED_DOWNLOAD_SIZE = 2 * 1024 * 1024; // 2MB
 	private DiskLruCache mHttpDiskCache;
 	private File mHttpCacheDir;
 	private boolean mHttpDiskCacheStarting = true;
 	private final Object mHttpDiskCacheLock = new Object();
 	private static final int DISK_CACHE_INDEX = 0;
+	// Downloads running into the http cache, by disk cache key, counted down once the entry is
+	// committed or dropped. Other loads of the same url wait for it instead of downloading again.
+	private final HashMap<String, CountDownLatch> mDownloadsInFlight = new HashMap<String, CountDownLatch>();
+	// How often a load waiting for another download of its url checks whether it was cancelled
+	private static final long DOWNLOAD_WAIT_POLL_MILLIS = 100;
 
 	private ImageCache mImageCache;
 	private ImageCache.ImageCacheParams mImageCacheParams;
@@ -64,9 +80,40 @@ public  class ImageWorker {
 	private boolean mFadeInBitmap = true;
 	private boolean mExitTasksEarly = false;
 	protected boolean mPauseWork = false;
+	// Guards mPauseWork and the tasks parked while work is paused
 	private final Object mPauseWorkLock = new Object();
+	private final List<BitmapWorkerTask> mPausedTasks = new ArrayList<BitmapWorkerTask>();
+	private long mPauseStartTime;
+	private long mPausedTime;
+
+	// Tasks that are queued or running, keyed by request. Only touched on the UI thread.
+	private final HashMap<LoadRequest, BitmapWorkerTask> mInFlightTasks =
+			new HashMap<LoadRequest, BitmapWorkerTask>();
+
+	// Prefetch state. The maps and counters are only touched on the UI thread, the
+	// unclaimed byte counts are also read by the pipeline threads to enforce the budgets.
+	private static final int DEFAULT_PREFETCH_MEMORY_BUDGET = 4 * 1024 * 1024; // 4MB
+	private static final int DEFAULT_PREFETCH_DOWNLOAD_BUDGET = 2 * 1024 * 1024; // 2MB
+	private final HashMap<LoadRequest, BitmapWorkerTask> mPrefetchTasks =
+			new HashMap<LoadRequest, BitmapWorkerTask>();
+	// Finished prefetches no view has asked for yet, oldest first
+	private final LinkedHashMap<LoadRequest, BitmapWorkerTask> mPrefetchedRequests =
+			new LinkedHashMap<LoadRequest, BitmapWorkerTask>();
+	private static final int MAX_PREFETCHED_REQUESTS = 256;
+	private boolean mPrefetchToMemory = false;
+	private int mPrefetchMemoryBudget = DEFAULT_PREFETCH_MEMORY_BUDGET;
+	private int mPrefetchDownloadBudget = DEFAULT_PREFETCH_DOWNLOAD_BUDGET;
+	private volatile long mUnclaimedPrefetchMemory;
+	private volatile long mUnclaimedPrefetchDownload;
+	private int mPrefetchCount;
+	private int mPrefetchHitCount;
+
+	// A cancelled download that already has this fraction of its body finishes into the http cache
+	private static final float DEFAULT_FINISH_CANCELLED_DOWNLOAD_AT = 0.75f;
+	private volatile float mFinishCancelledDownloadAt = DEFAULT_FINISH_CANCELLED_DOWNLOAD_AT;
 
 	protected Resources mResources;
+	private final LoadPipeline mPipeline;
 
 	private static final int MESSAGE_CLEAR = 0;
 	private static final int MESSAGE_INIT_DISK_CACHE = 1;
@@ -74,7 +121,16 @@ public  class ImageWorker {
 	private static final int MESSAGE_CLOSE = 3;
 
 	public ImageWorker(Context context) {
+		this(context, new LoadPipeline.PipelineParams());
+	}
+
+	/**
+	 * @param context
+	 * @param pipelineParams Pool sizes and thread priorities for the stages of this worker's loads
+	 */
+	public ImageWorker(Context context, LoadPipeline.PipelineParams pipelineParams) {
 		mResources = context.getResources();
+		mPipeline = new LoadPipeline(pipelineParams);
 		ImageUtils.checkConnection(context);
 		mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
 	}
@@ -82,14 +138,12 @@ public  class ImageWorker {
 	
 
 	/**
-	 * Load an image specified by the data parameter into an ImageView (override
-	 * {@link ImageWorker#decodeSampledBitmapFromNetwork(Object)} to define the processing
-	 * logic). A memory and disk cache will be used if an {@link ImageCache} has
-	 * been added using
+	 * Load an image specified by the data parameter into an ImageView. A memory
+	 * and disk cache will be used if an {@link ImageCache} has been added using
 	 * {@link ImageWorker#addImageCache(FragmentManager, ImageCache.ImageCacheParams)}
 	 * . If the image is found in the memory cache, it is set immediately,
-	 * otherwise an {@link AsyncTask} will be created to asynchronously load the
-	 * bitmap.
+	 * otherwise a task will be run through the stages of the {@link LoadPipeline}
+	 * to asynchronously load the bitmap.
 	 * 
 	 * @param data
 	 *            The LoadRequest of the image to download.
@@ -103,29 +157,161 @@ public  class ImageWorker {
 
 		BitmapDrawable value = null;
 		if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Loading bitmap for:"+data.key);
+		claimPrefetched(data);
 		if (mImageCache != null) {
-			value = mImageCache.getBitmapFromMemCache(String.valueOf(data.key));
+			value = mImageCache.getBitmapFromMemCache(data);
 		}
 
 		if (value != null) {
 			// Bitmap found in memory cache
 			if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Having bitmap in mem ");
+			pinIfUntracked(imageView, value);
 			imageView.setImageDrawable(value);
+			// The view holds its own display reference now
+			ImageCache.releaseLookup(value);
 		} else if (cancelPotentialWork(data, imageView)) {
-			final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
+			// Another view is already loading the same request, follow its result
+			// instead of starting a second disk lookup, download and decode
+			BitmapWorkerTask task = mInFlightTasks.get(data);
+			if (task != null && !task.isCancelled()) {
+				if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Joining in-flight load for:"+data.key);
+				task.addImageView(imageView, data.priority);
+				imageView.setImageDrawable(new AsyncDrawable(mResources, mLoadingBitmap, task));
+				if (imageView instanceof RecyclingImageView) {
+					((RecyclingImageView) imageView).onLoadStarted();
+				}
+				return;
+			}
+
+			task = new BitmapWorkerTask(data, imageView);
+			mInFlightTasks.put(data, task);
 			final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mLoadingBitmap, task);
 			imageView.setImageDrawable(asyncDrawable);
 
-			// NOTE: This uses a custom version of AsyncTask that has been
-			// pulled from the
-			// framework and slightly modified. Refer to the docs at the top of
-			// the class
-			// for more info on what was changed.
-			task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, data);
+			task.execute();
 		}
 	}
 
-	
+	/**
+	 * Warm the caches for images that are likely to be shown soon. Remote images are
+	 * downloaded into the disk cache, and decoded into the memory cache as well if
+	 * {@link #setPrefetchToMemory(boolean)} is on. Prefetches run at
+	 * {@link LoadRequest#PRIORITY_PREFETCH}, below visible loads, and stop once the
+	 * budgets set by {@link #setPrefetchBudget(int, int)} are used up by prefetched images
+	 * that no view has asked for yet.
+	 * 
+	 * @param requests
+	 *            The requests to warm, most wanted first. They are served in list order
+	 *            whether the pipeline is LIFO or not, at prefetch priority. The requests
+	 *            themselves are not changed, a view may load the same object meanwhile.
+	 */
+	public void prefetch(List<LoadRequest> requests) {
+		// Among equal priorities a LIFO pipeline serves the last queued first
+		final int count = requests.size();
+		final boolean reverse = mPipeline.isLifo();
+		for (int i = 0; i < count; i++) {
+			final LoadRequest data = requests.get(reverse ? count - 1 - i : i);
+			if (data == null || mInFlightTasks.containsKey(data)
+					|| mPrefetchedRequests.containsKey(data)) {
+				continue;
+			}
+			if (mImageCache != null) {
+				final BitmapDrawable cached = mImageCache.getBitmapFromMemCache(data);
+				if (cached != null) {
+					ImageCache.releaseLookup(cached);
+					continue;
+				}
+			}
+			// Equal to the caller's request, so a view asking for it joins the prefetch
+			final LoadRequest prefetch = LoadRequest.withPriority(data, LoadRequest.PRIORITY_PREFETCH);
+			final BitmapWorkerTask task = new BitmapWorkerTask(prefetch, null);
+			mInFlightTasks.put(prefetch, task);
+			mPrefetchTasks.put(prefetch, task);
+			task.execute();
+		}
+	}
+
+	/**
+	 * Cancel all prefetches that no view has asked for yet, for example when the scroll
+	 * direction changes. Finished prefetches stay known, so a view asking for one later
+	 * still counts as a prefetch hit, but they no longer count against the budgets.
+	 */
+	public void cancelPrefetch() {
+		for (BitmapWorkerTask task : new ArrayList<BitmapWorkerTask>(mPrefetchTasks.values())) {
+			if (task.isViewless()) {
+				task.cancel();
+				task.removeInFlight();
+			}
+		}
+		for (BitmapWorkerTask prefetched : mPrefetchedRequests.values()) {
+			prefetched.decodedBytes = 0;
+			prefetched.downloadedBytes = 0;
+		}
+		mUnclaimedPrefetchMemory = 0;
+		mUnclaimedPrefetchDownload = 0;
+	}
+
+	/**
+	 * If set to true, prefetched images are also decoded into the memory cache, not only
+	 * downloaded into the disk cache.
+	 */
+	public void setPrefetchToMemory(boolean prefetchToMemory) {
+		mPrefetchToMemory = prefetchToMemory;
+	}
+
+	/**
+	 * Set how much prefetched data may wait for a view to ask for it.
+	 * 
+	 * @param memoryBytes
+	 *            Bytes of prefetched bitmaps in the memory cache
+	 * @param downloadBytes
+	 *            Bytes of prefetched downloads
+	 */
+	public void setPrefetchBudget(int memoryBytes, int downloadBytes) {
+		mPrefetchMemoryBudget = memoryBytes;
+		mPrefetchDownloadBudget = downloadBytes;
+	}
+
+	/**
+	 * @return The number of prefetches that downloaded or decoded an image
+	 */
+	public int getPrefetchCount() {
+		return mPrefetchCount;
+	}
+
+	/**
+	 * @return The number of prefetched images that a view asked for afterwards
+	 */
+	public int getPrefetchHitCount() {
+		return mPrefetchHitCount;
+	}
+
+	/**
+	 * Count a view load of a prefetched or still prefetching image as a prefetch hit.
+	 */
+	private void claimPrefetched(LoadRequest data) {
+		final BitmapWorkerTask prefetched = mPrefetchedRequests.remove(data);
+		if (prefetched != null) {
+			mPrefetchHitCount++;
+			mUnclaimedPrefetchMemory -= prefetched.decodedBytes;
+			mUnclaimedPrefetchDownload -= prefetched.downloadedBytes;
+			if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Prefetch hit for:"+data.key);
+		} else {
+			final BitmapWorkerTask task = mPrefetchTasks.get(data);
+			if (task != null && task.isViewless() && !task.isCancelled()) {
+				mPrefetchHitCount++;
+			}
+		}
+	}
+
+	private boolean canPrefetchToMemory() {
+		return mPrefetchToMemory && mImageCache != null
+				&& mUnclaimedPrefetchMemory < mPrefetchMemoryBudget;
+	}
+
+	private boolean canPrefetchDownload() {
+		return mUnclaimedPrefetchDownload < mPrefetchDownloadBudget;
+	}
 	
 	/**
 	 * Set placeholder bitmap that shows when the the background thread is
@@ -186,6 +372,17 @@ public  class ImageWorker {
 		mFadeInBitmap = fadeIn;
 	}
 
+	/**
+	 * Set how far a download must have got for it to be completed into the http cache even
+	 * though its load was cancelled, so that scrolling back does not start it over. Downloads
+	 * of unknown length are always aborted.
+	 *
+	 * @param fraction Fraction of the announced length, 1 or more to always abort
+	 */
+	public void setFinishCancelledDownloadAt(float fraction) {
+		mFinishCancelledDownloadAt = fraction;
+	}
+
 	/**
 	 * Exit current image downloading task. For example when activity onPause
 	 * @param exitTasksEarly
@@ -204,23 +401,52 @@ public  class ImageWorker {
 		return mImageCache;
 	}
 	
+	/**
+	 * Get the largest resolution of the request's source from the memory cache, whatever
+	 * size it was loaded at, to show while the size of a view is not known yet. The drawable
+	 * holds an in-flight reference, hand it back with {@link ImageCache#releaseLookup} once it
+	 * is displayed or dropped.
+	 * 
+	 * @param data
+	 * @return The cached drawable, or null
+	 */
+	public BitmapDrawable getCachedPreview(LoadRequest data) {
+		if (mImageCache == null || data == null) {
+			return null;
+		}
+		return mImageCache.getBitmapFromMemCache(data.key);
+	}
+
 	/**
 	 * Return Memory cache for custom data load, shared
 	 * @return
 	 */
-	public LruCache<String, BitmapDrawable> getSharedLruCache(){
-		if(mImageCache!=null&&mImageCache.getMemoryCache()!=null) return mImageCache.getMemoryCache();
-		return null;
+	public TinyLfuCache<String, BitmapDrawable> getSharedMemoryCache(){
+		return mImageCache != null ? mImageCache.getMemoryCache() : null;
+	}
+
+	/**
+	 * The memory cache used to be a {@link android.support.v4.util.LruCache}. Its get, put and
+	 * remove are final, so no LruCache can stand in for the shared {@link TinyLfuCache}.
+	 * TinyLfuCache has the same methods apart from create, callers only need to change the
+	 * declared type.
+	 *
+	 * @deprecated Use {@link #getSharedMemoryCache()}
+	 */
+	@Deprecated
+	public TinyLfuCache<String, BitmapDrawable> getSharedLruCache(){
+		return getSharedMemoryCache();
 	}
 	/**
-	 * Cancels any pending work attached to the provided ImageView.
+	 * Cancels any pending work attached to the provided ImageView. If other views are
+	 * waiting on the same load, the work keeps running for them.
 	 * 
 	 * @param imageView
 	 */
 	public static void cancelWork(ImageView imageView) {
 		final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 		if (bitmapWorkerTask != null) {
-			bitmapWorkerTask.cancel(true);
+			bitmapWorkerTask.removeImageView(imageView);
 			if (BuildConfig.DEBUG) {
 				final Object bitmapData = bitmapWorkerTask.data;
 				Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
@@ -239,7 +465,7 @@ public  class ImageWorker {
 		if (bitmapWorkerTask != null) {
 			final Object bitmapData = bitmapWorkerTask.data;
 			if (bitmapData == null || !bitmapData.equals(data)) {
-				bitmapWorkerTask.cancel(true);
+				bitmapWorkerTask.removeImageView(imageView);
 				if (BuildConfig.DEBUG) {
 					Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
 				}
@@ -269,127 +495,407 @@ public  class ImageWorker {
 	}
 
 	/**
-	 * The actual AsyncTask that will asynchronously process the image.
+	 * The staged work that will asynchronously process the image. Each stage runs on its own
+	 * pool of the {@link LoadPipeline}: a disk probe, then a network fetch when nothing was
+	 * cached, then a decode; the decoded bitmap is handed to the disk writer afterwards. One
+	 * task serves every ImageView that asked for an equal {@link LoadRequest} while it was in
+	 * flight, and is only cancelled once the last of them has gone away. A prefetch task starts
+	 * without any ImageView and stops as soon as the caches are warm, unless a view joins it.
 	 */
-	private class BitmapWorkerTask extends AsyncTask<LoadRequest, Void, BitmapDrawable> {
-		private LoadRequest data;
-		private final WeakReference<ImageView> imageViewReference;
+	private class BitmapWorkerTask implements ImageUtils.DownloadCancellation {
+		private static final int STAGE_DONE = -1;
+
+		private final LoadRequest data;
+		private final List<WeakReference<ImageView>> imageViewReferences =
+				new ArrayList<WeakReference<ImageView>>(1);
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+		private final AtomicBoolean delivered = new AtomicBoolean();
+		// The highest priority among the subscribed views, used when queueing the next stage
+		private volatile int priority;
+		// The work of the current stage while it waits in its queue, so it can be pulled out
+		private final AtomicReference<StageWork> queued = new AtomicReference<StageWork>();
+		// The stage to resubmit once paused work resumes, guarded by mPauseWorkLock
+		private int parkedStage;
+
+		// Handed from the disk probe or network stage to the decode stage
+		private FileInputStream source;
+		private boolean sourceIsProcessed;
+		private DownloadBuffer downloadBuffer;
+		private BitmapDrawable result;
+		// The options of the decode in progress, so cancel() can stop it
+		private volatile BitmapFactory.Options decodeOptions;
+
+		// Set for prefetch tasks until a view joins them
+		private volatile boolean viewless;
+		private final boolean prefetch;
+		private long downloadedBytes;
+		private long decodedBytes;
 
-		public BitmapWorkerTask(ImageView imageView) {
-			imageViewReference = new WeakReference<ImageView>(imageView);
+		/**
+		 * @param data
+		 * @param imageView The view to load into, or null for a prefetch
+		 */
+		public BitmapWorkerTask(LoadRequest data, ImageView imageView) {
+			this.data = data;
+			this.priority = data.priority;
+			this.prefetch = imageView == null;
+			this.viewless = prefetch;
+			if (imageView != null) {
+				imageViewReferences.add(new WeakReference<ImageView>(imageView));
+			}
 		}
 
-		@Override
-		protected void onPreExecute() {
-			super.onPreExecute();
-			ImageView imageView = getAttachedImageView();
-			if (imageView != null && imageView instanceof RecyclingImageView) {
-				((RecyclingImageView) imageView).onLoadStarted();
+		public boolean isViewless() {
+			return viewless;
+		}
+
+		/**
+		 * Subscribe another ImageView to the result of this task. A higher priority
+		 * subscriber raises the priority of the stages that are still to come.
+		 */
+		public void addImageView(ImageView imageView, int requestPriority) {
+			synchronized (imageViewReferences) {
+				imageViewReferences.add(new WeakReference<ImageView>(imageView));
+			}
+			viewless = false;
+			if (requestPriority > priority) {
+				priority = requestPriority;
 			}
 		}
 
 		/**
-		 * Background processing.
+		 * Unsubscribe an ImageView from this task, cancelling the task if no other view
+		 * is waiting for it anymore.
 		 */
-		@Override
-		protected BitmapDrawable doInBackground(LoadRequest... params) {
-			if (BuildConfig.DEBUG) {
-				Log.d(TAG, "doInBackground - starting work");
+		public void removeImageView(ImageView imageView) {
+			boolean orphaned;
+			synchronized (imageViewReferences) {
+				final Iterator<WeakReference<ImageView>> iterator = imageViewReferences.iterator();
+				while (iterator.hasNext()) {
+					final ImageView item = iterator.next().get();
+					if (item == null || item == imageView) {
+						iterator.remove();
+					}
+				}
+				orphaned = imageViewReferences.isEmpty();
 			}
+			if (orphaned) {
+				cancel();
+				removeInFlight();
+			}
+		}
 
-			data = params[0];
-			final int loadType = data.type;
-			String key = data.key;
-			Bitmap bitmap = null;
-			BitmapDrawable drawable = null;
+		public boolean isCancelled() {
+			return cancelled.get();
+		}
 
-			// Wait here if work is paused and the task is not cancelled
+		/**
+		 * Cancel the task, must be called on the UI thread. Work still waiting in a queue
+		 * is pulled out so it never takes a thread.
+		 */
+		public void cancel() {
+			if (!cancelled.compareAndSet(false, true)) {
+				return;
+			}
+			boolean parked;
 			synchronized (mPauseWorkLock) {
-				while (mPauseWork && !isCancelled()) {
-					try {
-						mPauseWorkLock.wait();
-					} catch (InterruptedException e) {
-					}
+				parked = mPausedTasks.remove(this);
+			}
+			final StageWork work = queued.get();
+			if (parked || (work != null && mPipeline.remove(work.stage, work.handle))) {
+				if (BuildConfig.DEBUG) {
+					Log.d(TAG, "cancel - removed queued work for " + data);
 				}
+				closeSource();
+				deliver();
+				return;
+			}
+			// Already running: the download loop polls shouldAbort(), the decoder is told directly
+			final BitmapFactory.Options options = decodeOptions;
+			if (options != null) {
+				options.requestCancelDecode();
 			}
+		}
 
-			// If the image cache is available and this task has not been
-			// cancelled by another
-			// thread and the ImageView that was originally bound to this task
-			// is still bound back
-			// to this task and our "exit early" flag is not set then try and
-			// fetch the bitmap from
-			// the cache
-			// Long: Because we already search for mem cache, it is unavaiable,
-			// so we search for diskcache here
-			if (mImageCache != null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly
-					&& loadType == LoadRequest.TYPE_REMOTE_PATH) {
-				
-				bitmap = mImageCache.getBitmapFromDiskCache(key);
-				if (DEBUG) {
-					Log.d(TAG, "doInBackground - Load from disk cache, result is :"+bitmap!=null?"ok":"null");
+		@Override
+		public boolean shouldAbort(long bytesRead, long contentLength) {
+			if (!isCancelled() && !mExitTasksEarly) {
+				return false;
+			}
+			if (contentLength > 0 && bytesRead >= contentLength * mFinishCancelledDownloadAt) {
+				// Nearly there, finish into the http cache rather than throw the bytes away
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Start the task, must be called on the UI thread.
+		 */
+		public void execute() {
+			for (ImageView imageView : getAttachedImageViews()) {
+				if (imageView instanceof RecyclingImageView) {
+					((RecyclingImageView) imageView).onLoadStarted();
 				}
 			}
+			submit(LoadPipeline.STAGE_DISK_PROBE);
+		}
 
-			// If the bitmap was not found in the cache and this task has not
-			// been cancelled by
-			// another thread and the ImageView that was originally bound to
-			// this task is still
-			// bound back to this task and our "exit early" flag is not set,
-			// then call the main
-			// process method (as implemented by a subclass)
-			if (bitmap == null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-				if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Processing bitmap: "+data.key);
-				bitmap = processBitmap(data);
-				if(bitmap!=null){
-					if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Size after: "+bitmap.getWidth()+":"+bitmap.getHeight());
+		private void submit(final int stage) {
+			synchronized (mPauseWorkLock) {
+				if (mPauseWork) {
+					// Keep the work out of the pools while paused, so no thread sits
+					// waiting on it. It is resubmitted by setPauseWork(false).
+					parkedStage = stage;
+					mPausedTasks.add(this);
+					return;
 				}
 			}
+			// Published before it is queued, a pool thread may run it and submit the next
+			// stage before execute returns
+			final StageWork work = new StageWork(stage);
+			queued.set(work);
+			work.handle = mPipeline.execute(stage, priority, work);
+		}
+
+		/**
+		 * The work of one stage, with the handle its pool queued it under.
+		 */
+		private class StageWork implements Runnable {
+			final int stage;
+			// Null until execute returned, cancel() then lets the work run and stop on its own
+			volatile Runnable handle;
+
+			StageWork(int stage) {
+				this.stage = stage;
+			}
+
+			@Override
+			public void run() {
+				// The next stage may already have replaced this one
+				queued.compareAndSet(this, null);
+				int next = STAGE_DONE;
+				try {
+					next = runStage(stage);
+				} finally {
+					if (next == STAGE_DONE) {
+						deliver();
+					} else {
+						submit(next);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Background processing of one stage.
+		 *
+		 * @return The next stage to run, or STAGE_DONE
+		 */
+		private int runStage(int stage) {
+			// If this task has not been cancelled by another thread and one of the ImageViews
+			// that were bound to this task is still bound back to this task and our "exit
+			// early" flag is not set then carry on with the next stage
+			if (isCancelled() || (!viewless && !hasAttachedImageView()) || mExitTasksEarly) {
+				closeSource();
+				return STAGE_DONE;
+			}
 
-			// If the bitmap was processed and the image cache is available,
-			// then add the processed
-			// bitmap to the cache for future use. Note we don't check if the
-			// task was cancelled
-			// here, if it was, and the thread is still running, we may as well
-			// add the processed
-			// bitmap to our cache as it might be used again in the future
-			if (bitmap != null) {
-				if (Utils.hasHoneycomb()) {
-					// Running on Honeycomb or newer, so wrap in a standard
-					// BitmapDrawable
-					drawable = new BitmapDrawable(mResources, bitmap);
+			switch (stage) {
+			case LoadPipeline.STAGE_DISK_PROBE:
+				return probeDisk();
+			case LoadPipeline.STAGE_NETWORK:
+				return fetchFromNetwork();
+			case LoadPipeline.STAGE_DECODE:
+				return decode();
+			default:
+				return STAGE_DONE;
+			}
+		}
+
+		/**
+		 * Look for the source in the processed disk cache and the http cache. Only remote
+		 * requests have something to find on disk, local ones go straight to decoding.
+		 */
+		private int probeDisk() {
+			if (data.type != LoadRequest.TYPE_REMOTE_PATH) {
+				// Local sources have nothing to warm on disk
+				return viewless && !canPrefetchToMemory() ? STAGE_DONE : LoadPipeline.STAGE_DECODE;
+			}
+			// Long: Because we already search for mem cache, it is unavaiable,
+			// so we search for diskcache here. Only the entry processed for this exact
+			// request is used, any other size decodes from the http cache.
+			if (mImageCache != null) {
+				source = mImageCache.getStreamFromDiskCache(data);
+				sourceIsProcessed = source != null;
+			}
+			if (source == null) {
+				source = getStreamFromHttpCache(data.key);
+			}
+			if (DEBUG) {
+				Log.d(TAG, "probeDisk - " + data.key + " found on disk: " + (source != null));
+			}
+			if (source != null) {
+				return continueWithDecode();
+			}
+			return viewless && !canPrefetchDownload() ? STAGE_DONE : LoadPipeline.STAGE_NETWORK;
+		}
+
+		private int fetchFromNetwork() {
+			if (!viewless || canPrefetchToMemory()) {
+				// The body is going to be decoded, keep a copy of it on the way to the cache
+				downloadBuffer = new DownloadBuffer(MAX_STREAMED_DOWNLOAD_SIZE);
+			}
+			source = downloadToHttpCache(data.key, this, downloadBuffer);
+			final boolean streamed = downloadBuffer != null && downloadBuffer.isUsable();
+			if (source == null && !streamed) {
+				closeSource();
+				return STAGE_DONE;
+			}
+			if (prefetch) {
+				if (streamed) {
+					downloadedBytes = downloadBuffer.size();
 				} else {
-					// Running on Gingerbread or older, so wrap in a
-					// RecyclingBitmapDrawable
-					// which will recycle automagically
-					drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+					try {
+						downloadedBytes = source.getChannel().size();
+					} catch (IOException e) {}
 				}
+			}
+			return continueWithDecode();
+		}
+
+		/**
+		 * A prefetch that only warms the disk cache is done once the source is on disk.
+		 */
+		private int continueWithDecode() {
+			if (viewless && !canPrefetchToMemory()) {
+				closeSource();
+				return STAGE_DONE;
+			}
+			return LoadPipeline.STAGE_DECODE;
+		}
 
-				if (mImageCache != null) {
-					mImageCache.addBitmapToCache(data, drawable);
+		private int decode() {
+			if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Processing bitmap: "+data.key);
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = data.getBitmapConfig();
+			decodeOptions = options;
+			// cancel() may have run before the options were published
+			if (isCancelled()) {
+				options.requestCancelDecode();
+			}
+			Bitmap bitmap;
+			try {
+				bitmap = processBitmap(data, source, sourceIsProcessed, downloadBuffer, options);
+			} finally {
+				decodeOptions = null;
+				closeSource();
+			}
+			if (bitmap == null) {
+				return STAGE_DONE;
+			}
+			if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"Size after: "+bitmap.getWidth()+":"+bitmap.getHeight());
+
+			// Wrap in a RecyclingBitmapDrawable on every version, which recycles the bitmap
+			// on Gingerbread or older and pools it on Honeycomb or newer once nothing uses it.
+			// It stays in flight until it has been delivered to the views.
+			final ImageCache imageCache = mImageCache;
+			final RecyclingBitmapDrawable drawable = new RecyclingBitmapDrawable(mResources, bitmap,
+					imageCache != null ? imageCache.getBitmapPool() : null);
+			drawable.setIsInFlight(true);
+
+			// Add the processed bitmap to the cache for future use. Note we don't check if the
+			// task was cancelled here, if it was, and the thread is still running, we may as well
+			// add the processed bitmap to our cache as it might be used again in the future.
+			// The disk write is left to the disk writer so it does not delay the result, it
+			// holds the bitmap in flight so it is not reused while being compressed.
+			if (imageCache != null) {
+				imageCache.addBitmapToMemCache(data, drawable);
+				if (!sourceIsProcessed) {
+					drawable.setIsInFlight(true);
+					mPipeline.execute(LoadPipeline.STAGE_DISK_WRITE, new Runnable() {
+						@Override
+						public void run() {
+							try {
+								imageCache.addBitmapToDiskCache(data, drawable);
+							} finally {
+								drawable.setIsInFlight(false);
+							}
+						}
+					});
 				}
 			}
+			if (prefetch) {
+				decodedBytes = ImageCache.getBitmapSize(drawable);
+			}
+			result = drawable;
+			return STAGE_DONE;
+		}
 
-			if (BuildConfig.DEBUG) {
-				Log.d(TAG, "doInBackground - finished work");
+		private void closeSource() {
+			if (source != null) {
+				try {
+					source.close();
+				} catch (IOException e) {}
+				source = null;
+			}
+			if (downloadBuffer != null) {
+				downloadBuffer.release();
+				downloadBuffer = null;
 			}
+		}
 
-			return drawable;
+		/**
+		 * Hand the result over to the UI thread, once.
+		 */
+		private void deliver() {
+			if (!delivered.compareAndSet(false, true)) {
+				return;
+			}
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "BitmapWorkerTask - finished work");
+			}
+			final BitmapDrawable value = result;
+			LoadPipeline.postToMainThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (isCancelled()) {
+							onCancelled();
+						} else {
+							onPostExecute(value);
+						}
+					} finally {
+						// The views hold their own display references by now
+						if (value instanceof RecyclingBitmapDrawable) {
+							((RecyclingBitmapDrawable) value).setIsInFlight(false);
+						}
+					}
+				}
+			});
 		}
 
 		/**
 		 * Once the image is processed, associates it to the imageView
 		 */
-		@Override
-		protected void onPostExecute(BitmapDrawable value) {
-			// if cancel was called on this task or the "exit early" flag is set
-			// then we're done
-			if (isCancelled() || mExitTasksEarly) {
+		private void onPostExecute(BitmapDrawable value) {
+			// if the "exit early" flag is set then we're done
+			if (mExitTasksEarly) {
 				value = null;
 			}
 
-			final ImageView imageView = getAttachedImageView();
-			if (imageView != null) {
+			removeInFlight();
+			if (prefetch) {
+				onPrefetchFinished(value);
+			}
+			for (ImageView imageView : getAttachedImageViews()) {
+				if (prefetch && value == null && !mExitTasksEarly) {
+					// A view joined a prefetch that stopped once the disk cache was warm,
+					// load it properly now
+					imageView.setImageDrawable(null);
+					loadImage(LoadRequest.withPriority(data, LoadRequest.PRIORITY_VISIBLE), imageView);
+					continue;
+				}
 				if (imageView instanceof RecyclingImageView) {
 					((RecyclingImageView) imageView).onLoadFinished();
 				}
@@ -401,133 +907,328 @@ public  class ImageWorker {
 					if (BuildConfig.DEBUG) {
 						Log.d(TAG, "onPostExecute - setting bitmap");
 					}
+					pinIfUntracked(imageView, value);
 					setImageDrawable(imageView, value);
 				}
 			}
 		}
 
-		@Override
-		protected void onCancelled(BitmapDrawable value) {
-			super.onCancelled(value);
-			synchronized (mPauseWorkLock) {
-				mPauseWorkLock.notifyAll();
+		private void onCancelled() {
+			removeInFlight();
+		}
+
+		/**
+		 * Resubmit work parked while paused, must be called on the UI thread. Work for views
+		 * that went away in the meantime is dropped, the rest is queued again at a priority
+		 * matching whether its views are on screen now.
+		 */
+		private void resume(int stage) {
+			if (!viewless) {
+				boolean shown = false;
+				boolean attached = false;
+				for (ImageView imageView : getAttachedImageViews()) {
+					attached = true;
+					shown |= imageView.isShown();
+				}
+				if (!attached) {
+					cancelled.set(true);
+					closeSource();
+					deliver();
+					return;
+				}
+				if (shown) {
+					priority = LoadRequest.PRIORITY_VISIBLE;
+				} else if (priority == LoadRequest.PRIORITY_VISIBLE) {
+					priority = LoadRequest.PRIORITY_BACKGROUND;
+				}
 			}
+			submit(stage);
 		}
 
 		/**
-		 * Returns the ImageView associated with this task as long as the
-		 * ImageView's task still points to this task as well. Returns null
-		 * otherwise.
+		 * Account a finished prefetch that nobody has asked for yet against the budgets.
 		 */
-		private ImageView getAttachedImageView() {
-			final ImageView imageView = imageViewReference.get();
-			final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+		private void onPrefetchFinished(BitmapDrawable value) {
+			if (viewless && (downloadedBytes > 0 || value != null)) {
+				mPrefetchCount++;
+				mPrefetchedRequests.put(data, this);
+				mUnclaimedPrefetchMemory += decodedBytes;
+				mUnclaimedPrefetchDownload += downloadedBytes;
+				if (mPrefetchedRequests.size() > MAX_PREFETCHED_REQUESTS) {
+					// Forget the oldest one nobody asked for
+					final Iterator<BitmapWorkerTask> it = mPrefetchedRequests.values().iterator();
+					final BitmapWorkerTask oldest = it.next();
+					it.remove();
+					mUnclaimedPrefetchMemory -= oldest.decodedBytes;
+					mUnclaimedPrefetchDownload -= oldest.downloadedBytes;
+				}
+			}
+		}
 
-			if (this == bitmapWorkerTask) {
-				return imageView;
+		/**
+		 * Forget this task as the in-flight load for its request, must be called on the UI thread.
+		 */
+		private void removeInFlight() {
+			if (mInFlightTasks.get(data) == this) {
+				mInFlightTasks.remove(data);
+			}
+			if (mPrefetchTasks.get(data) == this) {
+				mPrefetchTasks.remove(data);
 			}
+		}
 
-			return null;
+		/**
+		 * Returns true if at least one subscribed ImageView still points back to this task.
+		 */
+		private boolean hasAttachedImageView() {
+			synchronized (imageViewReferences) {
+				for (WeakReference<ImageView> reference : imageViewReferences) {
+					final ImageView imageView = reference.get();
+					if (imageView != null && this == getBitmapWorkerTask(imageView)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the ImageViews associated with this task as long as the
+		 * ImageView's task still points to this task as well.
+		 */
+		private List<ImageView> getAttachedImageViews() {
+			final List<ImageView> attached = new ArrayList<ImageView>(1);
+			synchronized (imageViewReferences) {
+				for (WeakReference<ImageView> reference : imageViewReferences) {
+					final ImageView imageView = reference.get();
+					if (imageView != null && this == getBitmapWorkerTask(imageView)) {
+						attached.add(imageView);
+					}
+				}
+			}
+			return attached;
 		}
 	}
 	
 	
 	/**
 	 * Depends on request type, choose the right bitmap process methods
-	 * @param loadRequest
+	 * @param request
+	 * @param source The opened cache file for remote requests
+	 * @param processed Whether the source comes from the processed disk cache and is already sampled
+	 * @param streamed The body kept in memory while it was downloaded, decoded in place of the source
+	 * @param options Fresh options to decode with, kept by the caller to cancel the decode
 	 * @return
 	 */
-	private Bitmap processBitmap(LoadRequest request) {
+	private Bitmap processBitmap(LoadRequest request, FileInputStream source, boolean processed,
+			DownloadBuffer streamed, BitmapFactory.Options options) {
 		switch (request.type) {
 		case LoadRequest.TYPE_LOCAL_PATH:
-			return ImageUtils.decodeSampledBitmapFromFile(request.key, request.imgW, request.imgH, mImageCache);
+			return ImageUtils.decodeSampledBitmapFromFile(request.key, request.imgW, request.imgH, request.scaleMode, mImageCache, options);
 		case LoadRequest.TYPE_REMOTE_PATH:
-			return decodeSampledBitmapFromNetwork(request.key,request.imgW,request.imgH);
+			if (streamed != null && streamed.isUsable()) {
+				// Bounds probed during the download spare the decoder its bounds pass
+				streamed.fillBounds(options);
+				return ImageUtils.decodeSampledBitmapFromByteArray(streamed.getBuffer(), streamed.size(),
+						request.imgW, request.imgH, request.scaleMode, mImageCache, options);
+			}
+			if (source == null) {
+				return null;
+			}
+			try {
+				// A processed bitmap was stored for this very size, config and scale mode, so
+				// give MAX_VALUE as the target dimensions
+				return ImageUtils.decodeSampledBitmapFromDescriptor(source.getFD(),
+						processed ? Integer.MAX_VALUE : request.imgW,
+						processed ? Integer.MAX_VALUE : request.imgH,
+						processed ? LoadRequest.SCALE_NONE : request.scaleMode, mImageCache, options);
+			} catch (IOException e) {
+				Log.e(TAG, "processBitmap - " + e);
+			}
+			return null;
 		case LoadRequest.TYPE_LOCAL_RES:
-			//TODO:Why inbitmap does not work here
-			return ImageUtils.decodeSampledBitmapFromResource(mResources, Integer.parseInt(request.key), request.imgW, request.imgH,null);
+			return ImageUtils.decodeSampledBitmapFromResource(mResources, Integer.parseInt(request.key), request.imgW, request.imgH, mImageCache, options);
 		default:
 			break;
 		}
 		return null;
 	}
 
+	/**
+	 * Open the http cache entry for the given url, waiting for the http cache to initialize.
+	 *
+	 * @param url
+	 * @return A stream on the cached download, or null if it is not cached
+	 */
+	private FileInputStream getStreamFromHttpCache(String url) {
+		final String key = ImageCache.hashKeyForDisk(url);
+		final DiskLruCache cache = awaitHttpDiskCache();
+		if (cache != null) {
+			try {
+				return openHttpCacheStream(cache.get(key));
+			} catch (IOException e) {
+				Log.e(TAG, "getStreamFromHttpCache - " + e);
+			} catch (IllegalStateException e) {
+				Log.e(TAG, "getStreamFromHttpCache - " + e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for the http cache to initialize. Only the reference is read under
+	 * mHttpDiskCacheLock, the cache itself locks per key segment.
+	 *
+	 * @return The http cache, or null if there is none
+	 */
+	private DiskLruCache awaitHttpDiskCache() {
+		synchronized (mHttpDiskCacheLock) {
+			while (mHttpDiskCacheStarting) {
+				try {
+					mHttpDiskCacheLock.wait();
+				} catch (InterruptedException e) {}
+			}
+			return mHttpDiskCache;
+		}
+	}
 
+	/**
+	 * The main network process method, which will be called from the network stage of the
+	 * {@link LoadPipeline}. Only one download runs per url: a load whose url is already being
+	 * downloaded, for another size or config, waits for that download and reads the entry it
+	 * committed. If that download failed, the waiting load downloads the url itself. The http
+	 * cache locks per key segment, so downloads of different urls run at the same time.
+	 *
+	 * @param url The data to load the bitmap, in this case, a regular http URL
+	 * @param cancellation Polled during the transfer, an aborted download is dropped from the cache
+	 * @param buffer Receives a copy of the body when not null, marked complete once it all arrived
+	 * @return A stream on the downloaded file in the http cache, or null
+	 */
+	private FileInputStream downloadToHttpCache(String url, ImageUtils.DownloadCancellation cancellation,
+			DownloadBuffer buffer) {
+		final String key = ImageCache.hashKeyForDisk(url);
+		while (true) {
+			final CountDownLatch running;
+			final CountDownLatch own;
+			synchronized (mDownloadsInFlight) {
+				running = mDownloadsInFlight.get(key);
+				own = running == null ? new CountDownLatch(1) : null;
+				if (own != null) {
+					mDownloadsInFlight.put(key, own);
+				}
+			}
+			if (own != null) {
+				try {
+					return download(url, key, cancellation, buffer);
+				} finally {
+					synchronized (mDownloadsInFlight) {
+						mDownloadsInFlight.remove(key);
+					}
+					own.countDown();
+				}
+			}
+
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "downloadToHttpCache, waiting for the download in progress of " + url);
+			}
+			try {
+				while (!running.await(DOWNLOAD_WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					if (cancellation.shouldAbort(0, -1)) {
+						return null;
+					}
+				}
+			} catch (InterruptedException e) {
+				return null;
+			}
+			final FileInputStream cached = getStreamFromHttpCache(url);
+			if (cached != null || cancellation.shouldAbort(0, -1)) {
+				return cached;
+			}
+		}
+	}
 
-	
 	/**
-     * The main network process method, which will be called by the ImageWorker in the AsyncTask background
-     * thread.
-     *
-     * @param data The data to load the bitmap, in this case, a regular http URL
-     * @return The downloaded and resized bitmap
-     */
-    private Bitmap decodeSampledBitmapFromNetwork(String url,int reqW,int reqH) {
-        if (BuildConfig.DEBUG) {
-            Log.d(TAG, "processBitmap - " + url);
-        }
-
-        final String key = ImageCache.hashKeyForDisk(url);
-        FileDescriptor fileDescriptor = null;
-        FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
-
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (ImageUtils.downloadUrlToStream(url,
-                                    editor.newOutputStream(DISK_CACHE_INDEX),IO_BUFFER_SIZE)) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
-                    }
-                }
-            }
-        }
-
-        Bitmap bitmap = null;
-        if (fileDescriptor != null) {
-            bitmap = ImageUtils.decodeSampledBitmapFromDescriptor(fileDescriptor, reqW,
-                    reqH, getImageCache());
-        }
-        if (fileInputStream != null) {
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {}
-        }
-        return bitmap;
-    }
+	 * Download the url into a new edit of its http cache entry.
+	 *
+	 * @return A stream on the committed entry, or null
+	 */
+	private FileInputStream download(String url, String key, ImageUtils.DownloadCancellation cancellation,
+			DownloadBuffer buffer) {
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "processBitmap, not found in http cache, downloading " + url);
+		}
+
+		DiskLruCache.Editor editor = null;
+		final DiskLruCache cache = awaitHttpDiskCache();
+		if (cache != null) {
+			try {
+				editor = cache.edit(key);
+			} catch (IOException e) {
+				Log.e(TAG, "processBitmap - " + e);
+			} catch (IllegalStateException e) {
+				Log.e(TAG, "processBitmap - " + e);
+			}
+		}
+		if (editor == null) {
+			return null;
+		}
+
+		boolean downloaded = false;
+		try {
+			OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+			if (buffer != null) {
+				out = buffer.setTarget(out);
+			}
+			downloaded = ImageUtils.downloadUrlToStream(url, out, IO_BUFFER_SIZE, cancellation);
+			if (downloaded && buffer != null) {
+				buffer.setComplete();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "processBitmap - " + e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "processBitmap - " + e);
+		}
+		return openHttpCacheStream(completeHttpCacheEdit(cache, editor, key, downloaded));
+	}
+
+	private FileInputStream openHttpCacheStream(DiskLruCache.Snapshot snapshot) {
+		return snapshot != null ? (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX) : null;
+	}
+
+	/**
+	 * Commits or aborts a finished download into the http disk cache and returns a fresh
+	 * snapshot of the entry. The cache may have been closed or cleared while the download
+	 * was running, in which case the edit is aborted and its bytes dropped.
+	 *
+	 * @param cache The cache the editor was claimed from
+	 * @param editor The editor holding the downloaded bytes
+	 * @param key The disk cache key
+	 * @param success Whether the download completed
+	 * @return A snapshot of the committed entry, or null
+	 */
+	private DiskLruCache.Snapshot completeHttpCacheEdit(DiskLruCache cache,
+			DiskLruCache.Editor editor, String key, boolean success) {
+		synchronized (mHttpDiskCacheLock) {
+			if (cache != mHttpDiskCache || cache.isClosed()) {
+				// Release the entry and its dirty file in the old cache as well
+				editor.abortUnlessCommitted();
+				return null;
+			}
+		}
+		// A close racing past the check above makes the cache throw IllegalStateException
+		try {
+			if (success) {
+				editor.commit();
+				return cache.get(key);
+			}
+			editor.abort();
+		} catch (IOException e) {
+			Log.e(TAG, "processBitmap - " + e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "processBitmap - " + e);
+		}
+		return null;
+	}
 
 	/**
 	 * A custom Drawable that will be attached to the imageView while the work
@@ -549,6 +1250,16 @@ public  class ImageWorker {
 		}
 	}
 
+	/**
+	 * Only a RecyclingImageView reports when it stops drawing a drawable, so a bitmap shown
+	 * in any other view keeps a display reference for good and is never reused.
+	 */
+	private static void pinIfUntracked(ImageView imageView, BitmapDrawable value) {
+		if (!(imageView instanceof RecyclingImageView) && value instanceof RecyclingBitmapDrawable) {
+			((RecyclingBitmapDrawable) value).setIsDisplayed(true);
+		}
+	}
+
 	/**
 	 * Called when the processing is complete and the final drawable should be
 	 * set on the ImageView.
@@ -578,17 +1289,49 @@ public  class ImageWorker {
 	 * {@link android.widget.AbsListView.OnScrollListener} to keep scrolling
 	 * smooth.
 	 * <p>
+	 * While paused, work that has not reached a pool yet is held back without
+	 * occupying a thread; stages already running, such as a download filling the
+	 * disk cache, and cache writes carry on. On resume the held back work is
+	 * queued again, most recent first, and dropped for views that went away.
+	 * <p>
 	 * If work is paused, be sure setPauseWork(false) is called again before
 	 * your fragment or activity is destroyed (for example during
-	 * {@link android.app.Activity#onPause()}), or there is a risk the
-	 * background thread will never finish.
+	 * {@link android.app.Activity#onPause()}), or the held back work will never
+	 * run.
 	 */
 	public void setPauseWork(boolean pauseWork) {
+		final List<BitmapWorkerTask> paused;
 		synchronized (mPauseWorkLock) {
+			if (mPauseWork == pauseWork) {
+				return;
+			}
 			mPauseWork = pauseWork;
-			if (!mPauseWork) {
-				mPauseWorkLock.notifyAll();
+			if (mPauseWork) {
+				mPauseStartTime = SystemClock.uptimeMillis();
+				return;
+			}
+			mPausedTime += SystemClock.uptimeMillis() - mPauseStartTime;
+			paused = new ArrayList<BitmapWorkerTask>(mPausedTasks);
+			mPausedTasks.clear();
+		}
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "setPauseWork - resuming " + paused.size() + " tasks");
+		}
+		for (BitmapWorkerTask task : paused) {
+			task.resume(task.parkedStage);
+		}
+	}
+
+	/**
+	 * @return The total time in milliseconds work has been paused by
+	 *         {@link #setPauseWork(boolean)}, including the current pause
+	 */
+	public long getPausedTime() {
+		synchronized (mPauseWorkLock) {
+			if (mPauseWork) {
+				return mPausedTime + SystemClock.uptimeMillis() - mPauseStartTime;
 			}
+			return mPausedTime;
 		}
 	}
 
@@ -0,0 +1,218 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.kayac.bitmaputils.test.Utils;
+
+/**
+ * Thread pools for the stages of an image load. A load that misses the memory cache goes
+ * through a disk probe, an optional network fetch and a decode, and the decoded bitmap is then
+ * written back to the disk cache. Every stage has its own bounded pool sized for the resource it
+ * waits on, so a slow download never holds a thread that a decode could be using.
+ * Each {@link ImageWorker} owns one pipeline, configured through {@link PipelineParams}.
+ * <p>
+ * Queued work is ordered by {@link LoadRequest#priority} first, then newest first (or oldest
+ * first if {@link PipelineParams#lifo} is off), so during a fling the cells that just came on
+ * screen are served before the ones that scrolled away. Nothing is ever dropped from a queue:
+ * work for views that went away is removed explicitly through {@link #remove(int, Runnable)}.
+ *
+ * @author long-nguyen
+ *
+ */
+public class LoadPipeline {
+	public static final int STAGE_DISK_PROBE = 0;
+	public static final int STAGE_NETWORK = 1;
+	public static final int STAGE_DECODE = 2;
+	public static final int STAGE_DISK_WRITE = 3;
+	private static final int STAGE_COUNT = 4;
+	private static final String[] STAGE_NAMES = { "Disk", "Network", "Decode", "DiskWrite" };
+
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	private static final int KEEP_ALIVE = 1;
+
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	private final ThreadPoolExecutor[] mExecutors = new ThreadPoolExecutor[STAGE_COUNT];
+	private final AtomicLong mSequence = new AtomicLong();
+	private final boolean mLifo;
+
+	public LoadPipeline(PipelineParams params) {
+		mLifo = params.lifo;
+		final Comparator<Runnable> order = new PriorityOrder(params.lifo);
+		mExecutors[STAGE_DISK_PROBE] = createExecutor(STAGE_DISK_PROBE, params.diskThreads,
+				params.diskThreadPriority, order);
+		mExecutors[STAGE_NETWORK] = createExecutor(STAGE_NETWORK, params.networkThreads,
+				params.networkThreadPriority, order);
+		mExecutors[STAGE_DECODE] = createExecutor(STAGE_DECODE, params.decodeThreads,
+				params.decodeThreadPriority, order);
+		// Cache writes go through a single thread so they never compete with each other
+		mExecutors[STAGE_DISK_WRITE] = createExecutor(STAGE_DISK_WRITE, 1,
+				params.diskWriteThreadPriority, order);
+	}
+
+	/**
+	 * Run the work of a stage on that stage's pool at background priority.
+	 *
+	 * @param stage One of the STAGE_* constants
+	 * @param runnable
+	 */
+	public void execute(int stage, Runnable runnable) {
+		execute(stage, LoadRequest.PRIORITY_BACKGROUND, runnable);
+	}
+
+	/**
+	 * Queue the work of a stage on that stage's pool.
+	 *
+	 * @param stage One of the STAGE_* constants
+	 * @param priority One of the LoadRequest.PRIORITY_* constants
+	 * @param runnable
+	 * @return The queued runnable, to be passed to {@link #remove(int, Runnable)}
+	 */
+	public Runnable execute(int stage, int priority, Runnable runnable) {
+		final PrioritizedRunnable queued =
+				new PrioritizedRunnable(runnable, priority, mSequence.getAndIncrement());
+		mExecutors[stage].execute(queued);
+		return queued;
+	}
+
+	/**
+	 * Remove queued work before it starts.
+	 *
+	 * @param stage The stage the work was queued on
+	 * @param queued The runnable returned by {@link #execute(int, int, Runnable)}
+	 * @return true if the work was still queued and will not run
+	 */
+	public boolean remove(int stage, Runnable queued) {
+		return queued != null && mExecutors[stage].remove(queued);
+	}
+
+	/**
+	 * @return true if work of the same priority is served newest first
+	 */
+	public boolean isLifo() {
+		return mLifo;
+	}
+
+	/**
+	 * Run a runnable on the UI thread.
+	 */
+	public static void postToMainThread(Runnable runnable) {
+		sMainHandler.post(runnable);
+	}
+
+	@TargetApi(9)
+	private static ThreadPoolExecutor createExecutor(int stage, int threads, int priority,
+			Comparator<Runnable> order) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(STAGE_NAMES[stage] + " pool needs at least one thread");
+		}
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(11, order),
+				new StageThreadFactory(STAGE_NAMES[stage], priority));
+		// Let idle stage threads die so a worker that is no longer used does not pin them
+		if (Utils.hasGingerbread()) {
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * A unit of stage work with the priority and sequence number it was queued with.
+	 */
+	private static class PrioritizedRunnable implements Runnable {
+		private final Runnable mRunnable;
+		private final int mPriority;
+		private final long mSequence;
+
+		public PrioritizedRunnable(Runnable runnable, int priority, long sequence) {
+			mRunnable = runnable;
+			mPriority = priority;
+			mSequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			mRunnable.run();
+		}
+	}
+
+	/**
+	 * Highest priority first, then newest first when lifo, oldest first otherwise.
+	 */
+	private static class PriorityOrder implements Comparator<Runnable> {
+		private final boolean mLifo;
+
+		public PriorityOrder(boolean lifo) {
+			mLifo = lifo;
+		}
+
+		@Override
+		public int compare(Runnable lhs, Runnable rhs) {
+			final PrioritizedRunnable l = (PrioritizedRunnable) lhs;
+			final PrioritizedRunnable r = (PrioritizedRunnable) rhs;
+			if (l.mPriority != r.mPriority) {
+				return l.mPriority > r.mPriority ? -1 : 1;
+			}
+			if (l.mSequence == r.mSequence) {
+				return 0;
+			}
+			final boolean lFirst = mLifo ? l.mSequence > r.mSequence : l.mSequence < r.mSequence;
+			return lFirst ? -1 : 1;
+		}
+	}
+
+	/**
+	 * Names the threads of a stage and applies the stage's thread priority.
+	 */
+	private static class StageThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+		private final String mName;
+		private final int mPriority;
+
+		public StageThreadFactory(String name, int priority) {
+			mName = name;
+			mPriority = priority;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(mPriority);
+					r.run();
+				}
+			}, "ImageWorker " + mName + " #" + mCount.getAndIncrement());
+		}
+	}
+
+	/**
+	 * A holder class that contains pipeline parameters.
+	 */
+	public static class PipelineParams {
+		// Disk reads are short, a couple of threads is enough to keep the decoders fed
+		public int diskThreads = 2;
+		// Downloads mostly wait on the network, so this pool can be larger than the CPU count
+		public int networkThreads = 4;
+		public int decodeThreads = Math.max(1, CPU_COUNT);
+		// Serve the newest request first among requests of the same priority
+		public boolean lifo = true;
+
+		public int diskThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+		public int networkThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+		public int decodeThreadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+		public int diskWriteThreadPriority = Process.THREAD_PRIORITY_BACKGROUND
+				+ Process.THREAD_PRIORITY_LESS_FAVORABLE;
+	}
+}
@@ -1,5 +1,6 @@
 package com.kayac.bitmaputils.lib;
 
+import android.graphics.Bitmap;
 import android.webkit.URLUtil;
 /**
  * The loadrequest for multiple types of asyncLoad and images caches. Only
@@ -8,6 +9,13 @@ import android.webkit.URLUtil;
  * + File path(GalleryImage id should be converted to filePath), 
  * + Resource Id
  * If imageSize is not specified, original imageSize would be used
+ * The priority orders queued loads, it does not take part in equality
+ * The config picks the bitmap format, CONFIG_AUTO decodes JPEGs, which have no alpha,
+ * as RGB_565 at half the memory and everything else as ARGB_8888
+ * The scale mode SCALE_FIT or SCALE_FILL decodes local files and downloads to exactly the
+ * image size, fitting inside it or covering it, instead of sampling to a size at least as large
+ * The partition names the memory cache partition to keep the image in, by default it is
+ * picked by the requested size
  * @author long-nguyen
  * 
  */
@@ -16,10 +24,24 @@ public  class LoadRequest {
 	public static final int TYPE_REMOTE_PATH = 0;
 	public static final int TYPE_LOCAL_PATH = 1;
 	public static final int TYPE_LOCAL_RES = 2;
+	// Higher values are served first
+	public static final int PRIORITY_BACKGROUND = 0;
+	public static final int PRIORITY_PREFETCH = 1;
+	public static final int PRIORITY_VISIBLE = 2;
+	public static final int CONFIG_ARGB_8888 = 0;
+	public static final int CONFIG_RGB_565 = 1;
+	public static final int CONFIG_AUTO = 2;
+	public static final int SCALE_NONE = 0;
+	public static final int SCALE_FIT = 1;
+	public static final int SCALE_FILL = 2;
 	public String key;
 	public int type;
 	public int imgW=-1;
 	public int imgH=-1;
+	public int priority=PRIORITY_VISIBLE;
+	public int config=CONFIG_ARGB_8888;
+	public int scaleMode=SCALE_NONE;
+	public String partition;
 	
 	public static LoadRequest makeLocalFileRequest(String filePath){
 		LoadRequest	lr=new LoadRequest();
@@ -52,6 +74,66 @@ public  class LoadRequest {
 		return lrq;
 	}
 	
+	public static LoadRequest setPriority(final LoadRequest lrq,int priority){
+		if(lrq!=null){
+			lrq.priority=priority;
+		}
+		return lrq;
+	}
+	
+	/**
+	 * @return A copy of the request at the given priority, the request itself is left alone
+	 */
+	public static LoadRequest withPriority(final LoadRequest lrq,int priority){
+		if(lrq==null) return null;
+		LoadRequest lr=new LoadRequest();
+		lr.key=lrq.key;
+		lr.type=lrq.type;
+		lr.imgW=lrq.imgW;
+		lr.imgH=lrq.imgH;
+		lr.priority=priority;
+		lr.config=lrq.config;
+		lr.scaleMode=lrq.scaleMode;
+		lr.partition=lrq.partition;
+		return lr;
+	}
+	
+	public static LoadRequest setConfig(final LoadRequest lrq,int config){
+		if(lrq!=null){
+			lrq.config=config;
+		}
+		return lrq;
+	}
+	
+	public static LoadRequest setScaleMode(final LoadRequest lrq,int scaleMode){
+		if(lrq!=null){
+			lrq.scaleMode=scaleMode;
+		}
+		return lrq;
+	}
+	
+	public static LoadRequest setPartition(final LoadRequest lrq,String partition){
+		if(lrq!=null){
+			lrq.partition=partition;
+		}
+		return lrq;
+	}
+	
+	/**
+	 * @return The config to decode with, null for CONFIG_AUTO to let
+	 *         {@link ImageUtils} choose once the image type is known
+	 */
+	public Bitmap.Config getBitmapConfig(){
+		switch(config){
+		case CONFIG_RGB_565:
+			return Bitmap.Config.RGB_565;
+		case CONFIG_AUTO:
+			return null;
+		default:
+			return Bitmap.Config.ARGB_8888;
+		}
+	}
+	
 	public static LoadRequest makeLocalFileRequest(String filePath,int width,int height){
 		return setImageSize(makeLocalFileRequest(filePath), width, height);
 	}
@@ -63,4 +145,39 @@ public  class LoadRequest {
 	public static LoadRequest makeLocalResourceRequest(int res,int width,int height){
 		return setImageSize(makeLocalResourceRequest(res), width, height);
 	}
+
+	/**
+	 * Two requests are equal when they load the same source at the same size, config, scale mode
+	 * and partition, so identical
+	 * requests coming from different views can share one load. A request should not be
+	 * modified once it has been passed to {@link ImageWorker#loadImage(LoadRequest, android.widget.ImageView)}.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof LoadRequest)) return false;
+		final LoadRequest other = (LoadRequest) o;
+		return type == other.type && imgW == other.imgW && imgH == other.imgH && config == other.config
+				&& scaleMode == other.scaleMode
+				&& (partition == null ? other.partition == null : partition.equals(other.partition))
+				&& (key == null ? other.key == null : key.equals(other.key));
+	}
+
+	@Override
+	public int hashCode() {
+		int result = key == null ? 0 : key.hashCode();
+		result = 31 * result + type;
+		result = 31 * result + imgW;
+		result = 31 * result + imgH;
+		result = 31 * result + config;
+		result = 31 * result + scaleMode;
+		result = 31 * result + (partition == null ? 0 : partition.hashCode());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadRequest[" + key + ", type=" + type + ", " + imgW + "x" + imgH + ", config=" + config + ", scale=" + scaleMode
+				+ (partition == null ? "" : ", partition=" + partition) + "]";
+	}
 }
\ No newline at end of file
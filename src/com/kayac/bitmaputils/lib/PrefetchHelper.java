@@ -0,0 +1,144 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Warms the caches for the items an adapter is about to show. Feed it the visible range of a
+ * grid or list from its scroll listener, or the current page of a pager, and it asks the
+ * {@link ImageWorker} to prefetch the next items in the direction of travel. Prefetched loads
+ * run at {@link LoadRequest#PRIORITY_PREFETCH}, below anything visible, and are cancelled when
+ * the direction changes.
+ *
+ * @author long-nguyen
+ *
+ */
+public class PrefetchHelper {
+	private static final int DEFAULT_PREFETCH_COUNT = 10;
+
+	/**
+	 * Maps adapter positions to the requests that would be loaded for them.
+	 */
+	public interface RequestProvider {
+		int getCount();
+
+		/**
+		 * @return The request for the position, or null if the position has no image
+		 */
+		LoadRequest getRequest(int position);
+	}
+
+	private final ImageWorker mImageWorker;
+	private final RequestProvider mProvider;
+	private int mPrefetchCount = DEFAULT_PREFETCH_COUNT;
+
+	// 1 towards the end of the adapter, -1 towards the start
+	private int mDirection = 1;
+	private int mLastFirstVisible = -1;
+	private long mLastScrollTime;
+	private int mWindowStart = -1;
+	private int mWindowEnd = -1;
+
+	public PrefetchHelper(ImageWorker imageWorker, RequestProvider provider) {
+		mImageWorker = imageWorker;
+		mProvider = provider;
+	}
+
+	/**
+	 * Set how many items ahead of the visible range get prefetched.
+	 */
+	public void setPrefetchCount(int count) {
+		mPrefetchCount = count;
+	}
+
+	/**
+	 * Call from {@link android.widget.AbsListView.OnScrollListener#onScroll}. The scroll
+	 * velocity is derived from successive calls.
+	 *
+	 * @param firstVisible The first visible position
+	 * @param lastVisible The last visible position
+	 */
+	public void onScroll(int firstVisible, int lastVisible) {
+		final long now = SystemClock.uptimeMillis();
+		float velocity = 0;
+		if (mLastFirstVisible >= 0 && now > mLastScrollTime) {
+			velocity = (firstVisible - mLastFirstVisible) * 1000f / (now - mLastScrollTime);
+		}
+		mLastFirstVisible = firstVisible;
+		mLastScrollTime = now;
+		onScroll(firstVisible, lastVisible, velocity);
+	}
+
+	/**
+	 * @param firstVisible The first visible position
+	 * @param lastVisible The last visible position
+	 * @param velocity Scroll velocity in items per second, positive towards the end of the
+	 *            adapter. Zero keeps the last known direction.
+	 */
+	public void onScroll(int firstVisible, int lastVisible, float velocity) {
+		if (velocity != 0) {
+			setDirection(velocity > 0 ? 1 : -1);
+		}
+		final int count = mProvider.getCount();
+		final int start;
+		final int end;
+		if (mDirection > 0) {
+			start = lastVisible + 1;
+			end = Math.min(count - 1, lastVisible + mPrefetchCount);
+		} else {
+			start = Math.max(0, firstVisible - mPrefetchCount);
+			end = firstVisible - 1;
+		}
+		if (start > end || (start == mWindowStart && end == mWindowEnd)) {
+			return;
+		}
+		mWindowStart = start;
+		mWindowEnd = end;
+
+		final List<LoadRequest> requests = new ArrayList<LoadRequest>(end - start + 1);
+		// Nearest items first, prefetch serves them in list order
+		if (mDirection > 0) {
+			for (int i = start; i <= end; i++) {
+				addRequest(requests, i);
+			}
+		} else {
+			for (int i = end; i >= start; i--) {
+				addRequest(requests, i);
+			}
+		}
+		mImageWorker.prefetch(requests);
+	}
+
+	/**
+	 * Call from {@link android.support.v4.view.ViewPager.OnPageChangeListener#onPageSelected}.
+	 *
+	 * @param position The newly selected page
+	 */
+	public void onPageSelected(int position) {
+		float velocity = 0;
+		if (mLastFirstVisible >= 0) {
+			velocity = position - mLastFirstVisible;
+		}
+		mLastFirstVisible = position;
+		onScroll(position, position, velocity);
+	}
+
+	private void setDirection(int direction) {
+		if (direction != mDirection) {
+			if (ImageWorker.DEBUG) Log.d(ImageWorker.TAG, "Prefetch direction changed, cancelling");
+			mDirection = direction;
+			mWindowStart = mWindowEnd = -1;
+			mImageWorker.cancelPrefetch();
+		}
+	}
+
+	private void addRequest(List<LoadRequest> requests, int position) {
+		final LoadRequest request = mProvider.getRequest(position);
+		if (request != null) {
+			requests.add(request);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped, lossy ring buffers recording reads of a {@link TinyLfuCache}, so the reads can be
+ * applied to the eviction policy in batches by whichever thread holds the cache's lock next,
+ * instead of every reader taking the lock. Each thread writes to the stripe its id hashes to.
+ * A read that finds its stripe full or contended is simply dropped, the policy only needs a
+ * sample of the reads.
+ *
+ * @author long-nguyen
+ *
+ */
+class ReadBuffer<E> {
+	// Must be a power of two
+	private static final int BUFFER_SIZE = 16;
+	private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+	// Ask for a drain once a stripe is this full
+	private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+	private static final int MAX_STRIPES = 16;
+
+	/**
+	 * Receives the buffered reads while draining.
+	 */
+	interface Consumer<E> {
+		void accept(E e);
+	}
+
+	private final Stripe<E>[] mStripes;
+	private final int mStripeMask;
+
+	public ReadBuffer() {
+		int stripes = 1;
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		while (stripes < cpus && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		mStripes = newStripes(stripes);
+		for (int i = 0; i < stripes; i++) {
+			mStripes[i] = new Stripe<E>();
+		}
+		mStripeMask = stripes - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Stripe<E>[] newStripes(int count) {
+		return (Stripe<E>[]) new Stripe<?>[count];
+	}
+
+	/**
+	 * Record a read, never blocks.
+	 *
+	 * @return true if the buffer should be drained soon
+	 */
+	public boolean offer(E e) {
+		final long id = Thread.currentThread().getId();
+		final int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+		return mStripes[(hash >>> 16) & mStripeMask].offer(e);
+	}
+
+	/**
+	 * Hand every buffered read to the consumer. Only one thread may drain at a time.
+	 */
+	public void drainTo(Consumer<E> consumer) {
+		for (Stripe<E> stripe : mStripes) {
+			stripe.drainTo(consumer);
+		}
+	}
+
+	private static class Stripe<E> {
+		private final AtomicReferenceArray<E> mBuffer = new AtomicReferenceArray<E>(BUFFER_SIZE);
+		private final AtomicLong mWriteCount = new AtomicLong();
+		private volatile long mReadCount;
+
+		boolean offer(E e) {
+			final long head = mReadCount;
+			final long tail = mWriteCount.get();
+			final long size = tail - head;
+			if (size >= BUFFER_SIZE) {
+				return true;
+			}
+			if (!mWriteCount.compareAndSet(tail, tail + 1)) {
+				// Another reader on the same stripe won, dropping this read is fine
+				return true;
+			}
+			mBuffer.lazySet((int) (tail & BUFFER_MASK), e);
+			return size + 1 >= DRAIN_THRESHOLD;
+		}
+
+		void drainTo(Consumer<E> consumer) {
+			long head = mReadCount;
+			final long tail = mWriteCount.get();
+			for (; head < tail; head++) {
+				final int index = (int) (head & BUFFER_MASK);
+				final E e = mBuffer.get(index);
+				if (e == null) {
+					// Claimed but not written yet, pick it up next time
+					break;
+				}
+				mBuffer.lazySet(index, null);
+				consumer.accept(e);
+			}
+			mReadCount = head;
+		}
+	}
+}
@@ -22,23 +22,40 @@ import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
 import com.kayac.bitmaputils.BuildConfig;
-
-/**This is auto recycling bitmapdrawable when nolonger use, it is used for devices below 2.3
- * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+import com.kayac.bitmaputils.test.Utils;
+
+/**
+ * A BitmapDrawable that keeps track of whether it is being displayed, cached, or still in
+ * flight in a load, for example waiting to be delivered or written to the disk cache.
+ * When the drawable is no longer referenced in any of these ways its bitmap is released:
+ * before Honeycomb {@link Bitmap#recycle() recycle()} is called on it, from Honeycomb on it
+ * goes to the {@link BitmapPool} to be decoded into again. Since a bitmap is only pooled once
+ * nothing draws it anymore, a reused bitmap never shows up in a view that still displays it.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
 
     static final String LOG_TAG = "CountingBitmapDrawable";
 
+    private final BitmapPool mBitmapPool;
+
     private int mCacheRefCount = 0;
     private int mDisplayRefCount = 0;
+    private int mInFlightRefCount = 0;
 
-    private boolean mHasBeenDisplayed;
+    private boolean mReleased;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        this(res, bitmap, null);
+    }
+
+    /**
+     * @param res
+     * @param bitmap
+     * @param bitmapPool The pool to release the bitmap to, or null to only drop it
+     */
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap, BitmapPool bitmapPool) {
         super(res, bitmap);
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -52,13 +69,12 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
         synchronized (this) {
             if (isDisplayed) {
                 mDisplayRefCount++;
-                mHasBeenDisplayed = true;
             } else {
                 mDisplayRefCount--;
             }
         }
 
-        // Check to see if recycle() can be called
+        // Check to see if the bitmap can be released
         checkState();
     }
 
@@ -77,22 +93,83 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
             }
         }
 
-        // Check to see if recycle() can be called
+        // Check to see if the bitmap can be released
         checkState();
     }
 
-    private synchronized void checkState() {
-    	 Log.d(LOG_TAG, "Checking state: " + toString()+" Display count is: "+mDisplayRefCount+" cacheCount is:"+mCacheRefCount);
-        // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
-        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()) {
-            if (BuildConfig.DEBUG) {
-                Log.d(LOG_TAG, "No longer being used or cached so recycling. "
-                        + toString());
+    /**
+     * Notify the drawable that a load started or stopped using it. A drawable is created in
+     * flight by its load, so it is not released before it reached its views.
+     *
+     * @param isInFlight - Whether a load holds on to the drawable or lets go of it
+     */
+    public void setIsInFlight(boolean isInFlight) {
+        synchronized (this) {
+            if (isInFlight) {
+                mInFlightRefCount++;
+            } else {
+                mInFlightRefCount--;
             }
+        }
+
+        // Check to see if the bitmap can be released
+        checkState();
+    }
+
+    /**
+     * Take an in-flight reference, unless the bitmap has already been released. Checking and
+     * counting under one lock keeps a concurrent release from pooling the bitmap between a
+     * cache hit and its display. Hand the reference back with {@link #setIsInFlight(boolean)
+     * setIsInFlight(false)}.
+     *
+     * @return true if the reference was taken, false if the drawable must not be used
+     */
+    public synchronized boolean tryAcquire() {
+        if (mReleased || !hasValidBitmap()) {
+            return false;
+        }
+        mInFlightRefCount++;
+        return true;
+    }
+
+    /**
+     * @return true once the bitmap has been recycled or handed to the pool, the drawable
+     *      must not be displayed anymore
+     */
+    public synchronized boolean isReleased() {
+        return mReleased;
+    }
 
-            getBitmap().recycle();
+    /**
+     * @return true while at least one view displays the drawable
+     */
+    public synchronized boolean isDisplayed() {
+        return mDisplayRefCount > 0;
+    }
+
+    private synchronized void checkState() {
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Checking state: " + toString() + " Display count is: " + mDisplayRefCount
+                    + " cacheCount is:" + mCacheRefCount + " inFlightCount is:" + mInFlightRefCount);
+        }
+        // If the drawable cache, display and in-flight ref counts = 0, then release
+        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mInFlightRefCount <= 0
+                && !mReleased && hasValidBitmap()) {
+            mReleased = true;
+            if (Utils.hasHoneycomb()) {
+                if (mBitmapPool != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(LOG_TAG, "No longer being used or cached so pooling. " + toString());
+                    }
+                    mBitmapPool.put(getBitmap());
+                }
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "No longer being used or cached so recycling. "
+                            + toString());
+                }
+                getBitmap().recycle();
+            }
         }
     }
 
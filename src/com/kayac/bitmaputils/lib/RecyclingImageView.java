@@ -17,6 +17,7 @@
 package com.kayac.bitmaputils.lib;
 
 import android.content.Context;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.util.AttributeSet;
@@ -45,6 +46,8 @@ public class RecyclingImageView extends ImageView {
 	 */
 	@Override
 	protected void onDetachedFromWindow() {
+		// Drop any load still queued for this view before it takes a thread
+		ImageWorker.cancelWork(this);
 		// This has been detached from Window, so clear the drawable
 		setImageDrawable(null);
 		super.onDetachedFromWindow();
@@ -160,6 +163,13 @@ public class RecyclingImageView extends ImageView {
 			worker.loadImage(request, this);
 		}else{
 			if(ImageWorker.DEBUG) Log.d(ImageWorker.TAG,"load img no size,request layout");
+			// Show any resolution already in memory until the real size is known
+			final BitmapDrawable preview = worker.getCachedPreview(request);
+			if (preview != null) {
+				ImageWorker.cancelWork(this);
+				setImageDrawable(preview);
+				ImageCache.releaseLookup(preview);
+			}
 			mPendingRequest=request;
 			mImageWorker=worker;
 			requestLayout();
@@ -0,0 +1,664 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A memory cache with the get/put/sizeOf contract of {@link android.support.v4.util.LruCache}
+ * and a windowed TinyLFU policy instead of plain LRU, so a long fling through new images does
+ * not flush entries that are used on every screen.
+ * <p>
+ * New entries enter an LRU admission window. Entries pushed out of the window are only
+ * admitted to the main space if a {@link FrequencySketch} says they were used more often
+ * recently than the entry they would evict. The main space is a segmented LRU: entries start
+ * in a probation segment and move to a protected segment when they are used again.
+ * <p>
+ * The window starts small and is sized by the workload, like the target size of ARC: keys
+ * recently turned away by admission and keys recently evicted from the main space are
+ * remembered without their values. Loading one of the former again grows the window by its
+ * weight, loading one of the latter shrinks it. Scrolling back to the rows just left grows the
+ * window, images used on every screen coming back after a fling shrink it.
+ * <p>
+ * Reads never take the lock: {@link #get} looks the entry up in a concurrent map and records
+ * the access in a {@link ReadBuffer}. The recorded accesses are applied to the policy in a batch
+ * by the next writer, or by a reader that finds the lock free, so a lookup on the UI thread
+ * never waits behind a decode thread adding to the cache. Writes take the lock. Like LruCache,
+ * {@link #entryRemoved} is called without the cache's lock held.
+ *
+ * @author long-nguyen
+ *
+ */
+public class TinyLfuCache<K, V> {
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	// Removed from the cache while a read of it may still be buffered
+	private static final int DEAD = -1;
+
+	// Share of the cache the admission window starts with. The window grows from there while
+	// the workload rewards recency, for example scrolling back to the rows just above the screen
+	private static final float DEFAULT_WINDOW_FRACTION = 0.01f;
+	// Largest share the window grows to. The main space keeps the rest, so its evictions can
+	// still pull the window back, and the cache never turns into a plain LRU
+	private static final float MAX_WINDOW_FRACTION = 0.85f;
+	// Share of the main space held by the protected segment
+	private static final float PROTECTED_FRACTION = 0.8f;
+
+	private final ConcurrentHashMap<K, Node<K, V>> mMap = new ConcurrentHashMap<K, Node<K, V>>();
+	// Guards the policy: the sketch, the queues and the sizes
+	private final ReentrantLock mEvictionLock = new ReentrantLock();
+	// Nodes that were hit and keys that were missed
+	private final ReadBuffer<Object> mReadBuffer = new ReadBuffer<Object>();
+	private final ReadBuffer.Consumer<Object> mReadConsumer = new ReadBuffer.Consumer<Object>() {
+		@SuppressWarnings("unchecked")
+		@Override
+		public void accept(Object e) {
+			if (e instanceof Node) {
+				final Node<K, V> node = (Node<K, V>) e;
+				mSketch.increment(node.key);
+				if (node.queue != DEAD) {
+					onAccess(node);
+				}
+			} else {
+				mSketch.increment(e);
+			}
+		}
+	};
+	private final FrequencySketch mSketch = new FrequencySketch();
+	private final AccessQueue<K, V> mWindow = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> mProbation = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> mProtected = new AccessQueue<K, V>();
+
+	// Keys turned away by admission and keys evicted from the main space, oldest first, with
+	// their weights. A miss on one tells which side was too small.
+	private final Ghosts<K> mWindowGhosts = new Ghosts<K>();
+	private final Ghosts<K> mMainGhosts = new Ghosts<K>();
+
+	private int mMaxSize;
+	private int mWindowMaxSize;
+	private int mMainMaxSize;
+	private int mProtectedMaxSize;
+	private int mSize;
+
+	private int mPutCount;
+	private int mEvictionCount;
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * @param maxSize for caches that do not override {@link #sizeOf}, this is
+	 *     the maximum number of entries in the cache. For all other caches,
+	 *     this is the maximum sum of the sizes of the entries in this cache.
+	 */
+	public TinyLfuCache(int maxSize) {
+		this(maxSize, DEFAULT_WINDOW_FRACTION);
+	}
+
+	/**
+	 * @param maxSize
+	 * @param windowFraction The share of maxSize that recently added entries may hold before
+	 *     they have to pass admission to start with, larger values favour recency over
+	 *     frequency. The window is resized from there, up to 85% of maxSize, see
+	 *     {@link #getWindowFraction()}.
+	 */
+	public TinyLfuCache(int maxSize, float windowFraction) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (windowFraction < 0 || windowFraction > 1) {
+			throw new IllegalArgumentException("windowFraction must be between 0 and 1");
+		}
+		mMaxSize = maxSize;
+		setWindowMaxSize((int) (maxSize * windowFraction));
+	}
+
+	/**
+	 * Must hold the lock. A shrunken window hands its oldest entries to admission on the next
+	 * write, a grown one fills up with new entries while the main space gives way.
+	 */
+	private void setWindowMaxSize(int windowMaxSize) {
+		mWindowMaxSize = Math.max(0, Math.min((int) (mMaxSize * MAX_WINDOW_FRACTION), windowMaxSize));
+		mMainMaxSize = mMaxSize - mWindowMaxSize;
+		mProtectedMaxSize = (int) (mMainMaxSize * PROTECTED_FRACTION);
+	}
+
+	/**
+	 * Resize the window on the miss of a key the cache let go of recently. A key admission
+	 * turned away would have been a hit with a larger window, a key evicted from the main
+	 * space a hit with a larger main space. Must hold the lock.
+	 */
+	private void adapt(K key) {
+		int weight = mWindowGhosts.take(key);
+		if (weight >= 0) {
+			setWindowMaxSize(mWindowMaxSize + weight);
+			return;
+		}
+		weight = mMainGhosts.take(key);
+		if (weight >= 0) {
+			setWindowMaxSize(mWindowMaxSize - weight);
+		}
+	}
+
+	/**
+	 * @return The share of maxSize the admission window may hold right now
+	 */
+	public final float getWindowFraction() {
+		mEvictionLock.lock();
+		try {
+			return (float) mWindowMaxSize / mMaxSize;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache, without blocking. A miss
+	 * counts towards the key's frequency as well, so an image that keeps being asked for gets
+	 * admitted.
+	 */
+	public final V get(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		final Node<K, V> node = mMap.get(key);
+		if (node == null) {
+			mMissCount.incrementAndGet();
+			afterRead(key);
+			return null;
+		}
+		mHitCount.incrementAndGet();
+		final V value = node.value;
+		afterRead(node);
+		return value;
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache, without counting a hit or
+	 * miss and without recording an access in the policy. For probes that may not use the
+	 * value, so they do not skew admission.
+	 */
+	public final V peek(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		final Node<K, V> node = mMap.get(key);
+		return node != null ? node.value : null;
+	}
+
+	private void afterRead(Object read) {
+		if (mReadBuffer.offer(read) && mEvictionLock.tryLock()) {
+			try {
+				mReadBuffer.drainTo(mReadConsumer);
+			} finally {
+				mEvictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Take the lock, applying the buffered reads first.
+	 */
+	private void lock() {
+		mEvictionLock.lock();
+		mReadBuffer.drainTo(mReadConsumer);
+	}
+
+	/**
+	 * Caches {@code value} for {@code key}. A new entry goes into the admission window and
+	 * may push older entries out of the cache.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		V previous = null;
+		List<Node<K, V>> evicted;
+		lock();
+		try {
+			mPutCount++;
+			mSketch.increment(key);
+			final int weight = safeSizeOf(key, value);
+			Node<K, V> node = mMap.get(key);
+			if (node != null) {
+				previous = node.value;
+				node.value = value;
+				queueOf(node).weight += weight - node.weight;
+				mSize += weight - node.weight;
+				node.weight = weight;
+				onAccess(node);
+			} else {
+				adapt(key);
+				node = new Node<K, V>(key, value, weight);
+				mMap.put(key, node);
+				mSketch.ensureCapacity(mMap.size());
+				node.queue = WINDOW;
+				mWindow.addLast(node);
+				mSize += weight;
+			}
+			evicted = evict();
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, value);
+		}
+		notifyEvicted(evicted);
+		return previous;
+	}
+
+	/**
+	 * Removes the entry for {@code key} if it exists.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V remove(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		final Node<K, V> node;
+		lock();
+		try {
+			node = mMap.get(key);
+			if (node != null) {
+				removeNode(node);
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (node == null) {
+			return null;
+		}
+		entryRemoved(false, key, node.value, null);
+		return node.value;
+	}
+
+	/**
+	 * Evict entries until the cache holds at most {@code maxSize}, least valuable first:
+	 * probation, then the admission window, then the protected segment.
+	 *
+	 * @param maxSize the maximum size of the cache before returning. May be -1
+	 *     to evict even 0-sized elements.
+	 */
+	public void trimToSize(int maxSize) {
+		final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+		lock();
+		try {
+			while (mSize > maxSize || (maxSize < 0 && !mMap.isEmpty())) {
+				Node<K, V> victim = mProbation.head;
+				if (victim == null) {
+					victim = mWindow.head != null ? mWindow.head : mProtected.head;
+				}
+				if (victim == null) {
+					break;
+				}
+				removeNode(victim);
+				evicted.add(victim);
+				mEvictionCount++;
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+	 */
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed. This method is
+	 * invoked when a value is evicted to make space, removed by a call to
+	 * {@link #remove}, or replaced by a call to {@link #put}. The default
+	 * implementation does nothing.
+	 *
+	 * @param evicted true if the entry is being removed to make space, false
+	 *     if the removal was caused by a {@link #put} or {@link #remove}.
+	 * @param newValue the new value for {@code key}, if it exists. If non-null,
+	 *     this removal was caused by a {@link #put}. Otherwise it was caused by
+	 *     an eviction or a {@link #remove}.
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+	/**
+	 * Returns the size of the entry for {@code key} and {@code value} in
+	 * user-defined units. The default implementation returns 1 so that size
+	 * is the number of entries and max size is the maximum number of entries.
+	 */
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	private int safeSizeOf(K key, V value) {
+		final int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	/**
+	 * Move the window overflow into the main space through admission, then evict whatever
+	 * still does not fit. Must hold the lock.
+	 */
+	private List<Node<K, V>> evict() {
+		final List<Node<K, V>> evicted = new ArrayList<Node<K, V>>(1);
+		// The newest entry always stays, even when it alone is larger than the window
+		while (mWindow.weight > mWindowMaxSize && mWindow.head != mWindow.tail) {
+			final Node<K, V> candidate = mWindow.head;
+			mWindow.remove(candidate);
+			admit(candidate, evicted);
+		}
+		// A window that grew takes the room of the main space, or an entry is larger than
+		// the whole cache
+		while (mSize > mMaxSize) {
+			Node<K, V> victim = mProbation.head;
+			if (victim == null) {
+				victim = mProtected.head != null ? mProtected.head : mWindow.head;
+			}
+			if (victim == null) {
+				break;
+			}
+			// Not remembered as a main ghost, the window taking the room is no sign it is too large
+			removeNode(victim);
+			evicted.add(victim);
+		}
+		mEvictionCount += evicted.size();
+		return evicted;
+	}
+
+	/**
+	 * Admit a candidate leaving the window into probation if it was used more often than
+	 * each entry it has to evict, otherwise evict the candidate itself.
+	 */
+	private void admit(Node<K, V> candidate, List<Node<K, V>> evicted) {
+		final int candidateFrequency = mSketch.frequency(candidate.key);
+		// The main space takes what the window leaves, the window keeps its newest entry even
+		// past its own limit and may not have grown into a larger limit yet
+		while (mWindow.weight + mProbation.weight + mProtected.weight + candidate.weight > mMaxSize) {
+			final Node<K, V> victim = mProbation.head != null ? mProbation.head : mProtected.head;
+			if (victim == null || mSketch.frequency(victim.key) >= candidateFrequency) {
+				// Already out of its queue, only the map and size still hold it
+				mMap.remove(candidate.key);
+				mSize -= candidate.weight;
+				candidate.queue = DEAD;
+				evicted.add(candidate);
+				addGhost(mWindowGhosts, candidate);
+				return;
+			}
+			removeNode(victim);
+			evicted.add(victim);
+			addGhost(mMainGhosts, victim);
+		}
+		candidate.queue = PROBATION;
+		mProbation.addLast(candidate);
+	}
+
+	/**
+	 * Remember an evicted key. As in ARC, each side remembers as much as it could have held
+	 * had it taken the whole cache, older ghosts are forgotten. Must hold the lock.
+	 */
+	private void addGhost(Ghosts<K> ghosts, Node<K, V> node) {
+		final int room = ghosts == mWindowGhosts ? mMaxSize - mWindow.weight
+				: mMaxSize - mProbation.weight - mProtected.weight;
+		ghosts.add(node.key, node.weight, room);
+	}
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void onAccess(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			mWindow.moveToEnd(node);
+			break;
+		case PROBATION:
+			// Used again, so worth protecting
+			mProbation.remove(node);
+			node.queue = PROTECTED;
+			mProtected.addLast(node);
+			while (mProtected.weight > mProtectedMaxSize && mProtected.head != null) {
+				final Node<K, V> demoted = mProtected.head;
+				mProtected.remove(demoted);
+				demoted.queue = PROBATION;
+				mProbation.addLast(demoted);
+			}
+			break;
+		default:
+			mProtected.moveToEnd(node);
+			break;
+		}
+	}
+
+	private void removeNode(Node<K, V> node) {
+		queueOf(node).remove(node);
+		mMap.remove(node.key);
+		mSize -= node.weight;
+		node.queue = DEAD;
+	}
+
+	private AccessQueue<K, V> queueOf(Node<K, V> node) {
+		switch (node.queue) {
+		case WINDOW:
+			return mWindow;
+		case PROBATION:
+			return mProbation;
+		default:
+			return mProtected;
+		}
+	}
+
+	private void notifyEvicted(List<Node<K, V>> evicted) {
+		for (Node<K, V> node : evicted) {
+			entryRemoved(true, node.key, node.value, null);
+		}
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the number
+	 * of entries in the cache. For all other caches, this returns the sum of
+	 * the sizes of the entries in this cache.
+	 */
+	public final int size() {
+		mEvictionLock.lock();
+		try {
+			return mSize;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the maximum
+	 * number of entries in the cache. For all other caches, this returns the
+	 * maximum sum of the sizes of the entries in this cache.
+	 */
+	public final int maxSize() {
+		mEvictionLock.lock();
+		try {
+			return mMaxSize;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value.
+	 */
+	public final int hitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null.
+	 */
+	public final int missCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #put} was called.
+	 */
+	public final int putCount() {
+		mEvictionLock.lock();
+		try {
+			return mPutCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of values that have been evicted.
+	 */
+	public final int evictionCount() {
+		mEvictionLock.lock();
+		try {
+			return mEvictionCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the current contents of the cache, from the admission window to the
+	 * most recently used protected entry.
+	 */
+	public final Map<K, V> snapshot() {
+		final LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>(mMap.size());
+		lock();
+		try {
+			mWindow.copyTo(snapshot);
+			mProbation.copyTo(snapshot);
+			mProtected.copyTo(snapshot);
+		} finally {
+			mEvictionLock.unlock();
+		}
+		return snapshot;
+	}
+
+	@Override
+	public final String toString() {
+		final int hits = mHitCount.get();
+		final int accesses = hits + mMissCount.get();
+		final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+		return String.format("TinyLfuCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+				maxSize(), hits, accesses - hits, hitPercent);
+	}
+
+	private static class Node<K, V> {
+		final K key;
+		// Read without the lock
+		volatile V value;
+		// The rest is guarded by the lock
+		int weight;
+		int queue;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Keys of evicted entries with their weights, oldest first, up to a given total weight.
+	 */
+	private static class Ghosts<K> extends LinkedHashMap<K, Integer> {
+		private static final long serialVersionUID = 1L;
+		int weight;
+
+		void add(K key, int keyWeight, int maxWeight) {
+			take(key);
+			// Weightless entries count too, so the ghosts stay bounded
+			keyWeight = Math.max(1, keyWeight);
+			put(key, keyWeight);
+			weight += keyWeight;
+			final Iterator<Map.Entry<K, Integer>> eldest = entrySet().iterator();
+			while (weight > maxWeight && eldest.hasNext()) {
+				weight -= eldest.next().getValue();
+				eldest.remove();
+			}
+		}
+
+		/**
+		 * @return The weight of the removed key, or -1 if it was not there
+		 */
+		int take(K key) {
+			final Integer keyWeight = super.remove(key);
+			if (keyWeight == null) {
+				return -1;
+			}
+			weight -= keyWeight;
+			return keyWeight;
+		}
+	}
+
+	/**
+	 * A doubly linked list of nodes in access order, least recently used at the head,
+	 * with the total weight of its nodes.
+	 */
+	private static class AccessQueue<K, V> {
+		Node<K, V> head;
+		Node<K, V> tail;
+		int weight;
+
+		void addLast(Node<K, V> node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			weight += node.weight;
+		}
+
+		void remove(Node<K, V> node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			weight -= node.weight;
+		}
+
+		void moveToEnd(Node<K, V> node) {
+			if (node != tail) {
+				remove(node);
+				addLast(node);
+			}
+		}
+
+		void copyTo(Map<K, V> map) {
+			for (Node<K, V> node = head; node != null; node = node.next) {
+				map.put(node.key, node.value);
+			}
+		}
+	}
+}
@@ -70,7 +70,16 @@ public class Utils {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1;
     }
 
+    public static boolean hasIceCreamSandwich() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
     public static boolean hasJellyBean() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
     }
+
+    public static boolean hasKitKat() {
+        // KITKAT is not declared in the SDK this project builds against, so use its value
+        return Build.VERSION.SDK_INT >= 19;
+    }
 }
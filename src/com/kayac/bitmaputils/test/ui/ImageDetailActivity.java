@@ -10,6 +10,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentStatePagerAdapter;
 import android.support.v4.app.NavUtils;
 import android.support.v4.view.ViewPager;
+import android.util.DisplayMetrics;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -21,6 +22,8 @@ import com.kayac.bitmaputils.BuildConfig;
 import com.kayac.bitmaputils.R;
 import com.kayac.bitmaputils.lib.ImageCache;
 import com.kayac.bitmaputils.lib.ImageWorker;
+import com.kayac.bitmaputils.lib.LoadRequest;
+import com.kayac.bitmaputils.lib.PrefetchHelper;
 import com.kayac.bitmaputils.test.Images;
 import com.kayac.bitmaputils.test.Utils;
 
@@ -33,10 +36,13 @@ import com.kayac.bitmaputils.test.Utils;
 public class ImageDetailActivity extends FragmentActivity implements OnClickListener {
     private static final String IMAGE_CACHE_DIR = "images";
     public static final String EXTRA_IMAGE = "extra_image";
+    // Pages beyond the offscreen page limit that get their download warmed
+    private static final int PAGES_PREFETCH_COUNT = 4;
 
     private ImagePagerAdapter mAdapter;
     private ImageWorker mImageWorker;
     private ViewPager mPager;
+    private PrefetchHelper mPrefetchHelper;
 
     @TargetApi(11)
     @Override
@@ -63,6 +69,30 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         mPager.setPageMargin((int) getResources().getDimension(R.dimen.image_detail_pager_margin));
         mPager.setOffscreenPageLimit(2);
 
+        // Download the next pages in the direction the user is paging
+        final DisplayMetrics displayMetrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
+        final int preferSize = ImageDetailFragment.getPreferSize(displayMetrics);
+        mPrefetchHelper = new PrefetchHelper(mImageWorker, new PrefetchHelper.RequestProvider() {
+            @Override
+            public int getCount() {
+                return Images.imageUrls.length;
+            }
+
+            @Override
+            public LoadRequest getRequest(int position) {
+                return LoadRequest.makeRemoteFileRequest(Images.imageUrls[position],
+                        preferSize, preferSize);
+            }
+        });
+        mPrefetchHelper.setPrefetchCount(PAGES_PREFETCH_COUNT);
+        mPager.setOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                mPrefetchHelper.onPageSelected(position);
+            }
+        });
+
         // Set up activity to go full screen
         getWindow().addFlags(LayoutParams.FLAG_FULLSCREEN);
 
@@ -98,6 +128,7 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         if (extraCurrentItem != -1) {
             mPager.setCurrentItem(extraCurrentItem);
         }
+        mPrefetchHelper.onPageSelected(mPager.getCurrentItem());
     }
 
     @Override
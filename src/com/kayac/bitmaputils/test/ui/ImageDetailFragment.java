@@ -72,6 +72,14 @@ public class ImageDetailFragment extends Fragment {
         // activity runs full screen
         final DisplayMetrics displayMetrics = new DisplayMetrics();
         getActivity().getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
+        mPreferSize = getPreferSize(displayMetrics);
+    }
+
+    /**
+     * The size images are requested at, shared with the prefetching in {@link ImageDetailActivity}
+     * so that prefetched requests match the ones made here.
+     */
+    static int getPreferSize(DisplayMetrics displayMetrics) {
         final int height = displayMetrics.heightPixels;
         final int width = displayMetrics.widthPixels;
 
@@ -80,7 +88,7 @@ public class ImageDetailFragment extends Fragment {
         // resolution that is appropriate for both portrait and landscape. For best image quality
         // we shouldn't divide by 2, but this will use more memory and require a larger memory
         // cache.
-        mPreferSize = (height > width ? height : width) / 2;
+        return (height > width ? height : width) / 2;
     }
 
     @Override
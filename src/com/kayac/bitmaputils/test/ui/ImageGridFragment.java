@@ -43,6 +43,8 @@ import com.kayac.bitmaputils.BuildConfig;
 import com.kayac.bitmaputils.R;
 import com.kayac.bitmaputils.lib.ImageCache.ImageCacheParams;
 import com.kayac.bitmaputils.lib.ImageWorker;
+import com.kayac.bitmaputils.lib.LoadRequest;
+import com.kayac.bitmaputils.lib.PrefetchHelper;
 import com.kayac.bitmaputils.lib.RecyclingImageView;
 import com.kayac.bitmaputils.test.Images;
 import com.kayac.bitmaputils.test.Utils;
@@ -57,11 +59,13 @@ import com.kayac.bitmaputils.test.Utils;
 public class ImageGridFragment extends Fragment implements AdapterView.OnItemClickListener {
     private static final String TAG = "ImageGridFragment";
     private static final String IMAGE_CACHE_DIR = "thumbs";
+    private static final int THUMBS_PREFETCH_COUNT = 12;
 
     private int mImageThumbSize;
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
     private ImageWorker mImageFetcher;
+    private PrefetchHelper mPrefetchHelper;
 
     /**
      * Empty constructor as per the Fragment documentation
@@ -86,6 +90,20 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         mImageFetcher = new ImageWorker(getActivity());
         mImageFetcher.setLoadingImage(R.drawable.empty_photo);
         mImageFetcher.addImageCache(getActivity().getSupportFragmentManager(), cacheParams);
+
+        // Warm the disk cache for the rows about to scroll into view
+        mPrefetchHelper = new PrefetchHelper(mImageFetcher, new PrefetchHelper.RequestProvider() {
+            @Override
+            public int getCount() {
+                return mAdapter.getCount();
+            }
+
+            @Override
+            public LoadRequest getRequest(int position) {
+                return mAdapter.getRequest(position);
+            }
+        });
+        mPrefetchHelper.setPrefetchCount(THUMBS_PREFETCH_COUNT);
     }
 
     @Override
@@ -110,6 +128,10 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem,
                     int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount > 0 && mAdapter.getNumColumns() > 0) {
+                    mPrefetchHelper.onScroll(firstVisibleItem,
+                            firstVisibleItem + visibleItemCount - 1);
+                }
             }
         });
 
@@ -201,6 +223,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
      * transparent ActionBar and don't want the real top row of images to start off covered by it.
      */
     private class ImageAdapter extends BaseAdapter {
+        private static final int THUMB_REQUEST_SIZE = 400;
 
         private final Context mContext;
         private int mItemHeight = 0;
@@ -286,10 +309,22 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             // Finally load the image asynchronously into the ImageView, this also takes care of
             // setting a placeholder image while the background thread runs
 //			mImageFetcher.loadImage(LoadRequest.makeRemoteFileRequest(Images.imageThumbUrls[position - mNumColumns],mImageThumbSize,mImageThumbSize), imageView);
-            imageView.loadImageRemote(mImageFetcher, Images.imageThumbUrls[position - mNumColumns],400,400);
+            imageView.loadImageRemote(mImageFetcher, Images.imageThumbUrls[position - mNumColumns],
+                    THUMB_REQUEST_SIZE, THUMB_REQUEST_SIZE);
             return imageView;
         }
 
+        /**
+         * The request getView() would make for a position, null for the top row.
+         */
+        public LoadRequest getRequest(int position) {
+            if (position < mNumColumns || position >= getCount()) {
+                return null;
+            }
+            return LoadRequest.makeRemoteFileRequest(Images.imageThumbUrls[position - mNumColumns],
+                    THUMB_REQUEST_SIZE, THUMB_REQUEST_SIZE);
+        }
+
         /**
          * Sets the item height. Useful for when we know the column width so the height can be set
          * to match.
@@ -0,0 +1,135 @@
+package com.kayac.bitmaputils.lib;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * The budget is shared by the whole process, every test measures from what is used already
+ * and puts the max size back.
+ *
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class BitmapBudgetTest extends TestCase {
+	private static final int SIZE_400 = 400 * 400 * 4;
+
+	private BitmapBudget mBudget;
+	private long mMaxSize;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mBudget = BitmapBudget.getInstance();
+		mMaxSize = mBudget.getMaxSize();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mBudget.setMaxSize(mMaxSize);
+		super.tearDown();
+	}
+
+	public void testDecodedSizeFollowsSampleSizeAndConfig() {
+		assertEquals(SIZE_400, BitmapBudget.getDecodedSize(options(400, 400, 1, Bitmap.Config.ARGB_8888)));
+		// No preferred config decodes as ARGB_8888
+		assertEquals(SIZE_400, BitmapBudget.getDecodedSize(options(400, 400, 1, null)));
+		assertEquals(400 * 400 * 2, BitmapBudget.getDecodedSize(options(400, 400, 1, Bitmap.Config.RGB_565)));
+		// The decoder rounds sampled sizes up
+		assertEquals(201 * 150 * 4, BitmapBudget.getDecodedSize(options(401, 300, 2, Bitmap.Config.ARGB_8888)));
+		// Unknown bounds
+		assertEquals(0, BitmapBudget.getDecodedSize(options(0, 0, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testDecodedSizeIsScaledByDensity() {
+		final BitmapFactory.Options options = options(100, 100, 1, Bitmap.Config.ARGB_8888);
+		options.inScaled = true;
+		options.inDensity = 160;
+		options.inTargetDensity = 240;
+		assertEquals(150 * 150 * 4, BitmapBudget.getDecodedSize(options));
+		// Already at the density of the screen
+		options.inScreenDensity = 160;
+		assertEquals(100 * 100 * 4, BitmapBudget.getDecodedSize(options));
+		options.inScreenDensity = 0;
+		options.inScaled = false;
+		assertEquals(100 * 100 * 4, BitmapBudget.getDecodedSize(options));
+	}
+
+	public void testReserveAndRelease() {
+		final long used = mBudget.getUsedSize();
+		final BitmapFactory.Options options = options(400, 400, 1, Bitmap.Config.ARGB_8888);
+		final long reserved = mBudget.reserve(options);
+		assertEquals(SIZE_400, reserved);
+		assertEquals(1, options.inSampleSize);
+		assertEquals(used + SIZE_400, mBudget.getUsedSize());
+		mBudget.release(reserved);
+		assertEquals(used, mBudget.getUsedSize());
+	}
+
+	public void testOverBudgetDecodeIsSampledDown() {
+		mBudget.setMaxSize(mBudget.getUsedSize() + 100 * 100 * 4);
+		final int downsampled = mBudget.getDownsampleCount();
+		final BitmapFactory.Options options = options(400, 400, 1, Bitmap.Config.ARGB_8888);
+		final long reserved = mBudget.reserve(options);
+		assertEquals(4, options.inSampleSize);
+		assertEquals(100 * 100 * 4, reserved);
+		assertEquals(downsampled + 1, mBudget.getDownsampleCount());
+		mBudget.release(reserved);
+	}
+
+	public void testDecodeWaitsOnlyBrieflyForOthers() {
+		mBudget.setMaxSize(mBudget.getUsedSize() + SIZE_400);
+		final long first = mBudget.reserve(options(400, 400, 1, Bitmap.Config.ARGB_8888));
+		final int throttled = mBudget.getThrottleCount();
+		final long start = System.currentTimeMillis();
+		// Does not fit next to the first, which is not going to finish
+		final BitmapFactory.Options options = options(400, 400, 1, Bitmap.Config.ARGB_8888);
+		final long second = mBudget.reserve(options);
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertEquals(throttled + 1, mBudget.getThrottleCount());
+		// Even sampled down it is over budget, past every fallback the decode goes ahead
+		assertTrue(options.inSampleSize > 1);
+		mBudget.release(second);
+		mBudget.release(first);
+	}
+
+	public void testReusedDecodeNeverWaits() {
+		mBudget.setMaxSize(mBudget.getUsedSize());
+		final int throttled = mBudget.getThrottleCount();
+		final long reserved = mBudget.reserveReused(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+		assertEquals(100 * 100 * 4, reserved);
+		assertEquals(throttled, mBudget.getThrottleCount());
+		mBudget.release(reserved);
+	}
+
+	public void testHandedOverBitmapCountsUntilSettled() {
+		final long used = mBudget.getUsedSize();
+		final Bitmap bitmap = Bitmap.createBitmap(400, 400, Bitmap.Config.ARGB_8888);
+		final long reserved = mBudget.reserve(options(400, 400, 1, Bitmap.Config.ARGB_8888));
+		// The decode is over, the bitmap is on its way to a cache
+		mBudget.handOver(bitmap, reserved);
+		assertEquals(used + SIZE_400, mBudget.getUsedSize());
+		// Decoded into again before it was cached
+		mBudget.handOver(bitmap, mBudget.reserveReused(bitmap));
+		assertEquals(used + 2 * SIZE_400, mBudget.getUsedSize());
+
+		mBudget.settle(bitmap);
+		assertEquals(used, mBudget.getUsedSize());
+		// Settling twice or what was never handed over changes nothing
+		mBudget.settle(bitmap);
+		mBudget.settle(null);
+		assertEquals(used, mBudget.getUsedSize());
+	}
+
+	private static BitmapFactory.Options options(int width, int height, int sampleSize,
+			Bitmap.Config config) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = width;
+		options.outHeight = height;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = config;
+		return options;
+	}
+}
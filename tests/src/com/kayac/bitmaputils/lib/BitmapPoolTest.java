@@ -0,0 +1,156 @@
+package com.kayac.bitmaputils.lib;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.kayac.bitmaputils.test.Utils;
+
+/**
+ * Which bitmaps the pool hands out depends on what the decoder of the device can reuse, the
+ * KitKat and pre-KitKat tests each run on their side of that line only.
+ *
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class BitmapPoolTest extends TestCase {
+	private static final int MAX_SIZE = 1024 * 1024;
+
+	private BitmapPool mPool;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPool = new BitmapPool(MAX_SIZE);
+	}
+
+	public void testTakesOnlyReusableBitmaps() {
+		assertFalse(mPool.put(null));
+		final Bitmap recycled = newBitmap(10, 10);
+		recycled.recycle();
+		assertFalse(mPool.put(recycled));
+		final Bitmap immutable = Bitmap.createBitmap(newBitmap(10, 10), 0, 0, 5, 5, null, false);
+		assertFalse(mPool.put(immutable));
+		// Larger than the whole pool
+		assertFalse(mPool.put(newBitmap(1024, 1024)));
+
+		final Bitmap bitmap = newBitmap(10, 10);
+		assertTrue(mPool.put(bitmap));
+		assertFalse(mPool.put(bitmap));
+		assertEquals(400, mPool.size());
+	}
+
+	public void testGetTakesTheBitmapOut() {
+		final Bitmap bitmap = newBitmap(100, 100);
+		mPool.put(bitmap);
+		assertSame(bitmap, mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+		assertEquals(0, mPool.size());
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+		assertEquals(0.5f, mPool.getHitRate());
+		assertEquals(100 * 100 * 4, mPool.getBytesSaved());
+	}
+
+	public void testConfigMustMatch() {
+		mPool.put(newBitmap(100, 100));
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.RGB_565)));
+		// No preferred config decodes as ARGB_8888
+		assertNotNull(mPool.get(options(100, 100, 1, null)));
+	}
+
+	public void testNothingForUnknownBounds() {
+		mPool.put(newBitmap(100, 100));
+		assertNull(mPool.get(options(0, 0, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testKitKatReusesLargerBitmapsWithinFourTimes() {
+		if (!Utils.hasKitKat()) {
+			return;
+		}
+		mPool.put(newBitmap(50, 50));
+		// Too small
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+
+		final Bitmap fourTimes = newBitmap(200, 200);
+		mPool.put(fourTimes);
+		assertSame(fourTimes, mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+
+		// A small image does not pin a large allocation
+		mPool.put(newBitmap(400, 400));
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+		// Sampled down to what fits
+		assertNotNull(mPool.get(options(800, 800, 2, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testKitKatPicksTheSmallestLargeEnough() {
+		if (!Utils.hasKitKat()) {
+			return;
+		}
+		mPool.put(newBitmap(190, 190));
+		final Bitmap smallest = newBitmap(110, 110);
+		mPool.put(smallest);
+		mPool.put(newBitmap(150, 150));
+		assertSame(smallest, mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testBeforeKitKatOnlyTheExactSizeIsReused() {
+		if (Utils.hasKitKat()) {
+			return;
+		}
+		final Bitmap bitmap = newBitmap(200, 200);
+		mPool.put(bitmap);
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+		// Same size but sampled, the decoder cannot reuse it
+		assertNull(mPool.get(options(400, 400, 2, Bitmap.Config.ARGB_8888)));
+		// Same byte count, other dimensions
+		assertNull(mPool.get(options(100, 400, 1, Bitmap.Config.ARGB_8888)));
+		// Scaled by density
+		final BitmapFactory.Options scaled = options(200, 200, 1, Bitmap.Config.ARGB_8888);
+		scaled.inDensity = 160;
+		scaled.inTargetDensity = 320;
+		assertNull(mPool.get(scaled));
+
+		assertSame(bitmap, mPool.get(options(200, 200, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testTrimDropsTheOldestFirst() {
+		mPool.put(newBitmap(100, 100));
+		mPool.put(Bitmap.createBitmap(100, 100, Bitmap.Config.RGB_565));
+		final Bitmap newest = newBitmap(100, 100);
+		mPool.put(newest);
+		assertEquals(100000, mPool.size());
+
+		mPool.trimToSize(mPool.size() - 1);
+		assertEquals(60000, mPool.size());
+		mPool.trimToSize(40000);
+		assertEquals(40000, mPool.size());
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.RGB_565)));
+		assertSame(newest, mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	public void testPutKeepsTheBudget() {
+		mPool = new BitmapPool(100000);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(mPool.put(newBitmap(100, 100)));
+		}
+		assertEquals(80000, mPool.size());
+		mPool.clear();
+		assertEquals(0, mPool.size());
+		assertNull(mPool.get(options(100, 100, 1, Bitmap.Config.ARGB_8888)));
+	}
+
+	private static Bitmap newBitmap(int width, int height) {
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	private static BitmapFactory.Options options(int width, int height, int sampleSize,
+			Bitmap.Config config) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = width;
+		options.outHeight = height;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = config;
+		return options;
+	}
+}
@@ -0,0 +1,97 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures how long {@link DiskLruCache#open} takes for 10k, 100k and 1M entries, from the
+ * text journal of earlier versions, which is migrated on that first open, and from the binary
+ * checkpoint it is migrated to. The entries have no value files, open never looks at them.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class DiskLruCacheOpenBenchmark extends TestCase {
+	private static final String TAG = "DiskLruCacheOpen";
+	private static final int APP_VERSION = 1;
+	private static final int[] ENTRIES = { 10000, 100000, 1000000 };
+	private static final int ROUNDS = 3;
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TestFiles.newDirectory("disk-lru-cache-open");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestFiles.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testOpenTime() throws IOException {
+		for (int entries : ENTRIES) {
+			TestFiles.delete(mDirectory);
+			mDirectory.mkdirs();
+			final long textBytes = writeTextJournal(entries);
+			long start = System.nanoTime();
+			DiskLruCache cache = DiskLruCache.open(mDirectory, APP_VERSION, 1, Long.MAX_VALUE);
+			final long textMillis = (System.nanoTime() - start) / 1000000;
+			cache.close();
+			final long binaryBytes = binaryLength();
+
+			long binaryMillis = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				start = System.nanoTime();
+				cache = DiskLruCache.open(mDirectory, APP_VERSION, 1, Long.MAX_VALUE);
+				binaryMillis = Math.min(binaryMillis, (System.nanoTime() - start) / 1000000);
+				cache.close();
+			}
+			Log.i(TAG, String.format("%d entries: text journal %d ms (%d KB), checkpoint %d ms (%d KB)",
+					entries, textMillis, textBytes / 1024, binaryMillis, binaryBytes / 1024));
+		}
+	}
+
+	/**
+	 * Writes the version 1 journal of a cache whose entries were each written once and then read
+	 * a few times, the way ImageCache uses it.
+	 */
+	private long writeTextJournal(int entries) throws IOException {
+		final File journal = new File(mDirectory, DiskLruCache.JOURNAL_FILE);
+		final Writer out = new BufferedWriter(new FileWriter(journal), 64 * 1024);
+		try {
+			out.write(DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n" + APP_VERSION + "\n1\n\n");
+			for (int i = 0; i < entries; i++) {
+				final String key = ImageCache.hashKeyForDisk("http://example.com/image/" + i + ".jpg");
+				out.write("DIRTY " + key + "\n");
+				out.write("CLEAN " + key + " " + (10000 + i % 50000) + "\n");
+				if (i % 2 == 0) {
+					out.write("READ " + key + "\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return journal.length();
+	}
+
+	private long binaryLength() {
+		long length = 0;
+		for (File file : mDirectory.listFiles()) {
+			if (file.getName().endsWith(DiskLruCache.BINARY_SUFFIX)) {
+				length += file.length();
+			}
+		}
+		return length;
+	}
+}
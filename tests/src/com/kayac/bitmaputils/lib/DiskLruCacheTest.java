@@ -0,0 +1,496 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class DiskLruCacheTest extends TestCase {
+	private static final int APP_VERSION = 100;
+	private static final long EVICTION_TIMEOUT_MILLIS = 5000;
+
+	private File mDirectory;
+	private DiskLruCache mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TestFiles.newDirectory("disk-lru-cache");
+		mCache = open(Long.MAX_VALUE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.close();
+		TestFiles.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testCommitAndGet() throws IOException {
+		set("k1", "a");
+		assertEquals("a", get("k1"));
+		assertNull(get("k2"));
+		assertEquals(1, mCache.size());
+	}
+
+	public void testEntriesOfEverySegmentSurviveReopen() throws IOException {
+		for (int i = 0; i < 200; i++) {
+			set("key" + i, "value" + i);
+		}
+		mCache.remove("key7");
+		mCache.close();
+		mCache = open(Long.MAX_VALUE);
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i == 7 ? null : "value" + i, get("key" + i));
+		}
+	}
+
+	public void testConcurrentEditsOfDifferentKeys() throws Exception {
+		final int threads = 8;
+		final int keysPerThread = 100;
+		runConcurrently(threads, new Task() {
+			@Override
+			public void run(int thread) throws Exception {
+				for (int i = 0; i < keysPerThread; i++) {
+					set("t" + thread + "k" + i, "v" + i);
+				}
+			}
+		});
+		long size = 0;
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < keysPerThread; i++) {
+				assertEquals("v" + i, get("t" + t + "k" + i));
+				size += ("v" + i).length();
+			}
+		}
+		assertEquals(size, mCache.size());
+	}
+
+	public void testReadsDuringEditsSeeWholeValues() throws Exception {
+		final int length = 4096;
+		set("k1", repeat('a', length));
+		runConcurrently(2, new Task() {
+			@Override
+			public void run(int thread) throws Exception {
+				for (int i = 0; i < 200; i++) {
+					if (thread == 0) {
+						set("k1", repeat((char) ('a' + i % 26), length));
+					} else {
+						final String value = get("k1");
+						assertEquals(length, value.length());
+						assertEquals(repeat(value.charAt(0), length), value);
+					}
+				}
+			}
+		});
+	}
+
+	public void testEvictionKeepsTheNewestEntriesAcrossSegments() throws Exception {
+		mCache.close();
+		mCache = open(1000);
+		for (int i = 0; i < 100; i++) {
+			set("key" + i, repeat('x', 100));
+		}
+		awaitSizeAtMost(1000);
+		assertNull(get("key0"));
+		assertEquals(repeat('x', 100), get("key99"));
+	}
+
+	public void testEvictionSkipsEntriesBeingEdited() throws Exception {
+		mCache.close();
+		mCache = open(1000);
+		set("edited", repeat('x', 100));
+		final DiskLruCache.Editor editor = mCache.edit("edited");
+		for (int i = 0; i < 20; i++) {
+			set("key" + i, repeat('x', 100));
+		}
+		awaitSizeAtMost(1000);
+		assertEquals(repeat('x', 100), get("edited"));
+		editor.set(0, "b");
+		editor.commit();
+		assertEquals("b", get("edited"));
+	}
+
+	public void testJournalIsReplayedWithoutClose() throws IOException {
+		set("k1", "a");
+		set("k2", "b");
+		set("k1", "c");
+		mCache.remove("k2");
+		mCache.flush();
+		final DiskLruCache crashed = openCopy("crashed");
+		try {
+			assertEquals("c", get(crashed, "k1"));
+			assertNull(get(crashed, "k2"));
+			assertEquals(1, crashed.size());
+		} finally {
+			crashed.close();
+		}
+	}
+
+	public void testTornJournalTailIsDropped() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			set("key" + i, "value" + i);
+		}
+		mCache.flush();
+		final long[] before = journalLengths(mDirectory);
+		set("torn", "lost");
+		mCache.flush();
+		final long[] after = journalLengths(mDirectory);
+
+		final File copy = copyDirectory("torn");
+		int segment = 0;
+		while (after[segment] == before[segment]) {
+			segment++;
+		}
+		// Cut the CLEAN record of "torn" short by one byte, its DIRTY record stands
+		truncate(new File(copy, "journal." + segment + ".bin"), after[segment] - 1);
+
+		DiskLruCache reopened = DiskLruCache.open(copy, APP_VERSION, 1, Long.MAX_VALUE);
+		try {
+			assertNull(get(reopened, "torn"));
+			assertEquals("value0", get(reopened, "key0"));
+			// Only the DIRTY record made it, the value file is deleted on open
+			assertFalse(new File(copy, "torn.0").exists());
+			set(reopened, "k1", "a");
+		} finally {
+			reopened.close();
+		}
+		reopened = DiskLruCache.open(copy, APP_VERSION, 1, Long.MAX_VALUE);
+		try {
+			assertEquals("a", get(reopened, "k1"));
+			assertEquals("value49", get(reopened, "key49"));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	public void testTextJournalIsMigrated() throws IOException {
+		mCache.close();
+		TestFiles.delete(mDirectory);
+		assertTrue(mDirectory.mkdirs());
+		final StringBuilder journal = new StringBuilder(
+				"libcore.io.DiskLruCache\n1\n" + APP_VERSION + "\n1\n\n");
+		for (int i = 0; i < 40; i++) {
+			journal.append("DIRTY key").append(i).append('\n');
+			journal.append("CLEAN key").append(i).append(' ').append(("value" + i).length()).append('\n');
+			writeFile(new File(mDirectory, "key" + i + ".0"), "value" + i);
+		}
+		journal.append("REMOVE key3\n");
+		journal.append("READ key0\n");
+		writeFile(new File(mDirectory, "journal"), journal.toString());
+
+		mCache = open(Long.MAX_VALUE);
+		assertFalse(new File(mDirectory, "journal").exists());
+		assertTrue(new File(mDirectory, "checkpoint.0.bin").exists());
+		assertNull(get("key3"));
+		for (int i = 0; i < 40; i++) {
+			if (i != 3) {
+				assertEquals("value" + i, get("key" + i));
+			}
+		}
+		mCache.close();
+		mCache = open(Long.MAX_VALUE);
+		assertEquals("value39", get("key39"));
+	}
+
+	public void testCheckpointReplacesALongJournal() throws Exception {
+		final int keys = 50;
+		final int edits = 4000;
+		for (int i = 0; i < edits; i++) {
+			set(ImageCache.hashKeyForDisk("key" + i % keys), "value" + i);
+		}
+		// Each edit appends a DIRTY and a CLEAN record of about 60 bytes together
+		final long unbounded = edits * 60L;
+		final long deadline = System.currentTimeMillis() + EVICTION_TIMEOUT_MILLIS;
+		long journals;
+		while ((journals = sum(journalLengths(mDirectory))) > unbounded / 4) {
+			assertTrue("journals still hold " + journals + " bytes", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		mCache.close();
+		mCache = open(Long.MAX_VALUE);
+		for (int i = edits - keys; i < edits; i++) {
+			assertEquals("value" + i, get(ImageCache.hashKeyForDisk("key" + i % keys)));
+		}
+	}
+
+	public void testFlushDurabilityWritesTheDirtyRecordBeforeEditReturns() throws IOException {
+		final long before = sum(journalLengths(mDirectory));
+		final DiskLruCache.Editor editor = mCache.edit("k1");
+		assertTrue(sum(journalLengths(mDirectory)) > before);
+		editor.set(0, "a");
+		// The process dies with the value file written but not committed
+		final File copy = copyDirectory("dirty");
+		final DiskLruCache crashed = DiskLruCache.open(copy, APP_VERSION, 1, Long.MAX_VALUE);
+		try {
+			assertNull(get(crashed, "k1"));
+			assertFalse(new File(copy, "k1.0.tmp").exists());
+		} finally {
+			crashed.close();
+		}
+		editor.abort();
+	}
+
+	public void testFlushDurabilityCommitsWithoutAFlush() throws Exception {
+		final DiskLruCache.Editor editor = mCache.edit("k1");
+		final long dirty = sum(journalLengths(mDirectory));
+		editor.set(0, "a");
+		editor.commit();
+		// The CLEAN record goes out with the next batch, within the commit interval
+		final long deadline = System.currentTimeMillis() + EVICTION_TIMEOUT_MILLIS;
+		while (sum(journalLengths(mDirectory)) == dirty) {
+			assertTrue("CLEAN record never written", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		final DiskLruCache crashed = openCopy("committed");
+		try {
+			assertEquals("a", get(crashed, "k1"));
+		} finally {
+			crashed.close();
+		}
+	}
+
+	public void testSyncDurabilityRecordsAreWrittenWhenCommitReturns() throws IOException {
+		mCache.close();
+		mCache = DiskLruCache.open(mDirectory, APP_VERSION, 1, Long.MAX_VALUE,
+				DiskLruCache.DURABILITY_SYNC);
+		set("k1", "a");
+		set("k2", "b");
+		assertTrue(mCache.remove("k2"));
+		final DiskLruCache crashed = openCopy("sync");
+		try {
+			assertEquals("a", get(crashed, "k1"));
+			assertNull(get(crashed, "k2"));
+		} finally {
+			crashed.close();
+		}
+	}
+
+	public void testLazyDurabilitySweepsFilesOfLostRecords() throws Exception {
+		mCache.close();
+		mCache = DiskLruCache.open(mDirectory, APP_VERSION, 1, Long.MAX_VALUE,
+				DiskLruCache.DURABILITY_LAZY);
+		set("k1", "a");
+		final File copy = copyDirectory("lazy");
+		final DiskLruCache crashed = DiskLruCache.open(copy, APP_VERSION, 1, Long.MAX_VALUE,
+				DiskLruCache.DURABILITY_LAZY);
+		try {
+			// Either the records made it before the copy, or the value file is swept
+			final File value = new File(copy, "k1.0");
+			final long deadline = System.currentTimeMillis() + EVICTION_TIMEOUT_MILLIS;
+			while (get(crashed, "k1") == null && value.exists()) {
+				assertTrue("orphan value file never swept", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		} finally {
+			crashed.close();
+		}
+		// A clean close writes whatever was still buffered
+		mCache.close();
+		mCache = open(Long.MAX_VALUE);
+		assertEquals("a", get("k1"));
+	}
+
+	public void testEvictionRunsDownToTheLowWatermark() throws Exception {
+		mCache.close();
+		mCache = open(1000);
+		for (int i = 0; i < 10; i++) {
+			set("key" + i, repeat('x', 100));
+		}
+		assertEquals(1000, mCache.size());
+		set("key10", repeat('x', 100));
+		// Over the max by one entry, eviction goes on to 90% of it
+		awaitSizeAtMost(900);
+		Thread.sleep(100);
+		assertEquals(900, mCache.size());
+		assertNull(get("key0"));
+		assertNull(get("key1"));
+		assertEquals(repeat('x', 100), get("key10"));
+	}
+
+	public void testDeleteLetsANewCacheOpenRightAway() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			set("key" + i, "value" + i);
+		}
+		mCache.delete();
+		assertFalse(new File(mDirectory, "key0.0").exists());
+		mCache = open(Long.MAX_VALUE);
+		assertNull(get("key0"));
+		assertEquals(0, mCache.size());
+		set("key0", "a");
+		assertEquals("a", get("key0"));
+	}
+
+	private DiskLruCache open(long maxSize) throws IOException {
+		return DiskLruCache.open(mDirectory, APP_VERSION, 1, maxSize);
+	}
+
+	private void set(String key, String value) throws IOException {
+		set(mCache, key, value);
+	}
+
+	private String get(String key) throws IOException {
+		return get(mCache, key);
+	}
+
+	private static void set(DiskLruCache cache, String key, String value) throws IOException {
+		final DiskLruCache.Editor editor = cache.edit(key);
+		assertNotNull(editor);
+		editor.set(0, value);
+		editor.commit();
+	}
+
+	private static String get(DiskLruCache cache, String key) throws IOException {
+		final DiskLruCache.Snapshot snapshot = cache.get(key);
+		if (snapshot == null) {
+			return null;
+		}
+		try {
+			return snapshot.getString(0);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Opens a copy of the cache directory as it is now, like the process died without closing
+	 * the cache.
+	 */
+	private DiskLruCache openCopy(String name) throws IOException {
+		return DiskLruCache.open(copyDirectory(name), APP_VERSION, 1, Long.MAX_VALUE);
+	}
+
+	private File copyDirectory(String name) throws IOException {
+		final File copy = new File(mDirectory, name);
+		assertTrue(copy.mkdir());
+		for (File file : mDirectory.listFiles()) {
+			if (file.isFile()) {
+				copyFile(file, new File(copy, file.getName()));
+			}
+		}
+		return copy;
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		final InputStream in = new FileInputStream(from);
+		try {
+			final OutputStream out = new FileOutputStream(to);
+			try {
+				final byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File file, String content) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(length);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long[] journalLengths(File directory) {
+		final long[] lengths = new long[DiskLruCache.SEGMENT_COUNT];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = new File(directory, "journal." + i + ".bin").length();
+		}
+		return lengths;
+	}
+
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private void awaitSizeAtMost(long size) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + EVICTION_TIMEOUT_MILLIS;
+		while (mCache.size() > size) {
+			assertTrue("size " + mCache.size() + " never dropped to " + size,
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		final char[] chars = new char[count];
+		for (int i = 0; i < count; i++) {
+			chars[i] = c;
+		}
+		return new String(chars);
+	}
+
+	private interface Task {
+		void run(int thread) throws Exception;
+	}
+
+	/**
+	 * Runs the task on that many threads at once, rethrowing the first failure.
+	 */
+	private static void runConcurrently(int threads, final Task task) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final List<Thread> running = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			final Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						task.run(thread);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			worker.start();
+			running.add(worker);
+		}
+		start.countDown();
+		for (Thread worker : running) {
+			worker.join();
+		}
+		final Throwable e = failure.get();
+		if (e instanceof Exception) {
+			throw (Exception) e;
+		} else if (e != null) {
+			throw (Error) e;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures the throughput of {@link DiskLruCache} with 1 to 8 threads doing what the image
+ * loaders do: mostly reading cached images, sometimes writing a new one, and how much of it
+ * each durability mode costs. Each thread runs for a fixed time over a shared set of keys.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class DiskLruCacheThroughputBenchmark extends TestCase {
+	private static final String TAG = "DiskLruCacheThroughput";
+	private static final int KEYS = 2000;
+	private static final int VALUE_SIZE = 4 * 1024;
+	private static final int WRITE_PERCENT = 10;
+	private static final long DURATION_MILLIS = 2000;
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final int DURABILITY_THREADS = 8;
+	private static final int DURABILITY_WRITE_PERCENT = 25;
+
+	private File mDirectory;
+	private DiskLruCache mCache;
+	private final String[] mKeys = new String[KEYS];
+	private final byte[] mValue = new byte[VALUE_SIZE];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TestFiles.newDirectory("disk-lru-cache-throughput");
+		new Random(0).nextBytes(mValue);
+		for (int i = 0; i < KEYS; i++) {
+			mKeys[i] = ImageCache.hashKeyForDisk("http://example.com/image/" + i + ".jpg");
+		}
+		open(DiskLruCache.DURABILITY_FLUSH);
+		for (String key : mKeys) {
+			write(key);
+		}
+	}
+
+	private void open(int durability) throws IOException {
+		if (mCache != null) {
+			mCache.close();
+		}
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Long.MAX_VALUE, durability);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.close();
+		TestFiles.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testThroughputByThreadCount() throws Exception {
+		// Warm up
+		run(THREADS[THREADS.length - 1], WRITE_PERCENT);
+		double single = 0;
+		for (int threads : THREADS) {
+			final double opsPerSecond = run(threads, WRITE_PERCENT);
+			if (threads == 1) {
+				single = opsPerSecond;
+			}
+			Log.i(TAG, String.format("%d threads: %.0f ops/s, %.2fx of one thread", threads,
+					opsPerSecond, opsPerSecond / single));
+		}
+	}
+
+	public void testThroughputByDurability() throws Exception {
+		final String[] names = { "FLUSH", "SYNC", "LAZY" };
+		final int[] modes = { DiskLruCache.DURABILITY_FLUSH, DiskLruCache.DURABILITY_SYNC,
+				DiskLruCache.DURABILITY_LAZY };
+		run(DURABILITY_THREADS, DURABILITY_WRITE_PERCENT);
+		for (int i = 0; i < modes.length; i++) {
+			open(modes[i]);
+			Log.i(TAG, String.format("%s, %d threads, %d%% writes: %.0f ops/s", names[i],
+					DURABILITY_THREADS, DURABILITY_WRITE_PERCENT,
+					run(DURABILITY_THREADS, DURABILITY_WRITE_PERCENT)));
+		}
+	}
+
+	private double run(int threads, final int writePercent) throws Exception {
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final IOException[] failure = new IOException[1];
+		final long start = System.nanoTime();
+		final long end = start + DURATION_MILLIS * 1000000;
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			new Thread() {
+				@Override
+				public void run() {
+					final byte[] buffer = new byte[VALUE_SIZE];
+					long count = 0;
+					try {
+						while (System.nanoTime() < end) {
+							final String key = mKeys[random.nextInt(KEYS)];
+							if (random.nextInt(100) < writePercent) {
+								write(key);
+							} else {
+								read(key, buffer);
+							}
+							count++;
+						}
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+					ops.addAndGet(count);
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return ops.get() * 1e9 / (System.nanoTime() - start);
+	}
+
+	private void write(String key) throws IOException {
+		final DiskLruCache.Editor editor = mCache.edit(key);
+		if (editor == null) {
+			// Another thread is writing it
+			return;
+		}
+		final OutputStream out = editor.newOutputStream(0);
+		try {
+			out.write(mValue);
+		} finally {
+			out.close();
+		}
+		editor.commit();
+	}
+
+	private void read(String key, byte[] buffer) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mCache.get(key);
+		if (snapshot == null) {
+			return;
+		}
+		try {
+			final InputStream in = snapshot.getInputStream(0);
+			while (in.read(buffer) != -1) {
+				// Read it all like a decode would
+			}
+		} finally {
+			snapshot.close();
+		}
+	}
+}
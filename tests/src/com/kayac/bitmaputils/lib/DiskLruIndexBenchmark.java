@@ -0,0 +1,109 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares {@link DiskLruIndex} with the access-ordered LinkedHashMap of entry objects that
+ * DiskLruCache used before: heap per entry and the latency of a lookup that moves the entry to
+ * the most recent end, as {@link DiskLruCache#get} does. Keys are the MD5 hex keys of
+ * ImageCache.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class DiskLruIndexBenchmark extends TestCase {
+	private static final String TAG = "DiskLruIndexBenchmark";
+	private static final int ENTRIES = 100000;
+	private static final int LOOKUPS = 1000000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * The fields of the entry class DiskLruCache kept per key.
+	 */
+	@SuppressWarnings("unused")
+	private static final class Entry {
+		private final String key;
+		private final long[] lengths = new long[1];
+		private boolean readable;
+		private Object currentEditor;
+		private long sequenceNumber;
+
+		Entry(String key) {
+			this.key = key;
+		}
+	}
+
+	public void testHeapAndLookup() {
+		final String[] keys = new String[ENTRIES];
+		for (int i = 0; i < ENTRIES; i++) {
+			keys[i] = ImageCache.hashKeyForDisk("http://example.com/image/" + i + ".jpg");
+		}
+		final Random random = new Random(0);
+
+		// The map keeps a key string per entry, the index only the two longs of a hex key
+		long before = usedHeap();
+		final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+		for (String key : keys) {
+			final String copy = new String(key);
+			map.put(copy, new Entry(copy));
+		}
+		final long mapBytes = usedHeap() - before;
+
+		before = usedHeap();
+		final DiskLruIndex index = new DiskLruIndex(1);
+		for (String key : keys) {
+			index.insert(key);
+		}
+		final long indexBytes = usedHeap() - before;
+		Log.i(TAG, String.format("heap per entry: LinkedHashMap %d bytes, DiskLruIndex %d bytes",
+				mapBytes / ENTRIES, indexBytes / ENTRIES));
+
+		long mapNanos = Long.MAX_VALUE;
+		long indexNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			// Each get hashes a key string of its own, like one just made by hashKeyForDisk
+			String[] lookups = newLookups(keys, random);
+			long start = System.nanoTime();
+			for (String key : lookups) {
+				assertNotNull(map.get(key));
+			}
+			mapNanos = Math.min(mapNanos, System.nanoTime() - start);
+
+			lookups = newLookups(keys, random);
+			start = System.nanoTime();
+			for (String key : lookups) {
+				final int id = index.find(key);
+				assertTrue(id != DiskLruIndex.NONE);
+				index.touch(id);
+			}
+			indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+		}
+		Log.i(TAG, String.format("lookup and touch: LinkedHashMap %d ns, DiskLruIndex %d ns",
+				mapNanos / LOOKUPS, indexNanos / LOOKUPS));
+		// Keep both reachable until here
+		assertEquals(map.size(), index.size());
+	}
+
+	private static String[] newLookups(String[] keys, Random random) {
+		final String[] lookups = new String[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			lookups[i] = new String(keys[random.nextInt(keys.length)]);
+		}
+		return lookups;
+	}
+
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			System.runFinalization();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
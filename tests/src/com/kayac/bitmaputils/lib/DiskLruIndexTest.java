@@ -0,0 +1,162 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class DiskLruIndexTest extends TestCase {
+	private static final String HEX_KEY = "0123456789abcdef0123456789abcdef";
+
+	public void testInsertFindRemove() {
+		final DiskLruIndex index = new DiskLruIndex(2);
+		assertEquals(DiskLruIndex.NONE, index.find("a"));
+		final int a = index.insert("a");
+		final int b = index.insert(HEX_KEY);
+		assertEquals(2, index.size());
+		assertEquals(a, index.find("a"));
+		assertEquals(b, index.find(HEX_KEY));
+		index.remove(a);
+		assertEquals(1, index.size());
+		assertEquals(DiskLruIndex.NONE, index.find("a"));
+		assertEquals(b, index.find(HEX_KEY));
+	}
+
+	public void testRemoveShiftsBackCollidingKeys() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		// With a low half of 0 a small high half hashes to itself, these share a home slot
+		final int first = index.insert(0, 0);
+		final int second = index.insert(32, 0);
+		final int third = index.insert(64, 0);
+		// Home slot 1 is taken by the run above, it probes past it
+		final int displaced = index.insert(1, 0);
+		index.remove(first);
+		assertEquals(DiskLruIndex.NONE, index.find(0, 0));
+		assertEquals(second, index.find(32, 0));
+		assertEquals(third, index.find(64, 0));
+		assertEquals(displaced, index.find(1, 0));
+		index.remove(third);
+		assertEquals(second, index.find(32, 0));
+		assertEquals(displaced, index.find(1, 0));
+	}
+
+	public void testTouchMovesToTheMostRecentEnd() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		final int a = index.insert("a");
+		final int b = index.insert("b");
+		final int c = index.insert("c");
+		index.touch(a);
+		assertOrder(index, b, c, a);
+		index.touch(a);
+		assertOrder(index, b, c, a);
+		index.touch(c);
+		index.remove(b);
+		assertOrder(index, a, c);
+		index.remove(a);
+		index.remove(c);
+		assertEquals(DiskLruIndex.NONE, index.eldest());
+	}
+
+	public void testHexKeysAreStoredAsTwoLongs() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		final int id = index.insert(HEX_KEY);
+		assertTrue(index.isHexKey(id));
+		assertEquals(0x0123456789abcdefL, index.getKeyHigh(id));
+		assertEquals(0x0123456789abcdefL, index.getKeyLow(id));
+		assertEquals(HEX_KEY, index.getKey(id));
+		assertEquals(id, index.find(0x0123456789abcdefL, 0x0123456789abcdefL));
+	}
+
+	public void testOtherKeysAreKeptAsStrings() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		final String upper = HEX_KEY.toUpperCase();
+		final String notHex = "0123456789abcdef0123456789abcdeg";
+		final int hex = index.insert(HEX_KEY);
+		final int upperId = index.insert(upper);
+		final int notHexId = index.insert(notHex);
+		assertFalse(index.isHexKey(upperId));
+		assertFalse(index.isHexKey(notHexId));
+		assertEquals(upper, index.getKey(upperId));
+		assertEquals(hex, index.find(HEX_KEY));
+		assertEquals(upperId, index.find(upper));
+		assertEquals(notHexId, index.find(notHex));
+	}
+
+	public void testGrowthAndRemovalMatchAMap() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		final Map<String, Integer> expected = new HashMap<String, Integer>();
+		final List<String> keys = new ArrayList<String>();
+		final Random random = new Random(0);
+		for (int i = 0; i < 20000; i++) {
+			if (keys.isEmpty() || random.nextInt(3) != 0) {
+				final String key = i % 2 == 0 ? ImageCache.hashKeyForDisk("key" + i) : "key" + i;
+				final int id = index.insert(key);
+				index.setLength(id, 0, i);
+				expected.put(key, id);
+				keys.add(key);
+			} else {
+				final String key = keys.remove(random.nextInt(keys.size()));
+				index.remove(expected.remove(key));
+				assertEquals(DiskLruIndex.NONE, index.find(key));
+			}
+		}
+		assertEquals(expected.size(), index.size());
+		for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+			final int id = index.find(entry.getKey());
+			assertEquals(entry.getValue().intValue(), id);
+			assertEquals(entry.getKey(), index.getKey(id));
+		}
+		int count = 0;
+		for (int id = index.eldest(); id != DiskLruIndex.NONE; id = index.next(id)) {
+			count++;
+		}
+		assertEquals(expected.size(), count);
+	}
+
+	public void testRemovedIdsAreReusedWithCleanState() {
+		final DiskLruIndex index = new DiskLruIndex(2);
+		final int id = index.insert("a");
+		index.setLength(id, 1, 100);
+		index.setSequenceNumber(id, 7);
+		index.setReadable(id);
+		index.setEditing(id, true);
+		index.remove(id);
+		final int reused = index.insert("b");
+		assertEquals(id, reused);
+		assertEquals(0, index.getLength(reused, 1));
+		assertEquals(0, index.getSequenceNumber(reused));
+		assertFalse(index.isReadable(reused));
+		assertFalse(index.isEditing(reused));
+		assertEquals("b", index.getKey(reused));
+	}
+
+	public void testFlags() {
+		final DiskLruIndex index = new DiskLruIndex(1);
+		final int id = index.insert("a");
+		index.setEditing(id, true);
+		index.setReadable(id);
+		assertTrue(index.isEditing(id));
+		assertTrue(index.isReadable(id));
+		index.setEditing(id, false);
+		assertFalse(index.isEditing(id));
+		assertTrue(index.isReadable(id));
+	}
+
+	private static void assertOrder(DiskLruIndex index, int... ids) {
+		int id = index.eldest();
+		for (int expected : ids) {
+			assertEquals(expected, id);
+			id = index.next(id);
+		}
+		assertEquals(DiskLruIndex.NONE, id);
+	}
+}
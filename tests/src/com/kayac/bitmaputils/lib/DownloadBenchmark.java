@@ -0,0 +1,144 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Downloads from a {@link LocalHttpServer} into the http disk cache, comparing the chunked
+ * copy of {@link ImageUtils#downloadUrlToStream} and the buffered cache editor with the byte at
+ * a time copy over an unbuffered cache file they replaced. Reports throughput and the CPU time
+ * the downloading thread spends per MB.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class DownloadBenchmark extends TestCase {
+	private static final String TAG = "DownloadBenchmark";
+	private static final int BODY_SIZE = 2 * 1024 * 1024;
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	private static final int WARMUP_ROUNDS = 2;
+	private static final int ROUNDS = 10;
+
+	private LocalHttpServer mServer;
+	private File mDirectory;
+	private DiskLruCache mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final byte[] body = new byte[BODY_SIZE];
+		new Random(0).nextBytes(body);
+		mServer = new LocalHttpServer(body);
+		mDirectory = TestFiles.newDirectory("download");
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Long.MAX_VALUE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.close();
+		mServer.close();
+		TestFiles.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testDownloadIntoCache() throws IOException {
+		final Result legacy = run(new Copy() {
+			@Override
+			public boolean copy(String url, String key) throws IOException {
+				final DiskLruCache.Editor editor = mCache.edit(key);
+				final File file = new File(mDirectory, "legacy-" + key);
+				final boolean copied = copyByteAtATime(url, new FileOutputStream(file));
+				editor.abort();
+				assertEquals(BODY_SIZE, file.length());
+				file.delete();
+				return copied;
+			}
+		});
+		final Result chunked = run(new Copy() {
+			@Override
+			public boolean copy(String url, String key) throws IOException {
+				final DiskLruCache.Editor editor = mCache.edit(key);
+				final boolean copied = ImageUtils.downloadUrlToStream(url,
+						editor.newOutputStream(0), IO_BUFFER_SIZE, null);
+				editor.commit();
+				assertEquals(BODY_SIZE, new File(mDirectory, key + ".0").length());
+				return copied;
+			}
+		});
+		Log.i(TAG, "byte at a time: " + legacy);
+		Log.i(TAG, "chunked:        " + chunked);
+		Log.i(TAG, "CPU per MB reduced by "
+				+ Math.round(100 - 100 * chunked.cpuMillisPerMb() / legacy.cpuMillisPerMb()) + "%");
+	}
+
+	private interface Copy {
+		boolean copy(String url, String key) throws IOException;
+	}
+
+	private Result run(Copy copy) throws IOException {
+		final Result result = new Result();
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			final String key = "body" + round;
+			final long start = System.nanoTime();
+			final long startCpu = SystemClock.currentThreadTimeMillis();
+			assertTrue(copy.copy(mServer.getUrl(key), key));
+			if (round >= WARMUP_ROUNDS) {
+				result.nanos += System.nanoTime() - start;
+				result.cpuMillis += SystemClock.currentThreadTimeMillis() - startCpu;
+				result.bytes += BODY_SIZE;
+			}
+			mCache.remove(key);
+		}
+		return result;
+	}
+
+	/**
+	 * The copy downloadUrlToStream used to do: single bytes through a BufferedInputStream into
+	 * a BufferedOutputStream over the unbuffered cache file.
+	 */
+	private static boolean copyByteAtATime(String url, OutputStream file) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		final BufferedInputStream in = new BufferedInputStream(connection.getInputStream(), IO_BUFFER_SIZE);
+		final BufferedOutputStream out = new BufferedOutputStream(file, IO_BUFFER_SIZE);
+		try {
+			int b;
+			while ((b = in.read()) != -1) {
+				out.write(b);
+			}
+			return true;
+		} finally {
+			out.close();
+			in.close();
+			connection.disconnect();
+		}
+	}
+
+	private static class Result {
+		long nanos;
+		long cpuMillis;
+		long bytes;
+
+		double cpuMillisPerMb() {
+			return cpuMillis * 1024.0 * 1024.0 / bytes;
+		}
+
+		@Override
+		public String toString() {
+			final double mb = bytes / (1024.0 * 1024.0);
+			return String.format("%.1f MB/s, %.1f ms CPU per MB", mb * 1e9 / nanos, cpuMillisPerMb());
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.kayac.bitmaputils.lib;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class FrequencySketchTest extends TestCase {
+
+	public void testUnseenKeyHasNoFrequency() {
+		final FrequencySketch sketch = new FrequencySketch();
+		assertEquals(0, sketch.frequency("a"));
+	}
+
+	public void testIncrementCountsUses() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(512);
+		for (int i = 0; i < 5; i++) {
+			sketch.increment("a");
+		}
+		sketch.increment("b");
+		assertEquals(5, sketch.frequency("a"));
+		assertEquals(1, sketch.frequency("b"));
+	}
+
+	public void testFrequencySaturates() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(512);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	public void testAgingHalvesCounters() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(64);
+		for (int i = 0; i < 12; i++) {
+			sketch.increment("hot");
+		}
+		assertEquals(12, sketch.frequency("hot"));
+		// The sample is ten times the capacity, one more round of distinct keys ages the counters
+		for (int i = 0; i < 10 * 64; i++) {
+			sketch.increment(Integer.valueOf(i));
+		}
+		final int aged = sketch.frequency("hot");
+		assertTrue("frequency " + aged + " after aging", aged < 12);
+		assertTrue("frequency " + aged + " after aging", aged >= 4);
+	}
+
+	public void testEnsureCapacityStartsOver() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.increment("a");
+		sketch.ensureCapacity(1024);
+		assertEquals(0, sketch.frequency("a"));
+		// Growing to a size the table already has keeps the counts
+		sketch.increment("a");
+		sketch.ensureCapacity(16);
+		assertEquals(1, sketch.frequency("a"));
+	}
+}
@@ -0,0 +1,242 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@MediumTest
+public class ImageCacheTest extends AndroidTestCase {
+	private static final String URL = "http://example.com/image.jpg";
+	// Kilobytes, five entries of 128x128 ARGB_8888
+	private static final int MEM_CACHE_SIZE = 320;
+
+	private ImageCache mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final ImageCache.ImageCacheParams params = new ImageCache.ImageCacheParams(getContext(), "test");
+		params.diskCacheDir = TestFiles.newDirectory("ImageCacheTest");
+		params.trimOnMemoryPressure = false;
+		params.memCacheSize = MEM_CACHE_SIZE;
+		mCache = new ImageCache(params);
+		mCache.initDiskCache();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mCache.close();
+		super.tearDown();
+	}
+
+	public void testProcessedBitmapsAreStoredPerResolution() throws IOException {
+		final LoadRequest thumbnail = LoadRequest.makeRemoteFileRequest(URL, 50, 50);
+		mCache.addBitmapToDiskCache(thumbnail, newDrawable(50, 50));
+
+		assertHit(LoadRequest.makeRemoteFileRequest(URL, 50, 50));
+		// A larger view must not be served the thumbnail
+		assertMiss(LoadRequest.makeRemoteFileRequest(URL, 200, 200));
+		assertMiss(LoadRequest.setScaleMode(
+				LoadRequest.makeRemoteFileRequest(URL, 50, 50), LoadRequest.SCALE_FILL));
+		assertMiss(LoadRequest.setConfig(
+				LoadRequest.makeRemoteFileRequest(URL, 50, 50), LoadRequest.CONFIG_RGB_565));
+		// Nor is the source key alone
+		assertNull(mCache.getStreamFromDiskCache(URL));
+
+		final Bitmap bitmap = mCache.getBitmapFromDiskCache(thumbnail);
+		assertNotNull(bitmap);
+		assertEquals(50, bitmap.getWidth());
+	}
+
+	public void testEveryResolutionIsKept() throws IOException {
+		mCache.addBitmapToDiskCache(LoadRequest.makeRemoteFileRequest(URL, 50, 50), newDrawable(50, 50));
+		mCache.addBitmapToDiskCache(LoadRequest.makeRemoteFileRequest(URL, 200, 200), newDrawable(200, 200));
+
+		assertEquals(50, mCache.getBitmapFromDiskCache(LoadRequest.makeRemoteFileRequest(URL, 50, 50)).getWidth());
+		assertEquals(200, mCache.getBitmapFromDiskCache(LoadRequest.makeRemoteFileRequest(URL, 200, 200)).getWidth());
+	}
+
+	public void testLocalRequestsAreNotWrittenToDisk() throws IOException {
+		final LoadRequest local = LoadRequest.makeLocalFileRequest("/sdcard/image.jpg", 50, 50);
+		mCache.addBitmapToDiskCache(local, newDrawable(50, 50));
+		assertMiss(local);
+	}
+
+	public void testRunningModerateHalvesThePoolOnly() {
+		fillForTrim();
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+		assertEntries(4, 256);
+		assertPoolSize(65536);
+	}
+
+	public void testUiHiddenDropsThePoolOnly() {
+		fillForTrim();
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+		// The cache is kept for when the user comes back
+		assertEntries(4, 256);
+		assertPoolSize(0);
+	}
+
+	public void testRunningLowDropsUndisplayedEntries() {
+		fillForTrim();
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+		assertEntries(3, 192);
+		// Including the bitmaps the removed entries handed to the pool
+		assertPoolSize(0);
+	}
+
+	public void testRunningCriticalTrimsToHalf() {
+		fillForTrim();
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+		assertEntries(2, 128);
+		assertPoolSize(0);
+	}
+
+	public void testBackgroundLevels() {
+		fillForTrim();
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+		assertEntries(2, 128);
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+		assertEntries(1, 64);
+		mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		assertEntries(0, 0);
+		assertPoolSize(0);
+	}
+
+	public void testOutOfMemoryTrimLeavesNothingPooled() {
+		fillForTrim();
+		mCache.trimForOutOfMemory();
+		assertEntries(2, 128);
+		// Including the bitmap the evicted undisplayed entry handed to the pool
+		assertPoolSize(0);
+	}
+
+	public void testRequestsGoToTheirSizeClass() {
+		final ImageCache cache = newPartitionedCache();
+		try {
+			// 16KB at 4 bytes per pixel
+			cache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + 1, 64, 64), newDrawable(64, 64));
+			// 16KB at 2 bytes per pixel
+			cache.addBitmapToMemCache(LoadRequest.setConfig(LoadRequest.makeRemoteFileRequest(URL + 2, 90, 90),
+					LoadRequest.CONFIG_RGB_565), newDrawable(64, 64));
+			// Decoded as ARGB_8888 unless the image is a JPEG, it takes 32KB
+			cache.addBitmapToMemCache(LoadRequest.setConfig(LoadRequest.makeRemoteFileRequest(URL + 3, 90, 90),
+					LoadRequest.CONFIG_AUTO), newDrawable(64, 64));
+			// The original image
+			cache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + 4), newDrawable(64, 64));
+			cache.addBitmapToMemCache(LoadRequest.setPartition(LoadRequest.makeRemoteFileRequest(URL + 5),
+					"thumbnails"), newDrawable(64, 64));
+
+			assertEquals(3, cache.getMemoryCache("thumbnails").snapshot().size());
+			assertEquals(2, cache.getMemoryCache("large").snapshot().size());
+			assertNotNull(cache.getBitmapFromMemCache(LoadRequest.setConfig(
+					LoadRequest.makeRemoteFileRequest(URL + 3, 90, 90), LoadRequest.CONFIG_AUTO)));
+		} finally {
+			cache.close();
+		}
+	}
+
+	public void testBorrowedCapacityIsGivenBack() {
+		final ImageCache cache = newPartitionedCache();
+		try {
+			final TinyLfuCache<String, BitmapDrawable> thumbnails = cache.getMemoryCache("thumbnails");
+			final TinyLfuCache<String, BitmapDrawable> large = cache.getMemoryCache("large");
+			// The thumbnails are not using their share, the large images take all of it
+			for (int i = 0; i < 5; i++) {
+				cache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + "large" + i, 128, 128),
+						newDrawable(128, 128));
+			}
+			assertEquals(MEM_CACHE_SIZE, large.size());
+
+			for (int i = 0; i < 2; i++) {
+				cache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + "thumbnail" + i, 64, 64),
+						newDrawable(64, 64));
+			}
+			assertEquals(32, thumbnails.size());
+			assertEquals(256, large.size());
+
+			// A partition that does not borrow stays within its share
+			for (int i = 2; i < 10; i++) {
+				cache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + "thumbnail" + i, 64, 64),
+						newDrawable(64, 64));
+			}
+			assertEquals(MEM_CACHE_SIZE / 4, thumbnails.size());
+			assertTrue(thumbnails.size() + large.size() <= MEM_CACHE_SIZE);
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * A quarter of the memory cache for requests up to 16KB, the rest for larger ones, which
+	 * may borrow what the small ones don't use.
+	 */
+	private ImageCache newPartitionedCache() {
+		final ImageCache.ImageCacheParams params = new ImageCache.ImageCacheParams(getContext(), "partitioned");
+		params.diskCacheEnabled = false;
+		params.trimOnMemoryPressure = false;
+		params.memCacheSize = MEM_CACHE_SIZE;
+		params.addPartition("thumbnails", 0.25f, 16, false);
+		params.addPartition("large", 0.75f, 0, true);
+		return new ImageCache(params);
+	}
+
+	/**
+	 * Three displayed entries, the oldest one undisplayed, and two bitmaps in the pool.
+	 */
+	private void fillForTrim() {
+		for (int i = 0; i < 4; i++) {
+			final RecyclingBitmapDrawable drawable = new RecyclingBitmapDrawable(
+					getContext().getResources(), newBitmap(128, 128), mCache.getBitmapPool());
+			mCache.addBitmapToMemCache(LoadRequest.makeRemoteFileRequest(URL + i, 128, 128), drawable);
+			drawable.setIsDisplayed(i > 0);
+		}
+		if (mCache.getBitmapPool() != null) {
+			mCache.getBitmapPool().put(newBitmap(128, 128));
+			mCache.getBitmapPool().put(newBitmap(128, 128));
+		}
+		assertEntries(4, 256);
+		assertPoolSize(131072);
+	}
+
+	private void assertEntries(int count, int size) {
+		assertEquals(count, mCache.getMemoryCache().snapshot().size());
+		assertEquals(size, mCache.getMemoryCache().size());
+	}
+
+	/**
+	 * Pooled from Honeycomb on only.
+	 */
+	private void assertPoolSize(int size) {
+		if (mCache.getBitmapPool() != null) {
+			assertEquals(size, mCache.getBitmapPool().size());
+		}
+	}
+
+	private void assertHit(LoadRequest data) throws IOException {
+		final FileInputStream in = mCache.getStreamFromDiskCache(data);
+		assertNotNull(ImageCache.getMemCacheKey(data), in);
+		in.close();
+	}
+
+	private void assertMiss(LoadRequest data) {
+		assertNull(ImageCache.getMemCacheKey(data), mCache.getStreamFromDiskCache(data));
+	}
+
+	private BitmapDrawable newDrawable(int width, int height) {
+		return new BitmapDrawable(getContext().getResources(), newBitmap(width, height));
+	}
+
+	private static Bitmap newBitmap(int width, int height) {
+		return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	}
+}
@@ -0,0 +1,168 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@MediumTest
+public class ImageUtilsTest extends TestCase {
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	private static final int BODY_SIZE = 256 * 1024;
+
+	public void testDownloadRunsToTheEnd() throws IOException {
+		final byte[] body = newBody();
+		final LocalHttpServer server = new LocalHttpServer(body);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final long[] announced = new long[1];
+			assertTrue(ImageUtils.downloadUrlToStream(server.getUrl("full"), out, IO_BUFFER_SIZE,
+					new ImageUtils.DownloadCancellation() {
+						@Override
+						public boolean shouldAbort(long bytesRead, long contentLength) {
+							announced[0] = contentLength;
+							return false;
+						}
+					}));
+			assertEquals(BODY_SIZE, out.size());
+			assertEquals(BODY_SIZE, announced[0]);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testDownloadStopsWhenCancellationAsks() throws IOException {
+		final LocalHttpServer server = new LocalHttpServer(newBody());
+		server.setChunkDelay(10);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final int[] checks = new int[1];
+			assertFalse(ImageUtils.downloadUrlToStream(server.getUrl("cancelled"), out, IO_BUFFER_SIZE,
+					new ImageUtils.DownloadCancellation() {
+						@Override
+						public boolean shouldAbort(long bytesRead, long contentLength) {
+							checks[0]++;
+							return true;
+						}
+					}));
+			// Stopped at the first check, after the first read
+			assertEquals(1, checks[0]);
+			assertTrue(out.size() > 0);
+			assertTrue(out.size() <= IO_BUFFER_SIZE);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testDecodeCancelledBeforeItStartsReturnsNothing() {
+		final byte[] image = encode(400, 300);
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(image, 0, image.length, options);
+		assertEquals(400, options.outWidth);
+		// The bounds are known, only the final pass is left to cancel
+		options.inJustDecodeBounds = false;
+		options.requestCancelDecode();
+
+		final long used = BitmapBudget.getInstance().getUsedSize();
+		assertNull(ImageUtils.decodeSampledBitmapFromByteArray(image, image.length, 100, 100,
+				LoadRequest.SCALE_NONE, null, options));
+		// The cancelled decode gave its reservation back
+		assertEquals(used, BitmapBudget.getInstance().getUsedSize());
+	}
+
+	public void testDecodeSamplesDown() {
+		final byte[] image = encode(400, 400);
+		final Bitmap bitmap = ImageUtils.decodeSampledBitmapFromByteArray(image, image.length,
+				100, 100, LoadRequest.SCALE_NONE, null, new BitmapFactory.Options());
+		assertNotNull(bitmap);
+		assertEquals(100, bitmap.getWidth());
+		assertEquals(100, bitmap.getHeight());
+	}
+
+	public void testExactScalingFitsTheLongerSide() {
+		final BitmapFactory.Options options = bounds(1000, 500);
+		ImageUtils.calculateExactScaling(options, 200, 200, LoadRequest.SCALE_FIT);
+		// Sampled to 250x125, the largest power of two that stays above 200, then scaled
+		assertEquals(4, options.inSampleSize);
+		assertEquals(1000, options.inDensity);
+		assertEquals(800, options.inTargetDensity);
+		assertTrue(options.inScaled);
+	}
+
+	public void testExactScalingFillsTheShorterSide() {
+		final BitmapFactory.Options options = bounds(1000, 500);
+		ImageUtils.calculateExactScaling(options, 200, 200, LoadRequest.SCALE_FILL);
+		assertEquals(2, options.inSampleSize);
+		assertEquals(500, options.inDensity);
+		assertEquals(400, options.inTargetDensity);
+	}
+
+	public void testExactScalingByAPowerOfTwoOnlySamples() {
+		final BitmapFactory.Options options = bounds(800, 800);
+		options.inDensity = 160;
+		options.inTargetDensity = 320;
+		ImageUtils.calculateExactScaling(options, 200, 200, LoadRequest.SCALE_FIT);
+		assertEquals(4, options.inSampleSize);
+		// Left from the options of an earlier decode
+		assertEquals(0, options.inDensity);
+		assertEquals(0, options.inTargetDensity);
+	}
+
+	public void testExactScalingNeverScalesUp() {
+		BitmapFactory.Options options = bounds(100, 50);
+		ImageUtils.calculateExactScaling(options, 200, 200, LoadRequest.SCALE_FILL);
+		assertEquals(1, options.inSampleSize);
+		assertEquals(0, options.inDensity);
+
+		// Unknown bounds or size
+		options = bounds(0, 0);
+		ImageUtils.calculateExactScaling(options, 200, 200, LoadRequest.SCALE_FIT);
+		assertEquals(1, options.inSampleSize);
+		options = bounds(1000, 500);
+		ImageUtils.calculateExactScaling(options, 0, 200, LoadRequest.SCALE_FIT);
+		assertEquals(1, options.inSampleSize);
+		assertEquals(0, options.inDensity);
+	}
+
+	public void testDecodeToTheExactSize() {
+		final byte[] image = encode(1000, 500);
+		Bitmap bitmap = ImageUtils.decodeSampledBitmapFromByteArray(image, image.length,
+				200, 200, LoadRequest.SCALE_FIT, null, new BitmapFactory.Options());
+		assertEquals(200, bitmap.getWidth());
+		assertEquals(100, bitmap.getHeight());
+
+		bitmap = ImageUtils.decodeSampledBitmapFromByteArray(image, image.length,
+				200, 200, LoadRequest.SCALE_FILL, null, new BitmapFactory.Options());
+		assertEquals(400, bitmap.getWidth());
+		assertEquals(200, bitmap.getHeight());
+	}
+
+	private static BitmapFactory.Options bounds(int width, int height) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = width;
+		options.outHeight = height;
+		return options;
+	}
+
+	private static byte[] newBody() {
+		final byte[] body = new byte[BODY_SIZE];
+		new Random(1).nextBytes(body);
+		return body;
+	}
+
+	private static byte[] encode(int width, int height) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+				.compress(Bitmap.CompressFormat.PNG, 100, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,204 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.widget.ImageView;
+
+/**
+ * Loads against a {@link LocalHttpServer}, the server's log tells whether a load got as far
+ * as the network.
+ *
+ * @author long-nguyen
+ *
+ */
+@MediumTest
+public class ImageWorkerTest extends InstrumentationTestCase {
+	private static final long TIMEOUT_MILLIS = 5000;
+	// Long enough for unpaused work to have reached the network
+	private static final long SETTLE_MILLIS = 500;
+
+	private LocalHttpServer mServer;
+	private ImageWorker mWorker;
+	// The http cache outlives a test, every test asks for paths of its own
+	private String mPrefix;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final byte[] body = new byte[16 * 1024];
+		new Random(1).nextBytes(body);
+		mServer = new LocalHttpServer(body);
+		mPrefix = "t" + System.nanoTime() + "/";
+		final Context context = getInstrumentation().getTargetContext();
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mWorker = new ImageWorker(context);
+				mWorker.setImageFadeIn(false);
+			}
+		});
+		mWorker.initDiskCacheInternal();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mWorker.setPauseWork(false);
+			}
+		});
+		mWorker.closeCacheInternal();
+		mServer.close();
+		super.tearDown();
+	}
+
+	public void testPausedWorkDoesNotReachTheNetwork() throws InterruptedException {
+		setPauseWork(true);
+		load("a", newImageView());
+		Thread.sleep(SETTLE_MILLIS);
+		assertTrue(mServer.getRequestedPaths().isEmpty());
+
+		setPauseWork(false);
+		assertTrue(awaitRequest("a"));
+	}
+
+	public void testPausedWorkOfViewsThatWentAwayIsDropped() throws InterruptedException {
+		setPauseWork(true);
+		final ImageView gone = newImageView();
+		load("gone", gone);
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				ImageWorker.cancelWork(gone);
+			}
+		});
+		// A recycled cell, only its last image is still wanted
+		final ImageView recycled = newImageView();
+		load("old", recycled);
+		load("new", recycled);
+		setPauseWork(false);
+
+		assertTrue(awaitRequest("new"));
+		Thread.sleep(SETTLE_MILLIS);
+		final List<String> paths = mServer.getRequestedPaths();
+		assertEquals(paths.toString(), 1, paths.size());
+	}
+
+	public void testViewsJoinPausedWork() throws InterruptedException {
+		setPauseWork(true);
+		final ImageView first = newImageView();
+		final ImageView second = newImageView();
+		load("shared", first);
+		load("shared", second);
+		// One view leaving does not drop the work the other waits for
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				ImageWorker.cancelWork(first);
+			}
+		});
+		setPauseWork(false);
+
+		assertTrue(awaitRequest("shared"));
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(1, mServer.getRequestedPaths().size());
+	}
+
+	public void testPausedTimeCountsTheCurrentPause() throws InterruptedException {
+		assertEquals(0, mWorker.getPausedTime());
+		setPauseWork(true);
+		Thread.sleep(50);
+		assertTrue(mWorker.getPausedTime() >= 50);
+		setPauseWork(false);
+		final long paused = mWorker.getPausedTime();
+		Thread.sleep(50);
+		assertEquals(paused, mWorker.getPausedTime());
+	}
+
+	public void testCancelledDownloadStopsAndIsNotCached() throws Exception {
+		// Restart with a body that takes a while to arrive
+		mServer.close();
+		final byte[] body = new byte[32 * LocalHttpServer.CHUNK_SIZE];
+		new Random(2).nextBytes(body);
+		mServer = new LocalHttpServer(body);
+		mServer.setChunkDelay(20);
+
+		final ImageView view = newImageView();
+		final long downloaded = ImageUtils.getDownloadedBytes();
+		load("slow", view);
+		assertTrue(awaitRequest("slow"));
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				ImageWorker.cancelWork(view);
+			}
+		});
+		// The download loop gave up long before the end of the body
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (ImageUtils.getDownloadedBytes() == downloaded && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		final long read = ImageUtils.getDownloadedBytes() - downloaded;
+		assertTrue(read > 0);
+		assertTrue(read < body.length / 2);
+
+		// Nothing was committed to the http cache, loading again goes to the network
+		load("slow", newImageView());
+		final long again = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (mServer.getRequestedPaths().size() < 2 && System.currentTimeMillis() < again) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, mServer.getRequestedPaths().size());
+	}
+
+	private ImageView newImageView() {
+		final ImageView[] view = new ImageView[1];
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				view[0] = new ImageView(getInstrumentation().getTargetContext());
+			}
+		});
+		return view[0];
+	}
+
+	private void load(String path, final ImageView imageView) {
+		final LoadRequest request = LoadRequest.makeRemoteFileRequest(
+				mServer.getUrl(mPrefix + path), 64, 64);
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mWorker.loadImage(request, imageView);
+			}
+		});
+	}
+
+	private void setPauseWork(final boolean pauseWork) {
+		runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mWorker.setPauseWork(pauseWork);
+			}
+		});
+	}
+
+	private void runOnMainSync(Runnable runnable) {
+		getInstrumentation().runOnMainSync(runnable);
+	}
+
+	private boolean awaitRequest(String path) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!mServer.getRequestedPaths().contains(mPrefix + path)) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,183 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class LoadPipelineTest extends TestCase {
+	private static final long TIMEOUT_SECONDS = 5;
+
+	private LoadPipeline mPipeline;
+	private CountDownLatch mRelease;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPipeline = new LoadPipeline(createParams(true));
+		mRelease = new CountDownLatch(1);
+	}
+
+	private static LoadPipeline.PipelineParams createParams(boolean lifo) {
+		final LoadPipeline.PipelineParams params = new LoadPipeline.PipelineParams();
+		params.diskThreads = 1;
+		params.networkThreads = 1;
+		params.decodeThreads = 1;
+		params.lifo = lifo;
+		return params;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mRelease.countDown();
+		super.tearDown();
+	}
+
+	public void testSlowDownloadDoesNotHoldUpDecodes() throws InterruptedException {
+		block(LoadPipeline.STAGE_NETWORK);
+		final CountDownLatch decoded = new CountDownLatch(1);
+		mPipeline.execute(LoadPipeline.STAGE_DECODE, LoadRequest.PRIORITY_VISIBLE, new Runnable() {
+			@Override
+			public void run() {
+				decoded.countDown();
+			}
+		});
+		assertTrue(decoded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+
+	public void testStagesRunOnTheirOwnThreads() throws InterruptedException {
+		final AtomicReference<String> name = new AtomicReference<String>();
+		final CountDownLatch ran = new CountDownLatch(1);
+		mPipeline.execute(LoadPipeline.STAGE_DISK_WRITE, new Runnable() {
+			@Override
+			public void run() {
+				name.set(Thread.currentThread().getName());
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(name.get(), name.get().startsWith("ImageWorker DiskWrite"));
+	}
+
+	public void testRemoveQueuedWork() throws InterruptedException {
+		block(LoadPipeline.STAGE_DISK_PROBE);
+		final AtomicBoolean ran = new AtomicBoolean();
+		final Runnable queued = mPipeline.execute(LoadPipeline.STAGE_DISK_PROBE,
+				LoadRequest.PRIORITY_VISIBLE, new Runnable() {
+					@Override
+					public void run() {
+						ran.set(true);
+					}
+				});
+		final CountDownLatch after = new CountDownLatch(1);
+		mPipeline.execute(LoadPipeline.STAGE_DISK_PROBE, LoadRequest.PRIORITY_BACKGROUND, new Runnable() {
+			@Override
+			public void run() {
+				after.countDown();
+			}
+		});
+
+		// Only the stage the work was queued on knows it
+		assertFalse(mPipeline.remove(LoadPipeline.STAGE_DECODE, queued));
+		assertTrue(mPipeline.remove(LoadPipeline.STAGE_DISK_PROBE, queued));
+		assertFalse(mPipeline.remove(LoadPipeline.STAGE_DISK_PROBE, queued));
+		assertFalse(mPipeline.remove(LoadPipeline.STAGE_DISK_PROBE, null));
+
+		mRelease.countDown();
+		assertTrue(after.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertFalse(ran.get());
+	}
+
+	public void testHigherPriorityIsServedFirst() throws InterruptedException {
+		block(LoadPipeline.STAGE_DECODE);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		queue(order, "background", LoadRequest.PRIORITY_BACKGROUND);
+		queue(order, "visible", LoadRequest.PRIORITY_VISIBLE);
+		queue(order, "prefetch", LoadRequest.PRIORITY_PREFETCH);
+		assertEquals("[visible, prefetch, background]", drain(order, 3));
+	}
+
+	public void testNewestIsServedFirstByDefault() throws InterruptedException {
+		assertTrue(mPipeline.isLifo());
+		block(LoadPipeline.STAGE_DECODE);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		// Cells that came on screen during a fling, the last ones are still on screen
+		for (int i = 0; i < 4; i++) {
+			queue(order, "cell" + i, LoadRequest.PRIORITY_VISIBLE);
+		}
+		queue(order, "prefetch", LoadRequest.PRIORITY_PREFETCH);
+		assertEquals("[cell3, cell2, cell1, cell0, prefetch]", drain(order, 5));
+	}
+
+	public void testOldestIsServedFirstWithoutLifo() throws InterruptedException {
+		mPipeline = new LoadPipeline(createParams(false));
+		assertFalse(mPipeline.isLifo());
+		block(LoadPipeline.STAGE_DECODE);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		queue(order, "prefetch", LoadRequest.PRIORITY_PREFETCH);
+		for (int i = 0; i < 4; i++) {
+			queue(order, "cell" + i, LoadRequest.PRIORITY_VISIBLE);
+		}
+		assertEquals("[cell0, cell1, cell2, cell3, prefetch]", drain(order, 5));
+	}
+
+	private void queue(final List<String> order, final String name, int priority) {
+		mPipeline.execute(LoadPipeline.STAGE_DECODE, priority, new Runnable() {
+			@Override
+			public void run() {
+				order.add(name);
+			}
+		});
+	}
+
+	/**
+	 * Release the blocked stage and wait for the queued work to run.
+	 */
+	private String drain(List<String> order, int count) throws InterruptedException {
+		mRelease.countDown();
+		final long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+		while (order.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return order.toString();
+	}
+
+	public void testPoolNeedsAThread() {
+		final LoadPipeline.PipelineParams params = new LoadPipeline.PipelineParams();
+		params.decodeThreads = 0;
+		try {
+			new LoadPipeline(params);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	/**
+	 * Occupy the only thread of a stage until the test releases it.
+	 */
+	private void block(int stage) throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		mPipeline.execute(stage, LoadRequest.PRIORITY_VISIBLE, new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					mRelease.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+}
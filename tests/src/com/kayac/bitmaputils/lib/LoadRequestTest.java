@@ -0,0 +1,84 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class LoadRequestTest extends TestCase {
+	private static final String URL = "http://example.com/image.jpg";
+
+	public void testSameSourceAndSizeAreEqual() {
+		final LoadRequest a = LoadRequest.makeRemoteFileRequest(URL, 200, 100);
+		final LoadRequest b = LoadRequest.makeRemoteFileRequest(URL, 200, 100);
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	public void testPriorityDoesNotTakePartInEquality() {
+		final LoadRequest visible = LoadRequest.makeRemoteFileRequest(URL, 200, 100);
+		final LoadRequest prefetch = LoadRequest.setPriority(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), LoadRequest.PRIORITY_PREFETCH);
+		assertEquals(visible, prefetch);
+		assertEquals(visible.hashCode(), prefetch.hashCode());
+	}
+
+	public void testEveryOtherFieldTakesPartInEquality() {
+		final LoadRequest base = LoadRequest.makeRemoteFileRequest(URL, 200, 100);
+		assertFalse(base.equals(LoadRequest.makeRemoteFileRequest(URL + "?v=2", 200, 100)));
+		assertFalse(base.equals(LoadRequest.makeRemoteFileRequest(URL, 100, 100)));
+		assertFalse(base.equals(LoadRequest.makeRemoteFileRequest(URL, 200, 200)));
+		assertFalse(base.equals(LoadRequest.setConfig(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), LoadRequest.CONFIG_RGB_565)));
+		assertFalse(base.equals(LoadRequest.setScaleMode(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), LoadRequest.SCALE_FIT)));
+		assertFalse(base.equals(LoadRequest.setPartition(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), "detail")));
+		// The same key read from another kind of source
+		final LoadRequest local = LoadRequest.makeLocalFileRequest(URL, 200, 100);
+		assertFalse(base.equals(local));
+	}
+
+	public void testNullFieldsCompare() {
+		final LoadRequest a = new LoadRequest();
+		final LoadRequest b = new LoadRequest();
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		b.key = URL;
+		assertFalse(a.equals(b));
+		assertFalse(b.equals(a));
+		assertFalse(a.equals(null));
+	}
+
+	public void testEqualRequestsShareOneInFlightEntry() {
+		// ImageWorker keys its in-flight loads by request, a second view asking for the same
+		// image at another priority must find the first view's load
+		final HashMap<LoadRequest, String> inFlight = new HashMap<LoadRequest, String>();
+		inFlight.put(LoadRequest.makeRemoteFileRequest(URL, 200, 100), "first");
+		final LoadRequest second = LoadRequest.setPriority(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), LoadRequest.PRIORITY_BACKGROUND);
+		assertEquals("first", inFlight.get(second));
+		assertNull(inFlight.get(LoadRequest.makeRemoteFileRequest(URL, 400, 200)));
+	}
+
+	public void testWithPriorityCopiesTheRequest() {
+		final LoadRequest visible = LoadRequest.setPartition(LoadRequest.setScaleMode(
+				LoadRequest.makeRemoteFileRequest(URL, 200, 100), LoadRequest.SCALE_FILL), "thumbs");
+		final LoadRequest prefetch = LoadRequest.withPriority(visible, LoadRequest.PRIORITY_PREFETCH);
+		assertNotSame(visible, prefetch);
+		assertEquals(visible, prefetch);
+		assertEquals(LoadRequest.PRIORITY_PREFETCH, prefetch.priority);
+		// A view may be loading the caller's object, it keeps its priority
+		assertEquals(LoadRequest.PRIORITY_VISIBLE, visible.priority);
+		assertNull(LoadRequest.withPriority(null, LoadRequest.PRIORITY_PREFETCH));
+	}
+
+	public void testInvalidUrlMakesNoRequest() {
+		assertNull(LoadRequest.makeRemoteFileRequest("not a url"));
+	}
+}
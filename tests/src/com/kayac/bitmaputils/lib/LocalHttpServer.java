@@ -0,0 +1,125 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stand-in for an image server on the loopback interface. Every GET is answered with the
+ * same body and its Content-Length, one connection per request, so transfers measure the
+ * client side copy rather than the network. The paths asked for are recorded, so tests can
+ * tell whether and when a load reached the network.
+ *
+ * @author long-nguyen
+ *
+ */
+class LocalHttpServer implements Closeable {
+	public static final int CHUNK_SIZE = 16 * 1024;
+
+	private final ServerSocket mServerSocket;
+	private final byte[] mBody;
+	private final Thread mThread;
+	private final List<String> mRequestedPaths = new ArrayList<String>();
+	private volatile long mChunkDelayMillis;
+
+	public LocalHttpServer(byte[] body) throws IOException {
+		mBody = body;
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "LocalHttpServer");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * @return A url the server answers, the path only tells requests apart
+	 */
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + path;
+	}
+
+	/**
+	 * Send bodies slowly, a pause before each {@link #CHUNK_SIZE} bytes, so a transfer can be
+	 * stopped part way.
+	 */
+	public void setChunkDelay(long millis) {
+		mChunkDelayMillis = millis;
+	}
+
+	/**
+	 * @return The paths asked for so far, in arrival order
+	 */
+	public List<String> getRequestedPaths() {
+		synchronized (mRequestedPaths) {
+			return new ArrayList<String>(mRequestedPaths);
+		}
+	}
+
+	private void serve() {
+		while (!mServerSocket.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = mServerSocket.accept();
+				final BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				String line = in.readLine();
+				if (line != null) {
+					// GET /path HTTP/1.1
+					final String[] parts = line.split(" ");
+					synchronized (mRequestedPaths) {
+						mRequestedPaths.add(parts.length > 1 ? parts[1].substring(1) : line);
+					}
+				}
+				while ((line = in.readLine()) != null && line.length() > 0) {
+					// Skip the request headers
+				}
+				final OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\nContent-Length: "
+						+ mBody.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				writeBody(out);
+			} catch (IOException e) {
+				// Closed, or the client went away
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	private void writeBody(OutputStream out) throws IOException {
+		final long delay = mChunkDelayMillis;
+		if (delay <= 0) {
+			out.write(mBody);
+			out.flush();
+			return;
+		}
+		for (int offset = 0; offset < mBody.length; offset += CHUNK_SIZE) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			}
+			out.write(mBody, offset, Math.min(CHUNK_SIZE, mBody.length - offset));
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mServerSocket.close();
+	}
+}
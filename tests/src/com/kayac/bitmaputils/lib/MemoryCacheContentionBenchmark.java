@@ -0,0 +1,125 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import android.support.v4.util.LruCache;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures the latency of a memory cache lookup on the UI thread while decode threads keep
+ * adding to the cache, for {@link TinyLfuCache} and the synchronized {@link LruCache} it
+ * replaced. The writers put in a tight loop, which is far more than a real decode pool does, so
+ * this is the worst case for lock contention.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class MemoryCacheContentionBenchmark extends TestCase {
+	private static final String TAG = "MemoryCacheContention";
+	private static final int CAPACITY = 200;
+	private static final int KEYS = 1000;
+	private static final int WRITERS = 4;
+	private static final int WARMUP_LOOKUPS = 100000;
+	private static final int LOOKUPS = 500000;
+	private static final long STALL_NANOS = 1000000;
+
+	private interface Cache {
+		String get(String key);
+
+		void put(String key, String value);
+	}
+
+	public void testLookupLatencyUnderWriters() throws InterruptedException {
+		final String[] keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "http://example.com/image/" + i + ".jpg";
+		}
+		report("LruCache", measure(keys, new Cache() {
+			private final LruCache<String, String> mCache = new LruCache<String, String>(CAPACITY);
+
+			@Override
+			public String get(String key) {
+				return mCache.get(key);
+			}
+
+			@Override
+			public void put(String key, String value) {
+				mCache.put(key, value);
+			}
+		}));
+		report("TinyLfuCache", measure(keys, new Cache() {
+			private final TinyLfuCache<String, String> mCache = new TinyLfuCache<String, String>(CAPACITY);
+
+			@Override
+			public String get(String key) {
+				return mCache.get(key);
+			}
+
+			@Override
+			public void put(String key, String value) {
+				mCache.put(key, value);
+			}
+		}));
+	}
+
+	private static long[] measure(final String[] keys, final Cache cache) throws InterruptedException {
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(keys[i], keys[i]);
+		}
+		final CountDownLatch stopped = new CountDownLatch(WRITERS);
+		final Thread[] writers = new Thread[WRITERS];
+		for (int t = 0; t < WRITERS; t++) {
+			final Random random = new Random(t);
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					while (!isInterrupted()) {
+						final String key = keys[random.nextInt(KEYS)];
+						if (cache.get(key) == null) {
+							cache.put(key, key);
+						}
+					}
+					stopped.countDown();
+				}
+			};
+			writers[t].start();
+		}
+
+		// The UI thread looks up what is on screen, mostly hits
+		final Random random = new Random(WRITERS);
+		final long[] latencies = new long[LOOKUPS];
+		for (int i = 0; i < WARMUP_LOOKUPS + LOOKUPS; i++) {
+			final String key = keys[random.nextInt(CAPACITY / 4)];
+			final long start = System.nanoTime();
+			cache.get(key);
+			final long latency = System.nanoTime() - start;
+			if (i >= WARMUP_LOOKUPS) {
+				latencies[i - WARMUP_LOOKUPS] = latency;
+			}
+		}
+
+		for (Thread writer : writers) {
+			writer.interrupt();
+		}
+		stopped.await();
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void report(String name, long[] sorted) {
+		int stalls = 0;
+		for (long latency : sorted) {
+			if (latency > STALL_NANOS) {
+				stalls++;
+			}
+		}
+		Log.i(TAG, String.format("%s with %d writers: p50 %d ns, p99 %d ns, p99.9 %d ns, max %.2f ms, %d over 1 ms",
+				name, WRITERS, sorted[sorted.length / 2], sorted[sorted.length * 99 / 100],
+				sorted[sorted.length * 999 / 1000], sorted[sorted.length - 1] / 1000000.0, stalls));
+	}
+}
@@ -0,0 +1,117 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.support.v4.util.LruCache;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Replays scroll traces of an image grid against {@link TinyLfuCache} and the plain
+ * {@link LruCache} it replaced, at the same capacity, and reports the hit ratio of each. Every
+ * access is a loadImage: a get, and a put on a miss.
+ * <p>
+ * The traces scroll a grid of remote images with a header and a few avatars that are drawn on
+ * every screen, mixing slow scrolling, scrolling back and flings through hundreds of images.
+ * TinyLFU has to keep up with LRU on every trace.
+ *
+ * @author long-nguyen
+ *
+ */
+@LargeTest
+public class MemoryCacheReplayBenchmark extends TestCase {
+	private static final String TAG = "MemoryCacheReplay";
+	private static final int GRID_SIZE = 5000;
+	private static final int SCREEN_SIZE = 15;
+	private static final int HOT_SIZE = 4;
+	private static final int[] CAPACITIES = { 30, 60, 120 };
+	private static final int SCREENS = 20000;
+
+	public void testReplayScrollTraces() {
+		final int[][] traces = { scrollTrace(1, 0.02f), scrollTrace(2, 0.05f), scrollTrace(3, 0.10f) };
+		final float[] flingRates = { 0.02f, 0.05f, 0.10f };
+		for (int capacity : CAPACITIES) {
+			for (int t = 0; t < traces.length; t++) {
+				final float lru = replayLru(traces[t], capacity);
+				final float tinyLfu = replayTinyLfu(traces[t], capacity);
+				Log.i(TAG, String.format("capacity %d, %.0f%% flings: LRU %.1f%%, TinyLFU %.1f%%",
+						capacity, flingRates[t] * 100, lru * 100, tinyLfu * 100));
+				// The window sizes itself to the trace, recency pays at small capacities
+				assertTrue(String.format("capacity %d, %.0f%% flings", capacity, flingRates[t] * 100),
+						tinyLfu >= lru);
+			}
+		}
+	}
+
+	private static float replayLru(int[] trace, int capacity) {
+		final LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(capacity);
+		int hits = 0;
+		for (int key : trace) {
+			final Integer boxed = Integer.valueOf(key);
+			if (cache.get(boxed) != null) {
+				hits++;
+			} else {
+				cache.put(boxed, boxed);
+			}
+		}
+		return (float) hits / trace.length;
+	}
+
+	private static float replayTinyLfu(int[] trace, int capacity) {
+		final TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<Integer, Integer>(capacity);
+		int hits = 0;
+		for (int key : trace) {
+			final Integer boxed = Integer.valueOf(key);
+			if (cache.get(boxed) != null) {
+				hits++;
+			} else {
+				cache.put(boxed, boxed);
+			}
+		}
+		return (float) hits / trace.length;
+	}
+
+	/**
+	 * @param seed
+	 * @param flingRate The share of scroll steps that are a fling
+	 * @return The keys loaded, hot images are negative
+	 */
+	private static int[] scrollTrace(long seed, float flingRate) {
+		final Random random = new Random(seed);
+		final List<Integer> trace = new ArrayList<Integer>();
+		int first = 0;
+		for (int screen = 0; screen < SCREENS; screen++) {
+			for (int i = 0; i < HOT_SIZE; i++) {
+				trace.add(-1 - i);
+			}
+			for (int i = first; i < first + SCREEN_SIZE; i++) {
+				trace.add(i);
+			}
+			final float step = random.nextFloat();
+			if (step < flingRate) {
+				// A fling loads every image it passes
+				final int target = Math.min(GRID_SIZE - SCREEN_SIZE, first + 100 + random.nextInt(400));
+				for (int i = first + SCREEN_SIZE; i < target + SCREEN_SIZE; i++) {
+					trace.add(i);
+				}
+				first = target;
+			} else if (step < 0.25f) {
+				// Back up a row or two to look at something again
+				first = Math.max(0, first - 3 * (1 + random.nextInt(2)));
+			} else if (step < 0.30f) {
+				// Back to the top, the first images are the most viewed
+				first = 0;
+			} else {
+				first = Math.min(GRID_SIZE - SCREEN_SIZE, first + 3 * (1 + random.nextInt(2)));
+			}
+		}
+		final int[] keys = new int[trace.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = trace.get(i);
+		}
+		return keys;
+	}
+}
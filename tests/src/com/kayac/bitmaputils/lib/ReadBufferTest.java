@@ -0,0 +1,117 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class ReadBufferTest extends TestCase {
+
+	public void testDrainReturnsReadsInOrder() {
+		final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+		for (int i = 0; i < 5; i++) {
+			buffer.offer(i);
+		}
+		final List<Integer> drained = drain(buffer);
+		assertEquals(5, drained.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i, drained.get(i).intValue());
+		}
+		assertTrue(drain(buffer).isEmpty());
+	}
+
+	public void testOfferAsksForDrainWhenHalfFull() {
+		final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+		for (int i = 0; i < 7; i++) {
+			assertFalse(buffer.offer(i));
+		}
+		assertTrue(buffer.offer(7));
+	}
+
+	public void testFullBufferDropsReads() {
+		final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+		for (int i = 0; i < 16; i++) {
+			buffer.offer(i);
+		}
+		for (int i = 16; i < 100; i++) {
+			assertTrue(buffer.offer(i));
+		}
+		final List<Integer> drained = drain(buffer);
+		assertEquals(16, drained.size());
+		for (int i = 0; i < 16; i++) {
+			assertEquals(i, drained.get(i).intValue());
+		}
+	}
+
+	public void testDrainMakesRoomAgain() {
+		final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+		for (int i = 0; i < 16; i++) {
+			buffer.offer(i);
+		}
+		assertEquals(16, drain(buffer).size());
+		for (int i = 0; i < 3; i++) {
+			buffer.offer(100 + i);
+		}
+		final List<Integer> drained = drain(buffer);
+		assertEquals(3, drained.size());
+		assertEquals(100, drained.get(0).intValue());
+	}
+
+	public void testConcurrentOffersAreDrainedAtMostOnce() throws InterruptedException {
+		final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+		final int threads = 4;
+		final int reads = 20000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int base = t * reads;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < reads; i++) {
+						buffer.offer(base + i);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		final Set<Integer> seen = new HashSet<Integer>();
+		final AtomicBoolean duplicate = new AtomicBoolean();
+		final ReadBuffer.Consumer<Integer> consumer = new ReadBuffer.Consumer<Integer>() {
+			@Override
+			public void accept(Integer e) {
+				if (!seen.add(e)) {
+					duplicate.set(true);
+				}
+			}
+		};
+		while (done.getCount() > 0) {
+			buffer.drainTo(consumer);
+		}
+		buffer.drainTo(consumer);
+		assertFalse("read drained twice", duplicate.get());
+		assertFalse(seen.isEmpty());
+		assertTrue(seen.size() <= threads * reads);
+		assertTrue(drain(buffer).isEmpty());
+	}
+
+	private static List<Integer> drain(ReadBuffer<Integer> buffer) {
+		final List<Integer> drained = new ArrayList<Integer>();
+		buffer.drainTo(new ReadBuffer.Consumer<Integer>() {
+			@Override
+			public void accept(Integer e) {
+				drained.add(e);
+			}
+		});
+		return drained;
+	}
+}
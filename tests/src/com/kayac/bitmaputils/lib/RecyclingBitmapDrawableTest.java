@@ -0,0 +1,130 @@
+package com.kayac.bitmaputils.lib;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.kayac.bitmaputils.test.Utils;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class RecyclingBitmapDrawableTest extends TestCase {
+	private BitmapPool mPool;
+	private Bitmap mBitmap;
+	private RecyclingBitmapDrawable mDrawable;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPool = new BitmapPool(1024 * 1024);
+		mBitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+		mDrawable = new RecyclingBitmapDrawable(null, mBitmap, mPool);
+	}
+
+	public void testReleasedOnceNeitherCachedNorDisplayed() {
+		mDrawable.setIsCached(true);
+		mDrawable.setIsDisplayed(true);
+		assertTrue(mDrawable.isDisplayed());
+
+		mDrawable.setIsCached(false);
+		assertKept();
+		mDrawable.setIsDisplayed(false);
+		assertFalse(mDrawable.isDisplayed());
+		assertReleased();
+	}
+
+	public void testEveryDisplayCounts() {
+		mDrawable.setIsDisplayed(true);
+		mDrawable.setIsDisplayed(true);
+		mDrawable.setIsDisplayed(false);
+		// Still shown in the other view
+		assertTrue(mDrawable.isDisplayed());
+		assertKept();
+		mDrawable.setIsDisplayed(false);
+		assertReleased();
+	}
+
+	public void testInFlightLoadKeepsItAlive() {
+		// Evicted from the memory cache before the load delivered it
+		mDrawable.setIsInFlight(true);
+		mDrawable.setIsCached(true);
+		mDrawable.setIsCached(false);
+		assertKept();
+
+		mDrawable.setIsDisplayed(true);
+		mDrawable.setIsInFlight(false);
+		assertKept();
+		mDrawable.setIsDisplayed(false);
+		assertReleased();
+	}
+
+	public void testTryAcquireHoldsAnInFlightReference() {
+		mDrawable.setIsCached(true);
+		assertTrue(mDrawable.tryAcquire());
+		// Evicted between the cache hit and the display
+		mDrawable.setIsCached(false);
+		assertKept();
+		mDrawable.setIsDisplayed(true);
+		mDrawable.setIsInFlight(false);
+		assertKept();
+		mDrawable.setIsDisplayed(false);
+		assertReleased();
+	}
+
+	public void testTryAcquireFailsOnceReleased() {
+		mDrawable.setIsCached(true);
+		mDrawable.setIsCached(false);
+		assertReleased();
+		assertFalse(mDrawable.tryAcquire());
+	}
+
+	public void testTryAcquireFailsOnARecycledBitmap() {
+		mBitmap.recycle();
+		assertFalse(mDrawable.tryAcquire());
+	}
+
+	public void testReleasedOnlyOnce() {
+		mDrawable.setIsCached(true);
+		mDrawable.setIsCached(false);
+		assertReleased();
+		final int pooled = mPool.size();
+		// A late reference coming and going does not hand the bitmap out twice
+		mDrawable.setIsDisplayed(true);
+		mDrawable.setIsDisplayed(false);
+		assertEquals(pooled, mPool.size());
+	}
+
+	public void testWithoutPoolTheBitmapIsOnlyDropped() {
+		if (!Utils.hasHoneycomb()) {
+			return;
+		}
+		mDrawable = new RecyclingBitmapDrawable(null, mBitmap);
+		mDrawable.setIsCached(true);
+		mDrawable.setIsCached(false);
+		assertTrue(mDrawable.isReleased());
+		// Left to the garbage collector
+		assertFalse(mBitmap.isRecycled());
+	}
+
+	private void assertKept() {
+		assertFalse(mDrawable.isReleased());
+		assertFalse(mBitmap.isRecycled());
+		assertEquals(0, mPool.size());
+	}
+
+	/**
+	 * Pooled from Honeycomb on, recycled before.
+	 */
+	private void assertReleased() {
+		assertTrue(mDrawable.isReleased());
+		if (Utils.hasHoneycomb()) {
+			assertEquals(BitmapPool.getSize(mBitmap), mPool.size());
+			assertFalse(mBitmap.isRecycled());
+		} else {
+			assertTrue(mBitmap.isRecycled());
+		}
+	}
+}
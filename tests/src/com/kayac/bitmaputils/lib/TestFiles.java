@@ -0,0 +1,37 @@
+package com.kayac.bitmaputils.lib;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Scratch directories for tests and benchmarks, under java.io.tmpdir, which is the cache
+ * directory of the app under test on a device.
+ *
+ * @author long-nguyen
+ *
+ */
+final class TestFiles {
+	private TestFiles() {}
+
+	/**
+	 * @return An empty directory of that name, left over contents are deleted
+	 */
+	static File newDirectory(String name) throws IOException {
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "bitmaputils-" + name);
+		delete(dir);
+		if (!dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		return dir;
+	}
+
+	static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
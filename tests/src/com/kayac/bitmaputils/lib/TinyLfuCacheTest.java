@@ -0,0 +1,221 @@
+package com.kayac.bitmaputils.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * @author long-nguyen
+ *
+ */
+@SmallTest
+public class TinyLfuCacheTest extends TestCase {
+
+	public void testGetReturnsWhatWasPut() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(10);
+		assertNull(cache.put("a", "A"));
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.hitCount());
+		assertEquals(1, cache.missCount());
+		assertEquals(1, cache.putCount());
+	}
+
+	public void testPeekLeavesTheStatsAlone() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(10);
+		cache.put("a", "A");
+		assertEquals("A", cache.peek("a"));
+		assertNull(cache.peek("b"));
+		assertEquals(0, cache.hitCount());
+		assertEquals(0, cache.missCount());
+	}
+
+	public void testReplaceReportsThePreviousValue() {
+		final RecordingCache cache = new RecordingCache(10);
+		cache.put("a", "A");
+		assertEquals("A", cache.put("a", "B"));
+		assertEquals("B", cache.get("a"));
+		assertEquals(1, cache.removed.size());
+		assertEquals("a=A replaced", cache.removed.get(0));
+	}
+
+	public void testRemove() {
+		final RecordingCache cache = new RecordingCache(10);
+		cache.put("a", "A");
+		assertEquals("A", cache.remove("a"));
+		assertNull(cache.remove("a"));
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+		assertEquals("a=A removed", cache.removed.get(0));
+	}
+
+	public void testSizeStaysWithinMaxSize() {
+		final RecordingCache cache = new RecordingCache(50);
+		for (int i = 0; i < 1000; i++) {
+			cache.put("key" + i, "value" + i);
+			assertTrue(cache.size() <= 50);
+		}
+		assertEquals(50, cache.size());
+		assertEquals(950, cache.evictionCount());
+		assertEquals(950, cache.evictedCount);
+		assertEquals(50, cache.snapshot().size());
+	}
+
+	public void testSizeOfWeighsEntries() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100) {
+			@Override
+			protected int sizeOf(String key, String value) {
+				return value.length();
+			}
+		};
+		cache.put("a", "0123456789");
+		cache.put("b", "01234567890123456789");
+		assertEquals(30, cache.size());
+		for (int i = 0; i < 100; i++) {
+			cache.put("key" + i, "0123456789");
+		}
+		assertTrue(cache.size() <= 100);
+	}
+
+	public void testFrequentEntriesSurviveAScan() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100);
+		// A full cache, the sketch is sized for it
+		for (int i = 0; i < 100; i++) {
+			load(cache, "warm" + i);
+		}
+		for (int round = 0; round < 10; round++) {
+			loadHot(cache);
+		}
+		// A fling through images that are each seen once. The hot ones come back after more
+		// images than the cache holds, plain LRU would have evicted them by then.
+		for (int i = 0; i < 1000; i++) {
+			load(cache, "scan" + i);
+			if (i % 150 == 0) {
+				loadHot(cache);
+			}
+		}
+		for (int i = 0; i < 10; i++) {
+			assertNotNull("hot" + i + " was evicted by the scan", cache.peek("hot" + i));
+		}
+	}
+
+	public void testWindowStartsSmall() {
+		assertTrue(new TinyLfuCache<String, String>(100).getWindowFraction() < 0.05f);
+		assertEquals(0.5f, new TinyLfuCache<String, String>(100, 0.5f).getWindowFraction());
+		// The main space always keeps a share
+		assertTrue(new TinyLfuCache<String, String>(100, 1f).getWindowFraction() < 1f);
+	}
+
+	public void testWindowGrowsWhenRecencyPays() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100);
+		final float initial = cache.getWindowFraction();
+		// Scrolling down and a little back up: every image comes back once, 30 images later,
+		// and is never seen again. Only a window of that size turns the second load into a hit.
+		for (int i = 0; i < 2000; i++) {
+			load(cache, "row" + i);
+			if (i >= 30) {
+				load(cache, "row" + (i - 30));
+			}
+		}
+		assertTrue(cache.getWindowFraction() > initial);
+		assertTrue(cache.getWindowFraction() < 1f);
+		final int hits = cache.hitCount();
+		for (int i = 2000; i < 2100; i++) {
+			load(cache, "row" + i);
+			load(cache, "row" + (i - 30));
+		}
+		assertEquals(hits + 100, cache.hitCount());
+	}
+
+	public void testWindowShrinksWhenFrequencyPays() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100, 0.8f);
+		for (int i = 0; i < 100; i++) {
+			load(cache, "warm" + i);
+		}
+		// More hot images than the main space holds, coming back after more images than the
+		// whole cache holds. Only a larger main space keeps them.
+		int hotHits = 0;
+		for (int i = 0; i < 3000; i++) {
+			load(cache, "scan" + i);
+			if (i % 150 == 0) {
+				final int hits = cache.hitCount();
+				for (int j = 0; j < 40; j++) {
+					load(cache, "hot" + j);
+				}
+				hotHits = cache.hitCount() - hits;
+			}
+		}
+		assertTrue(cache.getWindowFraction() < 0.6f);
+		assertTrue(hotHits > 30);
+	}
+
+	private static void loadHot(TinyLfuCache<String, String> cache) {
+		for (int i = 0; i < 10; i++) {
+			load(cache, "hot" + i);
+		}
+	}
+
+	private static void load(TinyLfuCache<String, String> cache, String key) {
+		if (cache.get(key) == null) {
+			cache.put(key, key);
+		}
+	}
+
+	public void testNewEntryIsAdmittedOnceFrequentEnough() {
+		final TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(20);
+		for (int i = 0; i < 20; i++) {
+			cache.put("old" + i, "old");
+		}
+		// Misses count towards the frequency too, an image that keeps being asked for gets in
+		for (int i = 0; i < 5; i++) {
+			assertNull(cache.get("wanted"));
+		}
+		cache.put("wanted", "wanted");
+		// Push it out of the admission window
+		for (int i = 0; i < 5; i++) {
+			cache.put("filler" + i, "filler");
+		}
+		assertNotNull(cache.peek("wanted"));
+	}
+
+	public void testEvictAll() {
+		final RecordingCache cache = new RecordingCache(10);
+		for (int i = 0; i < 10; i++) {
+			cache.put("key" + i, "value");
+		}
+		cache.evictAll();
+		assertEquals(0, cache.size());
+		assertEquals(10, cache.evictedCount);
+		assertTrue(cache.snapshot().isEmpty());
+	}
+
+	public void testTrimToSizeEvictsDownToTheSize() {
+		final RecordingCache cache = new RecordingCache(10);
+		for (int i = 0; i < 10; i++) {
+			cache.put("key" + i, "value");
+		}
+		cache.trimToSize(4);
+		assertEquals(4, cache.size());
+		assertEquals(6, cache.evictedCount);
+	}
+
+	private static class RecordingCache extends TinyLfuCache<String, String> {
+		final List<String> removed = new ArrayList<String>();
+		int evictedCount;
+
+		RecordingCache(int maxSize) {
+			super(maxSize);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+			if (evicted) {
+				evictedCount++;
+			} else {
+				removed.add(key + "=" + oldValue + (newValue != null ? " replaced" : " removed"));
+			}
+		}
+	}
+}